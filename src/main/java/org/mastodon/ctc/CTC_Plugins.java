@@ -59,12 +59,16 @@ public class CTC_Plugins extends AbstractContextual implements MamutPlugin
 	//"IDs" of all plug-ins wrapped in this class
 	private static final String CTC_IMPORT = "[ctc] import all";
 	private static final String CTC_EXPORT = "[ctc] export all";
+	private static final String CTC_EXPORT_CROPS = "[ctc] export track crops";
+	private static final String CTC_MERGE_SHARDS = "[ctc] merge export shards";
 	private static final String CTC_TRA_CHECKER = "[ctc] review TRA";
 	private static final String CTC_TRA_ADJUSTER = "[ctc] adjust TRA";
 	private static final String CTC_TRA_ADJUSTER_NQ = "[ctc] adjust TRA w/o dialog";
 
 	private static final String[] CTC_IMPORT_KEYS = { "not mapped" };
 	private static final String[] CTC_EXPORT_KEYS = { "not mapped" };
+	private static final String[] CTC_EXPORT_CROPS_KEYS = { "not mapped" };
+	private static final String[] CTC_MERGE_SHARDS_KEYS = { "not mapped" };
 	private static final String[] CTC_TRA_CHECKER_KEYS = { "not mapped" };
 	private static final String[] CTC_TRA_ADJUSTER_KEYS = { "not mapped" };
 	private static final String[] CTC_TRA_ADJUSTER_NQ_KEYS = { "not mapped" };
@@ -77,6 +81,8 @@ public class CTC_Plugins extends AbstractContextual implements MamutPlugin
 	{
 		menuTexts.put( CTC_IMPORT, "Import from CellTrackingChallenge" );
 		menuTexts.put( CTC_EXPORT, "Export to CellTrackingChallenge" );
+		menuTexts.put( CTC_EXPORT_CROPS, "Export image crops along tracks" );
+		menuTexts.put( CTC_MERGE_SHARDS, "Merge exports of adjacent time ranges" );
 		menuTexts.put( CTC_TRA_CHECKER, "Review TRA annotation" );
 		menuTexts.put( CTC_TRA_ADJUSTER, "Auto-adjust TRA annotation" );
 	}
@@ -92,13 +98,15 @@ public class CTC_Plugins extends AbstractContextual implements MamutPlugin
 				item(CTC_IMPORT)
 			),
 			menu( "Export",
-				item(CTC_EXPORT)
+				item(CTC_EXPORT),
+				item(CTC_EXPORT_CROPS)
 			)
 		) );
 		menus.add( menu( "Plugins",
 			menu("Cell Tracking Challenge",
 				item(CTC_TRA_CHECKER),
-				item(CTC_TRA_ADJUSTER)
+				item(CTC_TRA_ADJUSTER),
+				item(CTC_MERGE_SHARDS)
 			)
 		) );
 		return menus;
@@ -118,6 +126,8 @@ public class CTC_Plugins extends AbstractContextual implements MamutPlugin
 		{
 			descriptions.add(CTC_IMPORT, CTC_IMPORT_KEYS, "");
 			descriptions.add(CTC_EXPORT, CTC_EXPORT_KEYS, "");
+			descriptions.add(CTC_EXPORT_CROPS, CTC_EXPORT_CROPS_KEYS, "");
+			descriptions.add(CTC_MERGE_SHARDS, CTC_MERGE_SHARDS_KEYS, "");
 			descriptions.add(CTC_TRA_CHECKER, CTC_TRA_CHECKER_KEYS, "");
 			descriptions.add(CTC_TRA_ADJUSTER, CTC_TRA_ADJUSTER_KEYS, "");
 			descriptions.add(CTC_TRA_ADJUSTER_NQ, CTC_TRA_ADJUSTER_NQ_KEYS, "");
@@ -128,6 +138,8 @@ public class CTC_Plugins extends AbstractContextual implements MamutPlugin
 
 	private final AbstractNamedAction actionImport;
 	private final AbstractNamedAction actionExport;
+	private final AbstractNamedAction actionExportCrops;
+	private final AbstractNamedAction actionMergeShards;
 	private final AbstractNamedAction actionTRAreview;
 	private final AbstractNamedAction actionTRAadjust;
 	private final AbstractNamedAction actionTRAadjustNQ;
@@ -140,6 +152,8 @@ public class CTC_Plugins extends AbstractContextual implements MamutPlugin
 	{
 		actionImport       = new RunnableAction( CTC_IMPORT, this::importer );
 		actionExport       = new RunnableAction( CTC_EXPORT, this::exporter );
+		actionExportCrops  = new RunnableAction( CTC_EXPORT_CROPS, this::cropsExporter );
+		actionMergeShards  = new RunnableAction( CTC_MERGE_SHARDS, this::shardsMerger );
 		actionTRAreview    = new RunnableAction( CTC_TRA_CHECKER, this::TRAreviewer );
 		actionTRAadjust    = new RunnableAction( CTC_TRA_ADJUSTER, this::TRAadjuster );
 		actionTRAadjustNQ  = new RunnableAction( CTC_TRA_ADJUSTER_NQ, this::TRAadjusterNQ );
@@ -152,6 +166,8 @@ public class CTC_Plugins extends AbstractContextual implements MamutPlugin
 	{
 		actions.namedAction( actionImport,       CTC_IMPORT_KEYS );
 		actions.namedAction( actionExport,       CTC_EXPORT_KEYS );
+		actions.namedAction( actionExportCrops,  CTC_EXPORT_CROPS_KEYS );
+		actions.namedAction( actionMergeShards,  CTC_MERGE_SHARDS_KEYS );
 		actions.namedAction( actionTRAreview,    CTC_TRA_CHECKER_KEYS );
 		actions.namedAction( actionTRAadjust,    CTC_TRA_ADJUSTER_KEYS );
 		actions.namedAction( actionTRAadjustNQ , CTC_TRA_ADJUSTER_NQ_KEYS );
@@ -171,6 +187,8 @@ public class CTC_Plugins extends AbstractContextual implements MamutPlugin
 	{
 		actionImport.setEnabled( projectModel != null );
 		actionExport.setEnabled( projectModel != null );
+		actionExportCrops.setEnabled( projectModel != null );
+		actionMergeShards.setEnabled( true ); //NB: works with files only
 		actionTRAreview.setEnabled( projectModel != null );
 		actionTRAadjust.setEnabled( projectModel != null );
 		actionTRAadjustNQ.setEnabled( projectModel != null );
@@ -200,6 +218,24 @@ public class CTC_Plugins extends AbstractContextual implements MamutPlugin
 			"logService", this.getContext().getService(LogService.class));
 	}
 
+	/** opens the dialog of the track crops export, and runs the export
+	    provided params were harvested successfully */
+	private void cropsExporter()
+	{
+		this.getContext().getService(CommandService.class).run(
+			TrackCropsExporterPlugin.class, true,
+			"projectModel", projectModel,
+			"logService", this.getContext().getService(LogService.class));
+	}
+
+	/** opens the dialog to choose the shards of the export, and merges them */
+	private void shardsMerger()
+	{
+		this.getContext().getService(CommandService.class).run(
+			MergeShardsPlugin.class, true,
+			"logService", this.getContext().getService(LogService.class));
+	}
+
 
 	private void TRAreviewer()
 	{
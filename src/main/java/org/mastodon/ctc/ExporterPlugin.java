@@ -34,37 +34,46 @@ import javax.swing.BoxLayout;
 
 import org.jhotdraw.samples.svg.gui.ProgressIndicator;
 
+import ij.ImagePlus;
+
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
 import org.scijava.log.LogService;
 import org.scijava.command.Command;
 import org.scijava.command.DynamicCommand;
 import org.scijava.command.CommandService;
 import org.scijava.module.MutableModuleItem;
+import org.scijava.module.DefaultMutableModuleItem;
 import org.scijava.plugin.Plugin;
 import org.scijava.plugin.Parameter;
 import org.scijava.widget.FileWidget;
 
 import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.Interval;
 import net.imglib2.RealInterval;
-import net.imglib2.RealPoint;
 
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.planar.PlanarImgFactory;
 import net.imglib2.img.Img;
-import net.imglib2.Cursor;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
 import org.mastodon.mamut.ProjectModel;
 import org.mastodon.mamut.model.Spot;
-import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.spatial.SpatioTemporalIndex;
@@ -72,11 +81,29 @@ import org.mastodon.collection.RefIntMap;
 import org.mastodon.collection.RefMaps;
 
 import org.mastodon.ctc.util.ButtonHandler;
+import org.mastodon.ctc.util.CellGridCopier;
+import org.mastodon.ctc.util.ChunkedImgWriter;
+import org.mastodon.ctc.util.DirectTiffWriter;
+import org.mastodon.ctc.util.ExportCheckpoint;
+import org.mastodon.ctc.util.ExportManifest;
+import org.mastodon.ctc.util.ExportOutput;
+import org.mastodon.ctc.util.ExportPlan;
+import org.mastodon.ctc.util.ImgBufferPool;
+import org.mastodon.ctc.util.ImgProviders;
+import org.mastodon.ctc.util.LabelPyramid;
+import org.mastodon.ctc.util.LabelOverlaps;
+import org.mastodon.ctc.util.LineageBuilder;
+import org.mastodon.ctc.util.MarkersPlanesStack;
+import org.mastodon.ctc.util.MarkersRenderer;
 import org.mastodon.ctc.util.ParallelImgSaver;
+import org.mastodon.ctc.util.RegionOfInterest;
+import org.mastodon.ctc.util.RemappableTrackRecords;
+import org.mastodon.ctc.util.ShardState;
+import org.mastodon.ctc.util.SpotRecord;
+import org.mastodon.ctc.util.TimePointInFlight;
 import org.mastodon.ctc.auxPlugins.TRAMarkersProvider;
-import net.celltrackingchallenge.measures.TrackRecords;
 
-@Plugin( type = Command.class, name = "CTC format exporter @ Mastodon" )
+@Plugin( type = Command.class, name = "CTC format exporter @ Mastodon", initializer = "addRawChannelsInputs" )
 public class ExporterPlugin <T extends NativeType<T> & RealType<T>>
 extends DynamicCommand
 {
@@ -107,6 +134,10 @@ extends DynamicCommand
 	           initializer = "encodeImgSourceChoices", choices = {})
 	public String imgSourceChoice = "";
 
+	@Parameter(label = "Export at this resolution level:", min="0",
+	           description = "Level of the image source's resolution pyramid, 0 is the full resolution, higher levels are coarser.")
+	int exportMipLevel = 0;
+
 	@Parameter(label = "Export from this time point:", min="0")
 	Integer timeFrom;
 
@@ -138,6 +169,27 @@ extends DynamicCommand
 		this.unresolveInput("timeTill");
 	}
 
+	/** prefix of the names of the dynamically added inputs, one per image source,
+	    that choose the sources (channels) for the raw images export */
+	static final String RAW_CHANNEL_INPUT = "rawChannel";
+
+	void addRawChannelsInputs()
+	{
+		final ArrayList<SourceAndConverter<?>> mSources = projectModel.getSharedBdvData().getSources();
+		if (mSources.size() < 2) return; //NB: nothing to choose from
+
+		for (int i = 0; i < mSources.size(); ++i)
+		{
+			final DefaultMutableModuleItem<Boolean> item
+				= new DefaultMutableModuleItem<>(this, RAW_CHANNEL_INPUT+i, Boolean.class);
+			item.setLabel("Raw images also of: "+mSources.get(i).getSpimSource().getName());
+			item.setDescription("Raw images of all chosen views are exported in one pass, with '_ch"+i
+			                   +"' added to their file names. If none is chosen, only raw images of the view above are exported.");
+			item.setValue(this, false);
+			addInput(item);
+		}
+	}
+
 	Source<?> decodeImgSourceChoices()
 	{
 		//some project's view, have to find the right one
@@ -149,6 +201,62 @@ extends DynamicCommand
 		return null;
 	}
 
+	/** one channel of the raw images export */
+	static class RawChannel
+	{
+		RawChannel(final Source<?> source, final int mipLevel, final int timeFrom, final String filenameFormat)
+		{
+			this.imgs = new ImgProviders.ImgProviderFromMastodon(source, mipLevel, timeFrom);
+			this.sourceName = source.getName();
+			this.mipLevel = mipLevel;
+			this.filenameFormat = filenameFormat;
+		}
+
+		final ImgProviders.ImgProvider imgs;
+		final String sourceName;
+		final int mipLevel;
+		final String filenameFormat;
+	}
+
+	/** returns the sources (channels) chosen for the raw images export (or just the 'imgSource'
+	    if none is chosen) together with the file name templates for their images */
+	List<RawChannel> decodeRawChannels(final Source<?> imgSource, final int viewMipLevel,
+	                                   final String outRawImgFilenameFormat)
+	{
+		final ArrayList<SourceAndConverter<?>> mSources = projectModel.getSharedBdvData().getSources();
+		final ArrayList<Integer> chosen = new ArrayList<>(mSources.size());
+		for (int i = 0; i < mSources.size(); ++i)
+			if (getInfo().getInput(RAW_CHANNEL_INPUT+i) != null && Boolean.TRUE.equals(getInput(RAW_CHANNEL_INPUT+i)))
+				chosen.add(i);
+
+		final ArrayList<RawChannel> channels = new ArrayList<>(Math.max(chosen.size(),1));
+		if (chosen.isEmpty())
+		{
+			channels.add( new RawChannel(imgSource, viewMipLevel, timeFrom, outRawImgFilenameFormat) );
+			return channels;
+		}
+
+		for (final int i : chosen)
+		{
+			final Source<?> src = mSources.get(i).getSpimSource();
+			final int mipLevel = Math.max( Math.min(viewMipLevel, src.getNumMipmapLevels()-1), 0 );
+			final String format = chosen.size() == 1 ? outRawImgFilenameFormat : addChannelTag(outRawImgFilenameFormat, i);
+			channels.add( new RawChannel(src, mipLevel, timeFrom, format) );
+			logService.info("Raw images of view    : "+src.getName()+" -> "+format);
+		}
+		return channels;
+	}
+
+	/** inserts "_ch"+channel just before the extension of the file name in the 'filename' */
+	static
+	String addChannelTag(final String filename, final int channel)
+	{
+		final int dot = filename.lastIndexOf('.');
+		final int sep = filename.lastIndexOf(File.separatorChar);
+		if (dot <= sep) return filename+"_ch"+channel;
+		return filename.substring(0,dot)+"_ch"+channel+filename.substring(dot);
+	}
+
 	// ----------------- how to store products -----------------
 	@Parameter(label = "What everything should be exported:",
 	           choices = {
@@ -163,6 +271,32 @@ extends DynamicCommand
 	           description = "Use %d or %04d in the template to denote where numbers or 4-digits-zero-padded numbers will appear.")
 	String filenameTemplateRaw = "t%03d.tif";
 
+	@Parameter(label = "Store the images as:",
+	           choices = {
+	              "TIFF files, one per time point",
+	              "TIFF hyperstack, all time points in one file",
+	              "N5 container, one dataset per time point",
+	              "Zarr container, one dataset per time point"
+	           },
+	           description = "The container (images.n5 or images.zarr) is created in the GT folder, datasets are named after the image file names. "
+	                       + "The blocks of the datasets are written in parallel, and empty blocks are not written at all. "
+	                       + "The hyperstack is named after the image file name without the time point number, "
+	                       + "and all time points are written into it in parallel. A hyperstack larger than 4 GB is written "
+	                       + "as BigTIFF, which Fiji opens only with the Bio-Formats importer (not with File > Open).")
+	String outputFormat = "TIFF files, one per time point";
+
+	@Parameter(label = "Export this region of the images:",
+	           choices = {
+	              "Whole image",
+	              "Bounding box of the selected spots",
+	              "Box given below (in world coordinates)"
+	           })
+	String roiChoice = "Whole image";
+
+	@Parameter(label = "The box as minX,minY,minZ,maxX,maxY,maxZ:",
+	           description = "Only spots with centres inside the box are exported, and images are cropped to the box.")
+	String roiWorldBox = "";
+
 	@Parameter(label = "Squash markers along z-axis into one xy-slice:")
 	boolean doOneZslicePerMarker = false;
 
@@ -176,6 +310,16 @@ extends DynamicCommand
 		getInfo().getMutableInput("outMarkerShape", String.class).setChoices( Arrays.asList(TRAMarkersProvider.availableChoices) );
 	}
 
+	@Parameter(label = "Where the output markers overlap:",
+	           description = "Overlaps are not reported voxel by voxel, only their summary is reported for every time point.",
+	           choices = {}, initializer = "initOverlapsResolution")
+	String overlapsResolution = "";
+
+	void initOverlapsResolution()
+	{
+		getInfo().getMutableInput("overlapsResolution", String.class).setChoices( Arrays.asList(LabelOverlaps.availableChoices) );
+	}
+
 	@Parameter(label = "Set parent to old track in a new track after a gap:",
 	           description = "A gap creates a new track. Enable this to have a parent link between old and new tracks.")
 	boolean setParentAfterGap = false;
@@ -184,10 +328,77 @@ extends DynamicCommand
 	           description = "The first exported time point will be saved as time point 0.")
 	boolean resetTimePointNumbers = true;
 
+	@Parameter(label = "Use the smallest sufficient voxel type for markers:",
+	           description = "Markers are stored in 8, 16 or 32 bits depending on the number of tracks, and the tracks are renumbered "
+	                       + "if their IDs would not fit otherwise (the renumbering is saved next to the lineage txt file, with .idmap suffix).")
+	boolean doSmallestVoxelType = false;
+
+	@Parameter(label = "Add this many downsampled levels of the markers images:", min="0",
+	           description = "Every level halves the resolution (along the finest axes), a voxel takes the most frequent label of its block "
+	                       + "so that no marker vanishes. The levels are stored next to the markers images with _s1, _s2,... suffixes "
+	                       + "(or as such datasets in the container). Not available when rendering plane by plane.")
+	int pyramidLevels = 0;
+
+	@Parameter(label = "Write tracks into the lineage file as soon as they close:",
+	           description = "Only the tracks that are still alive are kept in the memory. The lineage txt file then lists "
+	                       + "the tracks in the order of their closing, and the tracks are never renumbered.")
+	boolean doStreamLineage = false;
+
+	@Parameter(label = "Re-export only images that have changed:",
+	           description = "Compares the images' content with the manifest (saved next to the lineage txt file, with .manifest suffix) "
+	                       + "from the previous export, and writes only the changed or missing images. The lineage txt file is always written.")
+	boolean doIncrementalExport = false;
+
+	@Parameter(label = "Save the state for merging with exports of adjacent time ranges:",
+	           description = "Saves the boundary spots and their tracks next to the lineage txt file (with .shard suffix). "
+	                       + "Exports of adjacent time ranges, e.g., made in parallel, can be then merged into one lineage.")
+	boolean doShardState = false;
+
+	@Parameter(label = "Save a checkpoint every this many minutes:", min="0",
+	           description = "The lineage txt file is then updated to cover the time points with all images written, "
+	                       + "and the progress is saved next to it (with .checkpoint suffix). Zero disables the checkpoints.")
+	int checkpointMinutes = 0;
+
+	@Parameter(label = "Resume the previous export from its checkpoint:",
+	           description = "Time points written before the previous export was stopped (or failed) are skipped, "
+	                       + "provided the export settings are the same.")
+	boolean doResume = false;
+
 	@Parameter(label = "How many images to write in parallel:",
-	           description = "Increase if during the saving the hardware is not saturated.")
+	           description = "Increase if during the saving the hardware is not saturated. "
+	                       + "When adapted to the disk, this is the most that can be used.")
 	int writerThreads = 1;
 
+	@Parameter(label = "Adapt the number of writing threads to the disk:",
+	           description = "Starts with one writing thread, and adds more while they increase the throughput (MB/s), "
+	                       + "or takes some away if the throughput drops. The final number is reported in the log.")
+	boolean doAdaptiveWriters = false;
+
+	@Parameter(label = "Compress TIFF images with this many threads:", min="0",
+	           description = "Images are deflate-compressed, which shrinks the mostly empty markers images a lot. "
+	                       + "The threads are shared by all the writing threads. Zero writes uncompressed images. "
+	                       + "Not available for the hyperstack.")
+	int compressionThreads = 0;
+
+	@Parameter(label = "How many time points to render in parallel:",
+	           description = "Lineage is first established for all time points, and then this many markers images are rendered concurrently.")
+	int renderThreads = 1;
+
+	@Parameter(label = "Render markers plane by plane while saving them:",
+	           description = "Low memory mode: only one z-plane of a markers image is held in the memory, renders in the saving threads.")
+	boolean doPlaneStreaming = false;
+
+	@Parameter(label = "Read raw images block-wise in parallel before saving them:",
+	           description = "Raw images are copied into the memory along their native blocks with the rendering threads, "
+	                       + "while the previous time point is still being saved. Takes more memory.")
+	boolean doRawImgCopying = false;
+
+	@Parameter(label = "Adapt the parallelism to the available memory:",
+	           description = "Before the export starts, its peak memory is estimated from the images sizes and the numbers of threads. "
+	                       + "If it does not fit, the raw images copying is turned off, fewer threads are used, "
+	                       + "or markers are rendered plane by plane. The plan is reported in the log.")
+	boolean doResourcePlanning = true;
+
 
 	@Override
 	public void run()
@@ -197,15 +408,19 @@ extends DynamicCommand
 		final boolean doOutputTRAImages = outputLevel.startsWith("Everything") || outputLevel.startsWith("Tracking") ? true : false;
 		final boolean doOutputRawImages = outputLevel.startsWith("Everything") || outputLevel.startsWith("Raw") ? true : false;
 
-		final int viewMipLevel = 0; //NB: use always the highest resolution
 		final Source<?> imgSource = decodeImgSourceChoices();
 		if (imgSource == null) return;
+		final int viewMipLevel = Math.max( Math.min(exportMipLevel, imgSource.getNumMipmapLevels()-1), 0 );
+		if (viewMipLevel != exportMipLevel)
+			logService.warn("Resolution level "+exportMipLevel+" is not available, using level "+viewMipLevel+" instead.");
 
 		//obtain the output marker's shape...
 		markerShape = TRAMarkersProvider.TRAMarkerFactory(outMarkerShape, imgSource.getVoxelDimensions(), this.getContext().getService(CommandService.class));
 		if (markerShape == null) return;
 		//
 		logService.info("Output marker is      : "+markerShape.printInfo()+", in "+imgSource.getVoxelDimensions().unit());
+		overlapsPolicy = LabelOverlaps.decodePolicy(overlapsResolution);
+		logService.info("Overlapping markers   : "+LabelOverlaps.availableChoices[overlapsPolicy]);
 
 		//define some shortcut variables
 		final Model model = projectModel.getModel();
@@ -215,45 +430,146 @@ extends DynamicCommand
 		logService.info("Time points span is   : "+timeFrom+"-"+timeTill);
 		logService.info("Output folder is      : "+outputFolder.getAbsolutePath());
 
-		//aux stuff to create and name the output files
-		final PlanarImgFactory<T> outImgFactory = new PlanarImgFactory<T>(outImgVoxelType);
+		//aux stuff to name the output files
+		final boolean doStackOutput = !doOutputOnlyTXTfile && outputFormat.startsWith("TIFF hyperstack");
 		final String outImgFilenameFormat = outputFolder.getAbsolutePath()
 		                                  + File.separator
-		                                  + filenameTemplate;
+		                                  + (doStackOutput ? ExportOutput.stackFilename(filenameTemplate) : filenameTemplate);
 		final String outRawImgFilenameFormat = outputFolder.getAbsolutePath()
 		                                     + File.separator
-		                                     + filenameTemplateRaw;
+		                                     + (doStackOutput ? ExportOutput.stackFilename(filenameTemplateRaw) : filenameTemplateRaw);
 
 		//some more shortcuts to template image params
-		final RandomAccessibleInterval<?> outImgTemplate = imgSource.getSource(timeFrom,viewMipLevel);
-		if (outImgDims != outImgTemplate.numDimensions())
+		final RandomAccessibleInterval<?> fullImgTemplate = imgSource.getSource(timeFrom,viewMipLevel);
+		if (outImgDims != fullImgTemplate.numDimensions())
 		{
 			//reset dimensionality-based attributes to become compatible again
-			outImgDims = outImgTemplate.numDimensions();
+			outImgDims = fullImgTemplate.numDimensions();
 			resLen  = new double[outImgDims];
-			spotMin = new long[outImgDims];
-			spotMax = new long[outImgDims];
-			radii = new double[2*outImgDims];
-			coord = new RealPoint(outImgDims);
 		}
 
-		//update voxel sizes
+		//update voxel sizes, and scale them to the chosen resolution level
 		imgSource.getVoxelDimensions().dimensions(resLen);
+		if (viewMipLevel > 0)
+		{
+			final AffineTransform3D fullResTransform = new AffineTransform3D();
+			final AffineTransform3D mipLevelTransform = new AffineTransform3D();
+			imgSource.getSourceTransform(timeFrom,0, fullResTransform);
+			imgSource.getSourceTransform(timeFrom,viewMipLevel, mipLevelTransform);
+			for (int d=0; d < outImgDims; ++d)
+				resLen[d] *= axisLength(mipLevelTransform,d) / axisLength(fullResTransform,d);
+			logService.info("Resolution level      : "+viewMipLevel);
+		}
 		logService.info("Considering resolution: "+resLen[0]
 		               +" x "+resLen[1]+" x "+resLen[2]
 		               +" "+imgSource.getVoxelDimensions().unit()+"/px");
 
-		final ParallelImgSaver saver = new ParallelImgSaver(writerThreads);
+		//some more shortcuts to template voxel params
+		//transformation used
+		final AffineTransform3D coordTransImg2World = new AffineTransform3D();
+		imgSource.getSourceTransform(timeFrom,viewMipLevel, coordTransImg2World);
+		final AffineTransform3D coordTransWorld2Img = coordTransImg2World.inverse();
+
+		//possibly restrict the export only to a region of interest
+		final boolean doROI = !roiChoice.startsWith("Whole");
+		final double[][] roiWorld = !doROI ? null : roiChoice.startsWith("Bounding") ?
+			RegionOfInterest.boundingBoxOf(projectModel.getSelectionModel().getSelectedVertices(), logService) :
+			RegionOfInterest.parse(roiWorldBox, logService);
+		if (doROI && roiWorld == null) return; //NB: the reason has been already reported
+		final Interval roiImg = doROI ? RegionOfInterest.toImgInterval(roiWorld, coordTransWorld2Img, fullImgTemplate) : null;
+		if (doROI && roiImg == null)
+		{
+			logService.error("The region of interest does not intersect with the image.");
+			return;
+		}
+
+		final RandomAccessibleInterval<?> outImgTemplate;
+		if (doROI)
+		{
+			logService.info("Region of interest    : "+Util.printCoordinates(roiWorld[0])+" -> "+Util.printCoordinates(roiWorld[1])
+			               +" (world), "+Util.printInterval(roiImg)+" (image)");
+			outImgTemplate = Views.zeroMin( Views.interval(fullImgTemplate, roiImg) );
+
+			//shift the output images' coordinates to the ROI's corner
+			final AffineTransform3D roiShift = new AffineTransform3D();
+			roiShift.setTranslation(-roiImg.min(0), -roiImg.min(1), outImgDims > 2 ? -roiImg.min(2) : 0);
+			coordTransWorld2Img.preConcatenate(roiShift);
+		}
+		else outImgTemplate = fullImgTemplate;
+
+		final List<RawChannel> rawChannels = doOutputRawImages ?
+			decodeRawChannels(imgSource, viewMipLevel, outRawImgFilenameFormat) : new ArrayList<>(0);
 		final int outputTimeCorrection = resetTimePointNumbers? timeFrom : 0;
 
 		//debug report
-		outImgTemplate.dimensions(spotMin);
-		logService.info("Output image size     : "+Util.printCoordinates(spotMin));
+		final long[] outImgSize = new long[outImgDims];
+		outImgTemplate.dimensions(outImgSize);
+		logService.info("Output image size     : "+Util.printCoordinates(outImgSize));
+
+		//where to write the images: either TIFF files or datasets of one N5/Zarr container
+		final boolean doChunkedOutput = !doOutputOnlyTXTfile && !outputFormat.startsWith("TIFF");
+
+		//make sure the images in flight fit into the memory, before any work starts
+		final ArrayList<RandomAccessibleInterval<?>> rawImgs = new ArrayList<>(rawChannels.size());
+		for (final RawChannel channel : rawChannels) rawImgs.add( channel.imgs.getImage(timeFrom) );
+		final ExportPlan.ImagesSizes imgSizes = doOutputOnlyTXTfile ? null
+			: new ExportPlan.ImagesSizes(outImgSize, doOutputTRAImages ? outImgVoxelType : null, pyramidLevels > 0, rawImgs, roiImg);
+		//NB: the plan starts from the user's settings, which are left untouched
+		final ExportPlan plan = new ExportPlan(renderThreads, writerThreads, doPlaneStreaming, doRawImgCopying);
+		if (doResourcePlanning && !doOutputOnlyTXTfile)
+			plan.adaptToMemory(imgSizes, doChunkedOutput, timeTill-timeFrom+1, outputFolder, logService);
+
+		//NB: ImageJ cannot read BigTIFF, tell it before any work starts
+		if (doStackOutput && imgSizes.needsBigTiffStack(timeTill-timeFrom+1))
+			logService.warn("The hyperstack will be larger than 4 GB and is thus written as BigTIFF, which Fiji opens "
+				+ "only with the Bio-Formats importer, not with File > Open (IJ.openImage) nor with this plugin's image loaders. "
+				+ "Consider exporting one TIFF file per time point, or a region of interest.");
+
+		//NB: the saver's queue can hold SAVER_QUEUE_LENGTH time points, regardless of how many images they consist of
+		final ExportOutput output;
+		if (doOutputOnlyTXTfile) output = null;
+		else if (doChunkedOutput)
+		{
+			final ChunkedImgWriter chunkedWriter = ExportOutput.openChunkedWriter(outputFolder, outputFormat, plan, resLen, logService);
+			if (chunkedWriter == null) return; //NB: the reason has been already reported
+			output = new ExportOutput(chunkedWriter, logService);
+		}
+		else
+		{
+			final ParallelImgSaver saver = new ParallelImgSaver(plan.writerThreads,
+				ExportPlan.SAVER_QUEUE_LENGTH * Math.max(imgSizes.timePointBytes(),1));
+			//NB: images that the direct writer does not support are written by ImageJ
+			saver.setTiffWriter( new DirectTiffWriter(compressionThreads) );
+			saver.setAdaptiveConcurrency(doAdaptiveWriters);
+			output = new ExportOutput(saver, logService);
+		}
+
+		final boolean doPlanes = plan.doPlaneStreaming && !doChunkedOutput;
+		if (plan.doPlaneStreaming && doChunkedOutput)
+			logService.warn("Rendering plane by plane is not available with "+outputFormat+", whole images are rendered.");
+
+		//the coarser levels of the markers images, downsampled from the rendered ones
+		long[][] pyramidFactors = null;
+		if (pyramidLevels > 0 && doOutputTRAImages)
+		{
+			if (doPlanes)
+				logService.warn("Downsampled levels are not available when rendering plane by plane, no levels are exported.");
+			else
+			{
+				pyramidFactors = LabelPyramid.levelFactors(resLen, outImgSize, pyramidLevels);
+				for (int l = 0; l < pyramidFactors.length; ++l)
+					logService.info("Markers level "+(l+1)+"      : downsampled by "+Util.printCoordinates(pyramidFactors[l]));
+			}
+		}
+		final long[][] levelsFactors = pyramidFactors;
 
 		//PROGRESS BAR stuff
 		final ButtonHandler pbtnHandler = new ButtonHandler();
 
-		final ProgressIndicator pbar = new ProgressIndicator("Time points processed: ", "", 0, timeTill-timeFrom+1, false);
+		//NB: the first half of the bar is for the lineage pass, the second half is for the images
+		final int timePointsCount = timeTill-timeFrom+1;
+		final ProgressIndicator pbar = new ProgressIndicator("Time points processed: ", "", 0,
+			doOutputOnlyTXTfile ? timePointsCount : 2*timePointsCount, false);
 		final Button pbtn = new Button("Stop exporting");
 		pbtn.setMaximumSize(new Dimension(150, 40));
 		pbtn.addActionListener(pbtnHandler);
@@ -268,328 +584,342 @@ extends DynamicCommand
 		pbframe.setVisible(true);
 		//PROGRESS BAR stuff
 
-		//some more shortcuts to template voxel params
-		//transformation used
-		final AffineTransform3D coordTransImg2World = new AffineTransform3D();
-		imgSource.getSourceTransform(timeFrom,viewMipLevel, coordTransImg2World);
-		final AffineTransform3D coordTransWorld2Img = coordTransImg2World.inverse();
-
 		//aux conversion data
-		final TrackRecords tracks = new TrackRecords();
+		final RemappableTrackRecords tracks = new RemappableTrackRecords();
 
-		//map: Mastodon's spotID to CTC's trackID
-		RefIntMap< Spot > knownTracks = RefMaps.createRefIntMap( modelGraph.vertices(), -1, 500 );
+		//map: Mastodon's spotID to CTC's trackID with which the spot shall be rendered
+		final RefIntMap< Spot > spotLabels = RefMaps.createRefIntMap( modelGraph.vertices(), -1, 500 );
 
-		//aux Mastodon data: shortcuts and caches/proxies
+		//aux Mastodon data: shortcuts and the lineage walker
 		final SpatioTemporalIndex< Spot > spots = model.getSpatioTemporalIndex();
-		final Link lRef = modelGraph.edgeRef();              //link reference
-		final Spot sRef = modelGraph.vertices().createRef(); //spot reference
-		final Spot fRef = modelGraph.vertices().createRef(); //some spot's future buddy
+		final LineageBuilder lineage = new LineageBuilder(modelGraph, spots, timeFrom, timeTill, setParentAfterGap, logService);
+		if (doROI) lineage.setRegionOfInterest(roiWorld[0], roiWorld[1]);
+
+		//the markers rendering workers, and the time points that are currently being rendered
+		final MarkersRenderer renderer = new MarkersRenderer(resLen, doOneZslicePerMarker, overlapsPolicy, logService);
+		final ForkJoinPool renderers = new ForkJoinPool( plan.renderThreads );
+		final ArrayDeque<TimePointInFlight<T>> inFlight = new ArrayDeque<>( plan.renderThreads );
+
+		//the recycled markers images: enough for those being rendered, waiting in the saver's queue and being saved
+		final ImgBufferPool<MarkersRenderer.MarkersBuffer<T>> buffers = new ImgBufferPool<>( plan.timePointsInFlight(),
+			() -> new MarkersRenderer.MarkersBuffer<>( new PlanarImgFactory<T>(outImgVoxelType).create(outImgTemplate) ) );
 
 		try
 		{
 
-		//over all time points
+		//the closed tracks can be written right away
+		final String outTXTfilename = String.format("%s%s%s", outputFolder.getAbsolutePath(),File.separator,filenameTXT);
+		if (doStreamLineage && (doOutputOnlyTXTfile || doOutputTRAImages))
+		{
+			tracks.startStreaming(outTXTfilename, -outputTimeCorrection);
+			lineage.setClosedTracksHandler(tracks::closeTrack);
+		}
+
+		//1st phase: over all time points, establish the CTC tracks and their labels
+		int lastTime = timeFrom-1;
 		for (int time = timeFrom; time <= timeTill && isCanceled() == false && !pbtnHandler.buttonPressed(); ++time)
 		{
-			final String outImgFilename    = String.format(outImgFilenameFormat,    time-outputTimeCorrection);
-			final String outRawImgFilename = String.format(outRawImgFilenameFormat, time-outputTimeCorrection);
 			if (doOutputOnlyTXTfile)
 				logService.info("Processing time point: "+time);
-			else
-			{
-				if (doOutputRawImages)
-					logService.info("Populating image: "+outRawImgFilename);
-				if (doOutputTRAImages)
-					logService.info("Populating image: "+outImgFilename);
-			}
 
-			final Img<T> outImg
-				= doOutputTRAImages? outImgFactory.create(outImgTemplate) : null;
+			lineage.processTimePoint(time, tracks, doOutputTRAImages || doShardState ? spotLabels : null);
+			lastTime = time;
+
+			pbar.setProgress(time+1-timeFrom);
+		}
+		tracks.finishStreaming();
+
+		//now that all tracks are known, the markers' voxel type can be decided
+		if (doOutputTRAImages && doSmallestVoxelType)
+			chooseSmallestVoxelType(tracks);
+
+		//NB: collected before the 2nd phase, which forgets the spots' labels
+		final ShardState shardState = doShardState && (doOutputOnlyTXTfile || doOutputTRAImages) ?
+			ShardState.collect(modelGraph, lineage, spotLabels, tracks, timeFrom, lastTime, outputTimeCorrection,
+				doOutputTRAImages && outputFormat.startsWith("TIFF files") ? outImgFilenameFormat : null) : null;
+
+		//one hyperstack (per image kind) has a slot for every time point
+		if (doStackOutput)
+		{
+			output.useStacks(timeFrom, lastTime-timeFrom+1);
+			if (doIncrementalExport)
+				logService.warn("Incremental export is not available with "+outputFormat+", all images are written.");
+		}
 
-			//over all spots in the current time point
-			for ( final Spot spot : spots.getSpatialIndex( time ) )
+		//the images' hashes from the previous export, and for this one
+		final ExportManifest manifest = doIncrementalExport && !doOutputOnlyTXTfile && !doStackOutput ?
+			new ExportManifest(
+				new File(String.format("%s%s%s.manifest", outputFolder.getAbsolutePath(),File.separator,filenameTXT)),
+				hashSettings(outImgSize, coordTransWorld2Img) ) : null;
+		if (manifest != null)
+			logService.info("Incremental export    : "+(manifest.hasPreviousExport() ? "only changed images are written"
+			                                                                      : "no usable previous export, all images are written"));
+
+		//the progress of the previous export, and of this one
+		final ExportCheckpoint checkpoint = (checkpointMinutes > 0 || doResume) && !doOutputOnlyTXTfile && !doStackOutput ?
+			new ExportCheckpoint( new File(outTXTfilename+".checkpoint"),
+				hashCheckpointSettings(hashSettings(outImgSize, coordTransWorld2Img), outImgFilenameFormat,
+				                       outRawImgFilenameFormat, outputTimeCorrection) ) : null;
+		final String checkpointedLineage = doOutputTRAImages ? outTXTfilename : null;
+		int firstTime = timeFrom;
+		//NB: the written markers images must agree with the current project, which is checked with their spots
+		if (doResume && checkpoint != null && checkpoint.getPreviouslyWrittenTill() != ExportCheckpoint.NONE
+		    && checkpoint.getPreviouslyWrittenTill() <= lastTime
+		    && checkpoint.resume(timeFrom, time -> !doOutputTRAImages ? 0
+		          : SpotRecord.hashTimePoint(time, SpotRecord.collect(lineage.spotsOf(time), spotLabels, tracks, markerShape))))
+		{
+			firstTime = checkpoint.getPreviouslyWrittenTill()+1;
+			logService.info("Resuming export       : time points till "+(firstTime-1)+" are already written");
+		}
+		else if (doResume)
+			logService.warn("No usable checkpoint of the previous export, or the project has changed since, exporting from the beginning.");
+		if (checkpoint != null && firstTime == timeFrom)
+			checkpoint.imagesQueued(firstTime-1, 0); //NB: nothing is written yet
+		if (output != null) output.watchWith(checkpoint, manifest);
+		long lastCheckpointMillis = System.currentTimeMillis();
+
+		//2nd phase: over all (lineage-processed) time points, render and save the images
+		int queuedTill = firstTime-1;
+		if (!doOutputOnlyTXTfile)
+		for (int time = firstTime; time <= lastTime && isCanceled() == false && !pbtnHandler.buttonPressed(); ++time)
+		{
+			final TimePointInFlight<T> tp = new TimePointInFlight<>(time,
+				output.outputPath( String.format(outImgFilenameFormat, time-outputTimeCorrection) ));
+
+			for (final RawChannel channel : rawChannels)
 			{
-				//find how many back- and forward-references (time-wise) this spot has
-				int countBackwardLinks = 0;
-				int countForwardLinks = 0;
+				final TimePointInFlight.RawImg raw = new TimePointInFlight.RawImg(channel.imgs,
+					output.outputPath( String.format(channel.filenameFormat, time-outputTimeCorrection) ));
 
-				for (int n=0; n < spot.incomingEdges().size(); ++n)
-				{
-					spot.incomingEdges().get(n, lRef).getSource( sRef );
-					if (sRef.getTimepoint() < time && sRef.getTimepoint() >= timeFrom) ++countBackwardLinks;
-					if (sRef.getTimepoint() > time && sRef.getTimepoint() <= timeTill)
-					{
-						++countForwardLinks;
-						fRef.refTo( sRef );
-					}
-				}
-				for (int n=0; n < spot.outgoingEdges().size(); ++n)
-				{
-					spot.outgoingEdges().get(n, lRef).getTarget( sRef );
-					if (sRef.getTimepoint() < time && sRef.getTimepoint() >= timeFrom) ++countBackwardLinks;
-					if (sRef.getTimepoint() > time && sRef.getTimepoint() <= timeTill)
-					{
-						++countForwardLinks;
-						fRef.refTo( sRef );
-					}
-				}
+				final boolean doRawImg = manifest == null || manifest.update(raw.filename, hashRawImg(channel, time, roiImg));
+				logService.info((doRawImg ? "Populating image: " : "Unchanged image : ")+raw.filename);
+				if (!doRawImg) continue;
 
-				//process events:
-				//
-				//feasibility test: too many joining paths? (aka merging event)
-				if (countBackwardLinks > 1)
+				if (plan.doRawImgCopying)
 				{
-					logService.error("spot "+spot.getLabel()
-					                  +" has multiple ("+countBackwardLinks
-					                  +") older-time-point links!");
-
-					//ideally should stop here, but we opted to finish all tracks
-					//that join this one, and start the new (parentID = 0) track here
-
-					//list backward links and just forget them (aka delete them from knownTracks)
-					for (int n=0; n < spot.incomingEdges().size(); ++n)
-					{
-						spot.incomingEdges().get(n, lRef).getSource( sRef );
-						if (sRef.getTimepoint() < time && sRef.getTimepoint() >= timeFrom)
-							knownTracks.remove( sRef );
-					}
-					for (int n=0; n < spot.outgoingEdges().size(); ++n)
-					{
-						spot.outgoingEdges().get(n, lRef).getTarget( sRef );
-						if (sRef.getTimepoint() < time && sRef.getTimepoint() >= timeFrom)
-							knownTracks.remove( sRef );
-					}
-
-					//a new track from this spot must be existing because some from the backward
-					//links must have created it, and creating it means either it is a single-follower
-					//in which case we must remove this track (just abandon it), or it is a
-					//one-from-many-follower (division) in which case the track has just been started
-					//(which is OK) and has parent info set (which is not desired now); in the latter
-					//case and since we cannot modify existing track, we just delete it
-					//
-					//and by re-setting backward links, new track will start just in the code below
-					countBackwardLinks = 0;
-
-					if (tracks.getStartTimeOfTrack( knownTracks.get(spot) ) == time)
-					{
-						//the track 'ID' would have been just starting here,
-						//re-starting really means to remove it first
-						tracks.removeTrack( knownTracks.get(spot) );
-						logService.trace(spot.getLabel()+": will supersede track ID "+knownTracks.get(spot));
-					}
-					else
-					{
-						logService.trace(spot.getLabel()+": will just leave the track ID "+knownTracks.get(spot));
-					}
+					final int copiedTime = time;
+					raw.copy = renderers.submit( () -> CellGridCopier.copyOrView(channel.imgs.getImage(copiedTime), roiImg) );
 				}
+				tp.rawImgs.add(raw);
+			}
+			if (doOutputTRAImages)
+			{
+				//NB: the spots are gathered here (in this thread) so that the renderers need not touch the graph
+				final List<SpotRecord> spotsToRender = SpotRecord.collect(lineage.spotsOf(time), spotLabels, tracks, markerShape);
+				tp.contentHash = SpotRecord.hashTimePoint(time, spotsToRender);
 
-				//spot with no backward links?
-				if (countBackwardLinks == 0)
-				{
-					//start a new track
-					knownTracks.put( spot, tracks.startNewTrack(time) );
-					logService.trace(spot.getLabel()+": started track ID "+knownTracks.get(spot)+" at time "+spot.getTimepoint());
-				}
-				else //countBackwardLinks == 1
-				{
-					//prolong the existing track
-					tracks.updateTrack( knownTracks.get(spot), time );
-					logService.trace(spot.getLabel()+": updated track ID "+knownTracks.get(spot)+" at time "+spot.getTimepoint());
-				}
+				final boolean doTRAImg = manifest == null || manifest.update(tp.outImgFilename, tp.contentHash);
+				logService.info((doTRAImg ? "Populating image: " : "Unchanged image : ")+tp.outImgFilename);
 
-				//multiple "followers"? feels like a division...
-				if (countForwardLinks > 1)
+				if (doTRAImg && doPlanes)
+					tp.outPlanes = new ImagePlus(tp.outImgFilename, new MarkersPlanesStack(renderer,
+						outImgVoxelType.getBitsPerPixel(), time, outImgSize, coordTransWorld2Img, spotsToRender) );
+				else if (doTRAImg)
 				{
-					//list forward links and create them at their respective times,
-					//mark spot as their parent
-					for (int n=0; n < spot.incomingEdges().size(); ++n)
-					{
-						spot.incomingEdges().get(n, lRef).getSource( sRef );
-						if (sRef.getTimepoint() > time && sRef.getTimepoint() <= timeTill)
-						if (knownTracks.get(sRef) == -1)
-						{
-							knownTracks.put(sRef, tracks.startNewTrack( sRef.getTimepoint(), knownTracks.get(spot) ) );
-							logService.trace(sRef.getLabel()+": started track ID "+knownTracks.get(sRef)+" at time "+sRef.getTimepoint());
-						}
-					}
-					for (int n=0; n < spot.outgoingEdges().size(); ++n)
-					{
-						spot.outgoingEdges().get(n, lRef).getTarget( sRef );
-						if (sRef.getTimepoint() > time && sRef.getTimepoint() <= timeTill)
-						if (knownTracks.get(sRef) == -1)
-						{
-							knownTracks.put(sRef, tracks.startNewTrack( sRef.getTimepoint(), knownTracks.get(spot) ) );
-							logService.trace(sRef.getLabel()+": started track ID "+knownTracks.get(sRef)+" at time "+sRef.getTimepoint());
-						}
-					}
+					final int renderedTime = time;
+					final MarkersRenderer.MarkersBuffer<T> buffer = buffers.acquire();
+					tp.outBuffer = buffer;
+					tp.outImg = renderers.submit( () -> {
+						final Img<T> img = renderer.render(renderedTime, buffer, coordTransWorld2Img, spotsToRender);
+						if (levelsFactors != null) tp.outLevels = LabelPyramid.downsampleLevels(img, levelsFactors);
+						return img;
+					} );
 				}
-				else if (countForwardLinks == 1)
-				{
-					//just one follower, is he right in the next frame?
-					if (fRef.getTimepoint() == time+1)
-					{
-						//yes, just replace myself in the map
-						if (knownTracks.get(fRef) == -1)
-							knownTracks.put( fRef, knownTracks.get(spot) );
-					}
-					else
-					{
-						//no, start a new track for the follower
-						if (knownTracks.get(fRef) == -1)
-						{
-							knownTracks.put( fRef, tracks.startNewTrack( fRef.getTimepoint(), (setParentAfterGap ? knownTracks.get(spot) : 0) ) );
-							logService.trace(fRef.getLabel()+": started track ID "+knownTracks.get(fRef)+" at time "+fRef.getTimepoint());
-						}
-					}
-				}
-
-				//finally, render the spot into the current image with its CTC's trackID
-				if (doOutputTRAImages)
-					renderSpot( outImg, coordTransWorld2Img, spot, knownTracks.get(spot) );
-
-				//forget the currently closed track
-				knownTracks.remove( spot );
-
-				//debug: report currently knownTracks
-				/*
-				for (final Spot s : knownTracks.keySet())
-					System.out.println(s.getLabel()+" -> "+knownTracks.get(s));
-				*/
 			}
+			inFlight.add(tp);
+			queuedTill = time;
 
-			//save the image
-			//add, or wait until the list of images to be saved is small
-			try
+			//save the oldest image(s) once there is enough of them being rendered
+			if (inFlight.size() >= plan.renderThreads)
 			{
-				if (doOutputRawImages)
-					saver.addImgSaveRequestOrBlockUntilLessThan(2,
-						(RandomAccessibleInterval)imgSource.getSource(time,0),outRawImgFilename);
-				if (doOutputTRAImages)
-					saver.addImgSaveRequestOrBlockUntilLessThan(2, outImg,outImgFilename);
+				output.saveTimePoint(inFlight.poll(), buffers, roiImg, levelsFactors);
+				pbar.setProgress(timePointsCount +time+1-timeFrom-inFlight.size());
 			}
-			catch (InterruptedException e) {
-				this.cancel("cancel requested");
+
+			if (checkpoint != null && checkpointMinutes > 0
+			    && System.currentTimeMillis() - lastCheckpointMillis >= checkpointMinutes*60000L)
+			{
+				reportCheckpoint( checkpoint.save(tracks, checkpointedLineage, -outputTimeCorrection, false) );
+				lastCheckpointMillis = System.currentTimeMillis();
 			}
+		}
 
-			pbar.setProgress(time+1-timeFrom);
+		//save the (possibly still being rendered) remaining images
+		while (!inFlight.isEmpty())
+		{
+			output.saveTimePoint(inFlight.poll(), buffers, roiImg, levelsFactors);
+			pbar.setProgress(timePointsCount +lastTime+1-timeFrom-inFlight.size());
 		}
 
 		if (!doOutputOnlyTXTfile)
 		{
 			logService.info("Finishing, but saving first already prepared images...");
-			saver.closeAllWorkers_FinishFirstAllUnsavedImages();
+			output.finishAll();
+			final ParallelImgSaver saver = output.saver;
+			if (saver != null && doAdaptiveWriters)
+				logService.info("Images were saved with: "+saver.reportConcurrency());
+			if (saver != null && saver.getFailuresCount() > 0)
+				logService.error(saver.getFailuresCount()+" image(s) could not be written, the first error: "
+				                 +saver.getFirstFailure().getMessage());
+			//NB: the images that could not be written are not in the manifest, and will be written next time
+			if (manifest != null) manifest.save();
+		}
+
+		//not all time points were exported: keep the checkpoint (and the lineage that agrees with it) for resuming
+		final boolean isIncomplete = !doOutputOnlyTXTfile && queuedTill < lastTime;
+		if (checkpoint != null && isIncomplete)
+		{
+			reportCheckpoint( checkpoint.save(tracks, checkpointedLineage, -outputTimeCorrection, true) );
+			logService.info("Export is incomplete, it can be resumed after time point "+checkpoint.getWrittenTill()+".");
 		}
 
-		//finish the export by creating the supplementary .txt file
-		if (doOutputOnlyTXTfile || doOutputTRAImages)
+		//finish the export by creating the supplementary .txt file (unless it was streamed already)
+		if ((doOutputOnlyTXTfile || doOutputTRAImages) && !(checkpoint != null && isIncomplete))
 		{
-			tracks.exportToFile(
-			    String.format("%s%s%s", outputFolder.getAbsolutePath(),File.separator,filenameTXT),
-			    -outputTimeCorrection );
+			if (tracks.isStreamed())
+				logService.info("Lineage was streamed : "+outTXTfilename);
+			else if (tracks.isRemapped())
+			{
+				tracks.exportRemappedToFile(outTXTfilename, -outputTimeCorrection);
+				tracks.exportRemappingToFile(outTXTfilename+".idmap");
+			}
+			else
+				tracks.exportToFile(outTXTfilename, -outputTimeCorrection);
+
+			if (shardState != null)
+			{
+				shardState.lineageFile = outTXTfilename;
+				shardState.save( new File(outTXTfilename+".shard") );
+				logService.info("Shard state saved    : "+outTXTfilename+".shard");
+			}
 		}
+		if (checkpoint != null && !isIncomplete) checkpoint.delete();
 
 		}
 		catch (InterruptedException e) {
+			this.cancel("cancel requested");
+			e.printStackTrace();
+		}
+		catch (IOException e) {
+			logService.error("Writing of the output files failed: "+e.getMessage());
+			e.printStackTrace();
+		}
+		catch (ExecutionException e) {
+			logService.error("Rendering of the markers failed: "+e.getMessage());
 			e.printStackTrace();
 		}
 		finally
 		{
+			renderers.shutdownNow();
+			//NB: does nothing to the writers that have been closed already
+			if (output != null) output.closeAll();
+
 			pbtn.removeActionListener(pbtnHandler);
 			pbframe.dispose();
 
 			//release the aux "binder" objects
-			modelGraph.vertices().releaseRef(fRef);
-			modelGraph.vertices().releaseRef(sRef);
-			modelGraph.releaseRef(lRef);
+			lineage.release();
 		}
 
 		logService.info("Done.");
 	}
 
+	private
+	void reportCheckpoint(final int writtenTill)
+	{
+		if (writtenTill != ExportCheckpoint.NONE)
+			logService.info("Checkpoint saved      : all images till time point "+writtenTill+" are written");
+	}
 
-	//some shortcut variables worth remembering
-	private int outImgDims = -1;
-	private double[] resLen;        //aux 1px lengths (in some physical unit)
-	private long[] spotMin,spotMax; //image coordinates (in voxel units)
-	private double[] radii;         //BBox corners relative to spot's center
-	private RealPoint coord;        //aux tmp coordinate
-	private TRAMarkersProvider.intersectionDecidable markerShape;
+	/** hash of all the settings that influence the content of the exported images */
+	private
+	long hashSettings(final long[] outImgSize, final AffineTransform3D transform)
+	{
+		long h = ExportManifest.mix(ExportManifest.HASH_SEED, imgSourceChoice);
+		h = ExportManifest.mix(h, outImgVoxelType.getClass().getName());
+		h = ExportManifest.mix(h, markerShape.printInfo());
+		h = ExportManifest.mix(h, LabelOverlaps.availableChoices[overlapsPolicy]);
+		h = ExportManifest.mix(h, doOneZslicePerMarker ? 1 : 0);
+		h = ExportManifest.mix(h, Arrays.toString(outImgSize));
+		h = ExportManifest.mix(h, Arrays.toString(resLen));
+		h = ExportManifest.mix(h, pyramidLevels);
+		return ExportManifest.mix(h, transform.toString());
+	}
+
+	/** hash of the raw image of the 'channel' at the given 'time', cropped to the 'roiImg'
+	    (or whole if null); the image content itself is not read, it is identified with
+	    its source, the source's resolution level and the raw export settings */
+	private
+	long hashRawImg(final RawChannel channel, final int time, final Interval roiImg)
+	{
+		long h = ExportManifest.mix(ExportManifest.HASH_SEED, time);
+		h = ExportManifest.mix(h, channel.sourceName);
+		h = ExportManifest.mix(h, channel.mipLevel);
+		h = ExportManifest.mix(h, roiImg != null ? Util.printInterval(roiImg) : "whole");
+		return ExportManifest.mix(h, outputFormat);
+	}
 
+	/** hash of the export settings under which the checkpoint is valid */
 	private
-	void renderSpot(final Img<T> img,final AffineTransform3D transform, //world2img transform
-	                final Spot spot, final int label)
+	long hashCheckpointSettings(final long settingsHash, final String outImgFilenameFormat,
+	                            final String outRawImgFilenameFormat, final int outputTimeCorrection)
 	{
-		//the spot size
-		final double radius = Math.sqrt(spot.getBoundingSphereRadiusSquared());
+		long h = ExportManifest.mix(settingsHash, outputLevel);
+		h = ExportManifest.mix(h, outputFormat);
+		h = ExportManifest.mix(h, outImgFilenameFormat);
+		h = ExportManifest.mix(h, outRawImgFilenameFormat);
+		h = ExportManifest.mix(h, (long)timeFrom);
+		return ExportManifest.mix(h, (long)outputTimeCorrection);
+	}
 
-		logService.info("rendering spot "+spot.getLabel()
-		  +" with label "+label+", at "+Util.printCoordinates(spot)
-		  +" with radius="+radius);
 
-		//project the spot's centre into the output image (coord in pixel units)
-		transform.apply(spot, coord);
+	//some shortcut variables worth remembering
+	private int outImgDims = -1;
+	private double[] resLen;        //aux 1px lengths (in some physical unit)
+	private TRAMarkersProvider.intersectionDecidable markerShape;
+	private int overlapsPolicy = LabelOverlaps.POLICY_LATER_WINS;
 
-		//setup a sweeping bbox around it: define half-width (aka radius) in some physical unit
-		markerShape.setHalfBBoxInterval(radii, radius);
+	/** returns the length of the image's 'axis' unit vector after the 'transform' */
+	static
+	double axisLength(final AffineTransform3D transform, final int axis)
+	{
+		double lenSq = 0;
+		for (int r = 0; r < 3; ++r)
+			lenSq += transform.get(r,axis) * transform.get(r,axis);
+		return Math.sqrt(lenSq);
+	}
 
-		//finalize the bbox parameters, per dimension....
-		for (int d=0; d < outImgDims; ++d)
+	/** sets the 'outImgVoxelType' to the smallest unsigned type that can hold all
+	    the tracks, and renumbers the tracks if their IDs would not fit otherwise */
+	@SuppressWarnings("unchecked")
+	private
+	void chooseSmallestVoxelType(final RemappableTrackRecords tracks)
+	{
+		final int tracksCount = tracks.getTracksCount();
+		//NB: streamed tracks cannot be renumbered, their IDs must fit as they are
+		final long neededLabels = tracks.isStreamed() ? tracks.getMaxTrackID() : tracksCount;
+		final long maxLabel;
+		if (neededLabels <= 255)
 		{
-			//round centre position to the nearest pixel coord
-			coord.setPosition( Math.round(coord.getDoublePosition(d)), d );
-
-			//define the sweeping interval around this rounded centre
-			final double R = radii[d]/resLen[d];         //half-width in pixel units
-			radii[d           ] = coord.getDoublePosition(d) - R;
-			radii[d+outImgDims] = coord.getDoublePosition(d) + R;
+			outImgVoxelType = (T)new UnsignedByteType();
+			maxLabel = 255;
 		}
-		//if, however, only one zSlice is requested, squash the BBox to a plane in 2nd (z) axis
-		if (doOneZslicePerMarker && outImgDims > 2)
+		else if (neededLabels <= 65535)
 		{
-			radii[2           ] = coord.getDoublePosition(2);
-			radii[2+outImgDims] = coord.getDoublePosition(2);
+			outImgVoxelType = (T)new UnsignedShortType();
+			maxLabel = 65535;
 		}
-		//System.out.println("real-px sweeping box: "+Util.printCoordinates(radii));
-
-		//now, radii[] (an imgBBox) has to be in pixel (integer) units and intersect with img,
-		//also check if there is some intersection with the image at all
-		for (int d=0; d < outImgDims; ++d)
+		else
 		{
-			spotMin[d] = Math.max( (long)Math.round(radii[d           ]), img.min(d) );
-			spotMax[d] = Math.min( (long)Math.round(radii[d+outImgDims]), img.max(d) );
-
-			if (spotMin[d] > spotMax[d])
-			{
-				//no intersection along this axis
-				//System.out.println(" int-px sweeping box: no intersection");
-				return ;
-			}
+			outImgVoxelType = (T)new UnsignedIntType();
+			maxLabel = 0xffffffffL;
 		}
-		//System.out.println(" int-px sweeping box: "+Util.printCoordinates(spotMin)+" -> "+Util.printCoordinates(spotMax));
-
-		//NB: the tests above assure that spotMin and spotMax make sense and live inside the img
-		final Cursor<T> p = Views.interval(img, spotMin, spotMax).localizingCursor();
-		T voxelAtP;
-		while (p.hasNext())
-		{
-			//get next voxel
-			voxelAtP = p.next();
 
-			//get it's (pixel) image coordinate, and convert to image-units distance vector
-			for (int d=0; d < outImgDims; ++d)
-				radii[d] = (p.getDoublePosition(d) - coord.getDoublePosition(d))*resLen[d];
+		if (tracks.getMaxTrackID() > maxLabel && !tracks.isStreamed()) tracks.remapToDenseIDs();
 
-			//if close to the spot's center, draw into this voxel
-			if (markerShape.isInside(radii, radius))
-			{
-				if (voxelAtP.getRealDouble() > 0)
-					logService.warn("spot "+spot.getLabel()+" with label "+label
-					               +" is overwriting label "+voxelAtP.getRealDouble()
-					               +" at "+Util.printCoordinates(p));
-				voxelAtP.setReal(label);
-			}
-		}
+		logService.info("Markers voxel type    : "+outImgVoxelType.getClass().getSimpleName()
+		               +" for "+tracksCount+" tracks with max ID "+tracks.getMaxTrackID()
+		               +(tracks.isRemapped() ? ", tracks renumbered to 1-"+tracksCount : ""));
 	}
 
 
@@ -72,7 +72,9 @@ import org.mastodon.collection.IntRefMap;
 import org.mastodon.collection.RefMaps;
 
 import org.mastodon.ctc.util.ButtonHandler;
+import org.mastodon.ctc.util.ImgCache;
 import org.mastodon.ctc.util.ImgProviders;
+import org.mastodon.ctc.util.ResourcePlanner;
 import org.mastodon.ctc.auxPlugins.FileTemplateProvider;
 import net.celltrackingchallenge.measures.TrackRecords;
 
@@ -230,6 +232,9 @@ extends DynamicCommand
 			throw new IllegalArgumentException("Error reading the lineage file "+inputTxtFile);
 		}
 
+		//one image is processed at a time, while the next ones are being read ahead
+		new ResourcePlanner(logService).reportImport(imgSource, timeFrom, 1+ImgProviders.READ_AHEAD_TIMEPOINTS);
+
 		//PROGRESS BAR stuff
 		final ButtonHandler pbtnHandler = new ButtonHandler();
 
@@ -281,6 +286,9 @@ extends DynamicCommand
 		{
 			logService.info("Processing time point : "+time);
 
+			//let the next images be read while this one is processed
+			imgSource.prefetch(time, Math.min(1+ImgProviders.READ_AHEAD_TIMEPOINTS, timeTill-time+1));
+
 			imgSource.getSourceTransform(time, coordTransImg2World);
 			readSpots( (IterableInterval)imgSource.getImage(time),
 			           time, coordTransImg2World, modelGraph, tracks );
@@ -300,6 +308,7 @@ extends DynamicCommand
 		}
 
 		new AbstractModelImporter< Model >( model ){{ finishImport(); }};
+		logService.info("Image cache: "+ImgCache.shared().report());
 		logService.info("Done.");
 	}
 
@@ -0,0 +1,107 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.scijava.log.LogService;
+import org.scijava.command.Command;
+import org.scijava.plugin.Plugin;
+import org.scijava.plugin.Parameter;
+import org.scijava.widget.FileListWidget;
+import org.scijava.widget.FileWidget;
+
+import org.mastodon.ctc.util.ShardState;
+import org.mastodon.ctc.util.ShardsMerger;
+
+/**
+ * Merges the lineages of CTC exports of adjacent time ranges (shards), e.g.,
+ * that were exported in parallel by several processes, into one lineage
+ * .txt file, and makes the shards' markers images agree with it.
+ * See {@link ShardsMerger} for the details.
+ *
+ * @author Vladimir Ulman
+ */
+@Plugin( type = Command.class, name = "CTC export shards merger @ Mastodon" )
+public class MergeShardsPlugin implements Command
+{
+	@Parameter
+	private LogService logService;
+
+	@Parameter(label = "Shard states (.shard files) of the exports:", style = FileListWidget.FILES_ONLY,
+	           description = "Every export has to be made with the option to save the state for merging.")
+	File[] shardFiles;
+
+	@Parameter(label = "Merged lineage txt file:", style = FileWidget.SAVE_STYLE)
+	File mergedTXT = new File("man_track.txt");
+
+	@Parameter(label = "Rewrite labels in the shards' markers images:",
+	           description = "Markers images (individual TIFF files) are rewritten in place to agree with the merged lineage. "
+	                       + "This is done only once, already relabeled images (and shards) are left as they are.")
+	boolean doRelabelImages = true;
+
+	@Parameter(label = "How many images to rewrite in parallel:")
+	int relabelThreads = 4;
+
+	@Override
+	public void run()
+	{
+		if (shardFiles == null || shardFiles.length == 0)
+		{
+			logService.error("No shard states were given.");
+			return;
+		}
+
+		try
+		{
+			final List<ShardState> shards = new ArrayList<>(shardFiles.length);
+			for (final File f : shardFiles)
+				shards.add( ShardState.load(f) );
+
+			final ShardsMerger merger = new ShardsMerger(shards, logService);
+			merger.exportToFile(mergedTXT.getAbsolutePath());
+			logService.info("Merged lineage saved : "+mergedTXT.getAbsolutePath());
+
+			if (doRelabelImages)
+				logService.info("Relabeled "+merger.relabelImages(relabelThreads)+" images.");
+		}
+		catch (IOException e) {
+			logService.error("Merging of the shards failed: "+e.getMessage());
+			e.printStackTrace();
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		logService.info("Done.");
+	}
+}
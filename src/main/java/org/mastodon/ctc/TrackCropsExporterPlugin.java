@@ -0,0 +1,479 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.scijava.log.LogService;
+import org.scijava.command.Command;
+import org.scijava.command.DynamicCommand;
+import org.scijava.module.MutableModuleItem;
+import org.scijava.plugin.Plugin;
+import org.scijava.plugin.Parameter;
+import org.scijava.widget.FileWidget;
+
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import org.mastodon.mamut.ProjectModel;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.collection.RefIntMap;
+import org.mastodon.collection.RefMaps;
+
+import org.mastodon.ctc.util.BigTiffStackWriter;
+import org.mastodon.ctc.util.LineageBuilder;
+import net.celltrackingchallenge.measures.TrackRecords;
+
+/**
+ * Exports fixed-size crops of the raw images around every spot, one TIFF
+ * stack per CTC track with one crop per time point of the track. The tracks
+ * are established exactly as the {@link ExporterPlugin} does it, and the CTC
+ * lineage .txt file is saved too so that the stacks can be related to it.
+ *
+ * Time points are processed one after another; within one time point the crops
+ * are grouped by the image blocks (tiles) in which they start, and the groups
+ * are extracted in parallel so that every image block is (typically) read only
+ * by one thread and only once. Full images are never materialized.
+ *
+ * @author Vladimir Ulman
+ */
+@Plugin( type = Command.class, name = "CTC track crops exporter @ Mastodon" )
+public class TrackCropsExporterPlugin extends DynamicCommand
+{
+	// ----------------- necessary internal references -----------------
+	@Parameter
+	private LogService logService;
+
+	@Parameter(persist = false)
+	private ProjectModel projectModel;
+
+	// ----------------- where to store products -----------------
+	@Parameter(label = "Choose folder for the crops:", style = FileWidget.DIRECTORY_STYLE)
+	File outputFolder = new File("");
+
+	@Parameter(label = "Template for crop stack file names:",
+	           description = "Use %d or %04d in the template to denote where the track number will appear.")
+	String filenameTemplate = "track%04d.tif";
+
+	@Parameter(label = "Lineage txt file name:")
+	String filenameTXT = "man_track.txt";
+
+	// ----------------- where to read data in -----------------
+	@Parameter(label = "Crop the images of this view:",
+	           initializer = "encodeImgSourceChoices", choices = {})
+	public String imgSourceChoice = "";
+
+	@Parameter(label = "Crop at this resolution level:", min="0",
+	           description = "Level of the image source's resolution pyramid, 0 is the full resolution, higher levels are coarser.")
+	int exportMipLevel = 0;
+
+	@Parameter(label = "Export from this time point:", min="0")
+	Integer timeFrom;
+
+	@Parameter(label = "Export till this time point:", min="0")
+	Integer timeTill;
+
+	final ArrayList<String> choices = new ArrayList<>(20);
+	void encodeImgSourceChoices()
+	{
+		final ArrayList<SourceAndConverter<?>> mSources = projectModel.getSharedBdvData().getSources();
+		for (int i = 0; i < mSources.size(); ++i)
+			choices.add( "View: "+mSources.get(i).getSpimSource().getName() );
+		getInfo().getMutableInput("imgSourceChoice", String.class).setChoices( choices );
+
+		//provide some default presets
+		MutableModuleItem<Integer> tItem = getInfo().getMutableInput("timeFrom", Integer.class);
+		tItem.setMinimumValue(projectModel.getMinTimepoint());
+		tItem.setMaximumValue(projectModel.getMaxTimepoint());
+
+		tItem = getInfo().getMutableInput("timeTill", Integer.class);
+		tItem.setMinimumValue(projectModel.getMinTimepoint());
+		tItem.setMaximumValue(projectModel.getMaxTimepoint());
+
+		timeFrom = projectModel.getMinTimepoint();
+		timeTill = projectModel.getMaxTimepoint();
+
+		//make sure this will always appear in the menu
+		this.unresolveInput("timeFrom");
+		this.unresolveInput("timeTill");
+	}
+
+	Source<?> decodeImgSourceChoices()
+	{
+		//some project's view, have to find the right one
+		for (int i = 0; i < choices.size(); ++i)
+		if (imgSourceChoice.startsWith(choices.get(i)))
+			return projectModel.getSharedBdvData().getSources().get(i).getSpimSource();
+
+		//else not found... strange...
+		return null;
+	}
+
+	// ----------------- how to store products -----------------
+	@Parameter(label = "Size of the crops in voxels as x,y,z:",
+	           description = "The crop is centred at the spot, parts outside the image are filled with zeros. The z size is ignored for 2D images.")
+	String cropSize = "64,64,64";
+
+	@Parameter(label = "Set parent to old track in a new track after a gap:",
+	           description = "A gap creates a new track. Enable this to have a parent link between old and new tracks.")
+	boolean setParentAfterGap = false;
+
+	@Parameter(label = "How many threads to extract the crops:",
+	           description = "Crops from different image blocks are read and written in parallel.")
+	int cropThreads = 4;
+
+
+	@Override
+	public void run()
+	{
+		final Source<?> imgSource = decodeImgSourceChoices();
+		if (imgSource == null) return;
+		final int viewMipLevel = Math.max( Math.min(exportMipLevel, imgSource.getNumMipmapLevels()-1), 0 );
+		if (viewMipLevel != exportMipLevel)
+			logService.warn("Resolution level "+exportMipLevel+" is not available, using level "+viewMipLevel+" instead.");
+
+		final RandomAccessibleInterval<?> imgTemplate = imgSource.getSource(timeFrom,viewMipLevel);
+		if (!(Util.getTypeFromInterval(imgTemplate) instanceof RealType))
+		{
+			logService.error("Cannot crop images of "+Util.getTypeFromInterval(imgTemplate).getClass().getSimpleName()+" voxels.");
+			return;
+		}
+		final int imgDims = imgTemplate.numDimensions();
+		final long[] cropDims = decodeCropSize(imgDims);
+		if (cropDims == null) return;
+
+		//crops are stored in 8 or 16 bits if the source is such, otherwise as floats
+		final Object voxelType = Util.getTypeFromInterval(imgTemplate);
+		final int bitDepth = voxelType instanceof UnsignedByteType ? 8 : (voxelType instanceof UnsignedShortType ? 16 : 32);
+
+		//crops are grouped by the image blocks, or by the crop-sized tiles if the images are not block-wise
+		final long[] tileDims = cropDims.clone();
+		if (imgTemplate instanceof AbstractCellImg)
+		{
+			final int[] cellDims = new int[imgDims];
+			((AbstractCellImg<?,?,?,?>)imgTemplate).getCellGrid().cellDimensions(cellDims);
+			for (int d = 0; d < imgDims; ++d) tileDims[d] = cellDims[d];
+		}
+
+		logService.info("Time points span is   : "+timeFrom+"-"+timeTill);
+		logService.info("Output folder is      : "+outputFolder.getAbsolutePath());
+		logService.info("Crop size is          : "+Util.printCoordinates(cropDims)+" voxels, "+bitDepth+" bits");
+
+		final ModelGraph modelGraph = projectModel.getModel().getGraph();
+		final TrackRecords tracks = new TrackRecords();
+		final RefIntMap< Spot > spotLabels = RefMaps.createRefIntMap( modelGraph.vertices(), -1, 500 );
+		final LineageBuilder lineage = new LineageBuilder(modelGraph, projectModel.getModel().getSpatioTemporalIndex(),
+		                                                  timeFrom, timeTill, setParentAfterGap, logService);
+
+		final ExecutorService workers = Executors.newFixedThreadPool( Math.max(cropThreads,1) );
+		//NB: the stacks are kept detached between writes, see extractCrop(),
+		//    to not hold a file open for every alive track
+		final Map<Integer,BigTiffStackWriter> openedStacks = new HashMap<>();
+
+		try
+		{
+
+		//1st phase: over all time points, establish the CTC tracks and where their crops are
+		final List<Crop> crops = new ArrayList<>(10000);
+		final Map<Integer,int[]> trackSpans = new HashMap<>(); //track -> {first,last} time point
+		final AffineTransform3D coordTransWorld2Img = new AffineTransform3D();
+		final double[] worldPos = new double[3];
+		final double[] imgPos = new double[3];
+		int lastTime = timeFrom-1;
+		for (int time = timeFrom; time <= timeTill && isCanceled() == false; ++time)
+		{
+			lineage.processTimePoint(time, tracks, spotLabels);
+			lastTime = time;
+
+			imgSource.getSourceTransform(time,viewMipLevel, coordTransWorld2Img);
+			coordTransWorld2Img.set( coordTransWorld2Img.inverse() );
+
+			for (final Spot spot : lineage.spotsOf(time))
+			{
+				final int track = spotLabels.get(spot);
+				if (track < 0) continue;
+
+				spot.localize(worldPos);
+				coordTransWorld2Img.apply(worldPos, imgPos);
+				final long[] min = new long[imgDims];
+				for (int d = 0; d < imgDims; ++d)
+					min[d] = Math.round(imgPos[d]) - cropDims[d]/2;
+				crops.add( new Crop(time, track, min) );
+
+				final int[] span = trackSpans.get(track);
+				if (span == null) trackSpans.put(track, new int[] {time,time});
+				else span[1] = time;
+			}
+		}
+		logService.info("Extracting "+crops.size()+" crops of "+trackSpans.size()+" tracks...");
+
+		//2nd phase: time point after time point, extract the crops in parallel
+		final Comparator<Crop> tileOrder = tileComparator(tileDims);
+		int first = 0;
+		while (first < crops.size() && isCanceled() == false)
+		{
+			final int time = crops.get(first).time;
+			int last = first;
+			while (last < crops.size() && crops.get(last).time == time) ++last;
+			final List<Crop> timeCrops = new ArrayList<>( crops.subList(first,last) );
+			first = last;
+
+			logService.info("Processing time point: "+time);
+			final RandomAccessibleInterval<?> img = imgSource.getSource(time,viewMipLevel);
+
+			//open the stacks of the tracks that start now
+			for (final Crop crop : timeCrops)
+			if (!openedStacks.containsKey(crop.track))
+			{
+				final int[] span = trackSpans.get(crop.track);
+				final String path = outputFolder.getAbsolutePath() + File.separator + String.format(filenameTemplate, crop.track);
+				final BigTiffStackWriter stack = new BigTiffStackWriter(path,
+					(int)cropDims[0], (int)cropDims[1], imgDims > 2 ? (int)cropDims[2] : 1, span[1]-span[0]+1, bitDepth);
+				stack.detach();
+				openedStacks.put(crop.track, stack);
+			}
+
+			//one job per tile, crops of one tile are extracted one after another
+			timeCrops.sort(tileOrder);
+			final List<Callable<Void>> jobs = new ArrayList<>();
+			int tileFirst = 0;
+			while (tileFirst < timeCrops.size())
+			{
+				int tileLast = tileFirst+1;
+				while (tileLast < timeCrops.size() && tileOrder.compare(timeCrops.get(tileFirst),timeCrops.get(tileLast)) == 0) ++tileLast;
+				final List<Crop> tileCrops = timeCrops.subList(tileFirst,tileLast);
+				tileFirst = tileLast;
+
+				jobs.add( () -> {
+					for (final Crop crop : tileCrops)
+						extractCrop(img, crop, cropDims, bitDepth,
+							openedStacks.get(crop.track), crop.time - trackSpans.get(crop.track)[0]);
+					return null;
+				} );
+			}
+			for (final Future<Void> job : workers.invokeAll(jobs)) job.get();
+
+			//close the stacks of the tracks that end now
+			for (final Crop crop : timeCrops)
+			if (trackSpans.get(crop.track)[1] == time)
+			{
+				final BigTiffStackWriter stack = openedStacks.remove(crop.track);
+				if (stack != null) stack.close();
+			}
+		}
+
+		//finish the export by creating the supplementary files
+		if (isCanceled() == false)
+		{
+			saveCropsList(crops, trackSpans, outputFolder.getAbsolutePath() + File.separator + "crops.csv");
+			tracks.exportToFile( String.format("%s%s%s", outputFolder.getAbsolutePath(),File.separator,filenameTXT), 0 );
+		}
+		if (lastTime < timeTill)
+			logService.warn("Stopped after time point "+lastTime+".");
+
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		catch (IOException e) {
+			logService.error("Writing of the output files failed: "+e.getMessage());
+			e.printStackTrace();
+		}
+		catch (ExecutionException e) {
+			logService.error("Extracting of the crops failed: "+e.getMessage());
+			e.printStackTrace();
+		}
+		finally
+		{
+			workers.shutdownNow();
+			for (final BigTiffStackWriter stack : openedStacks.values())
+			{
+				try { stack.close(); }
+				catch (IOException e) { /* already reporting some other problem */ }
+			}
+
+			//release the aux "binder" objects
+			lineage.release();
+		}
+
+		logService.info("Done.");
+	}
+
+
+	/** one spot's crop: where it starts in the image (in voxels), and to which track it belongs */
+	static class Crop
+	{
+		Crop(final int time, final int track, final long[] min)
+		{
+			this.time = time;
+			this.track = track;
+			this.min = min;
+		}
+
+		final int time;
+		final int track;
+		final long[] min;
+	}
+
+	/** returns the crop size from the 'cropSize', or null (after reporting why) if it cannot be parsed */
+	private
+	long[] decodeCropSize(final int imgDims)
+	{
+		final String[] items = cropSize.split(",");
+		if (items.length < imgDims)
+		{
+			logService.error("The crop size needs "+imgDims+" numbers, got: "+cropSize);
+			return null;
+		}
+
+		final long[] dims = new long[imgDims];
+		try
+		{
+			for (int d = 0; d < imgDims; ++d)
+			{
+				dims[d] = Long.parseLong(items[d].trim());
+				if (dims[d] < 1) throw new NumberFormatException("must be positive");
+			}
+		}
+		catch (NumberFormatException e) {
+			logService.error("Cannot read the crop size from '"+cropSize+"': "+e.getMessage());
+			return null;
+		}
+		return dims;
+	}
+
+	/** orders the crops by the tiles in which they start, plane-wise (z first, then y, then x) */
+	static
+	Comparator<Crop> tileComparator(final long[] tileDims)
+	{
+		return (a,b) -> {
+			for (int d = tileDims.length-1; d >= 0; --d)
+			{
+				final int cmp = Long.compare( Math.floorDiv(a.min[d],tileDims[d]), Math.floorDiv(b.min[d],tileDims[d]) );
+				if (cmp != 0) return cmp;
+			}
+			return 0;
+		};
+	}
+
+	/** copies the 'crop' out of the 'img' and writes it as the image 'slot' of the 'stack',
+	    which is detached afterwards */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static
+	void extractCrop(final RandomAccessibleInterval img, final Crop crop, final long[] cropDims,
+	                 final int bitDepth, final BigTiffStackWriter stack, final int slot)
+	throws IOException
+	{
+		if (bitDepth == 8)
+			extractCrop(img, crop, cropDims, new UnsignedByteType(), stack, slot);
+		else if (bitDepth == 16)
+			extractCrop(img, crop, cropDims, new UnsignedShortType(), stack, slot);
+		else
+			extractCrop(img, crop, cropDims, new FloatType(), stack, slot);
+	}
+
+	static <S extends RealType<S>, U extends RealType<U> & NativeType<U>>
+	void extractCrop(final RandomAccessibleInterval<S> img, final Crop crop, final long[] cropDims,
+	                 final U cropType, final BigTiffStackWriter stack, final int slot)
+	throws IOException
+	{
+		final long[] max = new long[cropDims.length];
+		for (int d = 0; d < cropDims.length; ++d)
+			max[d] = crop.min[d] + cropDims[d] - 1;
+
+		final PlanarImg<U,?> cropImg = new PlanarImgFactory<>(cropType).create(cropDims);
+		final Cursor<S> src = Views.flatIterable( Views.interval(Views.extendZero(img), crop.min, max) ).cursor();
+		final Cursor<U> dst = Views.flatIterable( cropImg ).cursor();
+		while (dst.hasNext())
+			dst.next().setReal( src.next().getRealDouble() );
+
+		final ByteBuffer buf = ByteBuffer.allocate( (int)(cropDims[0]*cropDims[1]*(stack.getBitDepth()/8)) )
+		                                 .order(ByteOrder.LITTLE_ENDIAN);
+		try
+		{
+			for (int z = 0; z < cropImg.numSlices(); ++z)
+				stack.writePlane(slot, z, ((ArrayDataAccess<?>)cropImg.getPlane(z)).getCurrentStorageArray(), buf);
+		}
+		finally
+		{
+			stack.detach();
+		}
+	}
+
+	/** saves the list of all crops: which track, time point, and where in the image it starts */
+	static
+	void saveCropsList(final List<Crop> crops, final Map<Integer,int[]> trackSpans, final String path)
+	throws IOException
+	{
+		final List<Crop> sorted = new ArrayList<>(crops);
+		sorted.sort( (a,b) -> a.track != b.track ? Integer.compare(a.track,b.track) : Integer.compare(a.time,b.time) );
+
+		try (BufferedWriter f = new BufferedWriter( new FileWriter(path) ))
+		{
+			f.write("track,time,frame,min x,min y,min z\n");
+			for (final Crop crop : sorted)
+			{
+				f.write(crop.track+","+crop.time+","+(crop.time-trackSpans.get(crop.track)[0]));
+				for (int d = 0; d < 3; ++d)
+					f.write(","+(d < crop.min.length ? crop.min[d] : 0));
+				f.write("\n");
+			}
+		}
+	}
+}
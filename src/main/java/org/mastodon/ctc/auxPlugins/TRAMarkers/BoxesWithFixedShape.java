@@ -91,6 +91,23 @@ public class BoxesWithFixedShape implements TRAMarkersProvider.intersectionDecid
 		return true;
 	}
 
+	@Override
+	public boolean providesRowSpans() { return true; }
+
+	@Override
+	public boolean getRowSpan(final double[] distVec, final double radius, final double[] xSpan)
+	{
+		if (Math.abs(distVec[1]) > yHalfSize) return false;
+		if (Math.abs(distVec[2]) > zHalfSize) return false;
+		if (distVec[1] == yHalfSize) return false;
+		if (distVec[2] == zHalfSize) return false;
+
+		//NB: the right end is open, see isInside()
+		xSpan[0] = -xHalfSize;
+		xSpan[1] = Math.nextDown(xHalfSize);
+		return true;
+	}
+
 	@Override
 	public String printInfo()
 	{
@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.auxPlugins.TRAMarkers;
+
+import org.mastodon.ctc.auxPlugins.TRAMarkersProvider;
+
+/** Marker that is exactly the ellipsoid of a spot, that is, points x for which
+    x^T * inv(Cov) * x <= 1 holds, where Cov is the spot's covariance matrix.
+    Since every spot has its own ellipsoid, this marker must be first specialized
+    for a particular spot with forSpot(). The unspecialized marker (or the one for
+    a degenerated covariance) behaves as a sphere of the spot's bounding radius. */
+public class EllipsoidsFromCovariance implements TRAMarkersProvider.intersectionDecidable
+{
+	/** inverse of the covariance matrix (a symmetric one), or null for the sphere */
+	private final double[][] P;
+	/** half-size of the ellipsoid's axes-aligned bounding box */
+	private final double[] halfBBox = new double[3];
+
+	public EllipsoidsFromCovariance()
+	{
+		P = null;
+	}
+
+	private EllipsoidsFromCovariance(final double[][] cov)
+	{
+		final double c00 = cov[0][0], c01 = cov[0][1], c02 = cov[0][2];
+		final double c11 = cov[1][1], c12 = cov[1][2], c22 = cov[2][2];
+
+		//cofactors of the symmetric 3x3 matrix
+		final double a00 = c11*c22 - c12*c12;
+		final double a01 = c02*c12 - c01*c22;
+		final double a02 = c01*c12 - c02*c11;
+		final double det = c00*a00 + c01*a01 + c02*a02;
+
+		if (det > 0)
+		{
+			P = new double[3][3];
+			P[0][0] = a00 / det;
+			P[0][1] = P[1][0] = a01 / det;
+			P[0][2] = P[2][0] = a02 / det;
+			P[1][1] = (c00*c22 - c02*c02) / det;
+			P[1][2] = P[2][1] = (c01*c02 - c00*c12) / det;
+			P[2][2] = (c00*c11 - c01*c01) / det;
+		}
+		else
+		{
+			//flat in z (e.g. spots of 2D data), consider only the xy-ellipse
+			final double det2 = c00*c11 - c01*c01;
+			if (det2 > 0)
+			{
+				P = new double[3][3];
+				P[0][0] =  c11 / det2;
+				P[0][1] = P[1][0] = -c01 / det2;
+				P[1][1] =  c00 / det2;
+			}
+			else P = null;
+		}
+
+		if (P != null)
+			for (int d = 0; d < 3; ++d)
+				halfBBox[d] = Math.sqrt(Math.max(cov[d][d], 0.0));
+	}
+
+	@Override
+	public TRAMarkersProvider.intersectionDecidable forSpot(final double[][] covariance)
+	{
+		return new EllipsoidsFromCovariance(covariance);
+	}
+
+	@Override
+	public void setHalfBBoxInterval(final double[] halfBBoxSize, final double radius)
+	{
+		if (P == null)
+		{
+			halfBBoxSize[0] = radius;
+			halfBBoxSize[1] = radius;
+			halfBBoxSize[2] = radius;
+			return;
+		}
+		halfBBoxSize[0] = halfBBox[0];
+		halfBBoxSize[1] = halfBBox[1];
+		halfBBoxSize[2] = halfBBox[2];
+	}
+
+	@Override
+	public boolean isInside(final double[] distVec, final double radius)
+	{
+		final double x = distVec[0], y = distVec[1], z = distVec[2];
+		if (P == null)
+			return (x*x + y*y + z*z) <= (radius*radius);
+
+		final double q = P[0][0]*x*x + P[1][1]*y*y + P[2][2]*z*z
+		               + 2.0*(P[0][1]*x*y + P[0][2]*x*z + P[1][2]*y*z);
+		return q <= 1.0;
+	}
+
+	@Override
+	public boolean providesRowSpans() { return true; }
+
+	@Override
+	public boolean getRowSpan(final double[] distVec, final double radius, final double[] xSpan)
+	{
+		final double y = distVec[1], z = distVec[2];
+		if (P == null)
+		{
+			final double restSq = (radius*radius) - (y*y + z*z);
+			if (restSq < 0) return false;
+
+			xSpan[1] = Math.sqrt(restSq);
+			xSpan[0] = -xSpan[1];
+			return true;
+		}
+
+		//solves A*x^2 + 2*B*x + C <= 1 for x
+		final double A = P[0][0];
+		final double B = P[0][1]*y + P[0][2]*z;
+		final double C = P[1][1]*y*y + 2.0*P[1][2]*y*z + P[2][2]*z*z;
+		final double disc = B*B - A*(C-1.0);
+		if (disc < 0) return false;
+
+		final double sq = Math.sqrt(disc);
+		xSpan[0] = (-B - sq) / A;
+		xSpan[1] = (-B + sq) / A;
+		return true;
+	}
+
+	@Override
+	public String printInfo()
+	{
+		return "Ellipsoid given by each spot's covariance matrix";
+	}
+}
@@ -75,6 +75,20 @@ public class SpheresWithFixedRadius implements TRAMarkersProvider.intersectionDe
 		return lenSq <= fixedRadiusSq;
 	}
 
+	@Override
+	public boolean providesRowSpans() { return true; }
+
+	@Override
+	public boolean getRowSpan(final double[] distVec, final double radius, final double[] xSpan)
+	{
+		final double restSq = fixedRadiusSq - ((distVec[1] * distVec[1]) + (distVec[2] * distVec[2]));
+		if (restSq < 0) return false;
+
+		xSpan[1] = Math.sqrt(restSq);
+		xSpan[0] = -xSpan[1];
+		return true;
+	}
+
 	@Override
 	public String printInfo()
 	{
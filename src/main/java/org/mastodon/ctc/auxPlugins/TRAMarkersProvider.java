@@ -40,9 +40,28 @@ public class TRAMarkersProvider
 	{
 		default void init() {}
 
+		/** Returns the marker to be used with the spot of the given covariance matrix
+		    (in the same units as the distances used with this marker). Markers that
+		    depend on more than just the spot's radius return their spot-specific copy,
+		    others just return themselves (which is the default behaviour). */
+		default intersectionDecidable forSpot(final double[][] covariance) { return this; }
+
 		void setHalfBBoxInterval(final double[] halfBBoxSize, final double radius);
 		boolean isInside(final double[] distVec, final double radius);
 
+		/** Returns true if this marker can tell its whole rows, see getRowSpan(). */
+		default boolean providesRowSpans() { return false; }
+
+		/** Determines the span of the marker along the x-axis on the row that is
+		    given with y- and z- distances from the marker's centre (in distVec[1]
+		    and distVec[2], distVec[0] is ignored). The span is returned as the min
+		    and max x-distances from the centre (in xSpan[0] and xSpan[1]), all
+		    distances are in the same (physical) units as with the isInside().
+		    Returns false (and leaves xSpan untouched) if the row misses the marker.
+		    Markers that do not provide their row spans keep the default that tells
+		    no span, and are rendered voxel by voxel with isInside() instead. */
+		default boolean getRowSpan(final double[] distVec, final double radius, final double[] xSpan) { return false; }
+
 		default String printInfo() { return toString(); }
 	}
 
@@ -50,7 +69,8 @@ public class TRAMarkersProvider
 	String[] availableChoices = {
 		"Spheres of spot-driven radii",
 		"Spheres of fixed radius",
-		"Boxes of fixed shape" };
+		"Boxes of fixed shape",
+		"Ellipsoids from spot covariance" };
 
 	public static
 	intersectionDecidable TRAMarkerFactory(final String choice, final VoxelDimensions pxSize, final CommandService cs)
@@ -77,6 +97,8 @@ public class TRAMarkersProvider
 		{
 			if (choice.startsWith("Boxes"))
 				markerShape = (intersectionDecidable)cs.run(BoxesWithFixedShape.class,true,"resolutionHint",resHint).get().getCommand();
+			else if (choice.startsWith("Ellipsoids"))
+				markerShape = new EllipsoidsFromCovariance();
 			else if (choice.contains("fixed"))
 				markerShape = (intersectionDecidable)cs.run(SpheresWithFixedRadius.class,true,"resolutionHint",resHint).get().getCommand();
 			else
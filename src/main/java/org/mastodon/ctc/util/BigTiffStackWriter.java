@@ -0,0 +1,248 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a sequence of equally-sized images (e.g. all time points) as one ImageJ
+ * hyperstack TIFF file. The layout of the file is decided and written upfront:
+ * all IFDs (directories) come first, followed by the uncompressed planes at fixed
+ * offsets. Every image (all its planes) can be then written independently of the
+ * others, and several threads can be writing into the file at the same time.
+ *
+ * The classic TIFF format is used when the file fits into 4GB, otherwise the
+ * BigTIFF format is used. Classic files open everywhere, including ImageJ's own
+ * reader (File > Open, IJ.openImage()) and thus also the {@link ImgProviders}.
+ * BigTIFF files cannot be opened by any of these, only by the Bio-Formats importer
+ * (or SCIFIO) in Fiji, or by libtiff and tifffile based tools; see needsBigTiff()
+ * to find out upfront.
+ *
+ * The file can be detached, e.g. between writes, so that many stacks can be
+ * written at the same time without holding many files open. It is then opened
+ * again with the next write.
+ *
+ * @author Vladimir Ulman
+ */
+public class BigTiffStackWriter
+{
+	/** creates (overwrites) the file 'path' for 'imagesCount' images, each of
+	    the given size, where every voxel is stored with 'bitDepth' bits, which
+	    can be 8 or 16 (unsigned integers) or 32 (floating point) */
+	public
+	BigTiffStackWriter(final String path, final int width, final int height, final int planesPerImage,
+	                   final int imagesCount, final int bitDepth)
+	throws IOException
+	{
+		if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+			throw new IOException("Cannot write "+bitDepth+"-bit images into "+path);
+
+		this.path = path;
+		this.width = width;
+		this.height = height;
+		this.planesPerImage = planesPerImage;
+		this.imagesCount = imagesCount;
+		this.bitDepth = bitDepth;
+		this.planeBytes = (long)width * height * (bitDepth/8);
+
+		final byte[] description = TiffLayout.imagejDescription(planesPerImage, imagesCount);
+
+		final long planesCount = (long)planesPerImage * imagesCount;
+		tiff = new TiffLayout( estimateLength(description.length, planesCount, planeBytes) >= TiffLayout.CLASSIC_TIFF_LIMIT );
+
+		final int ifdSize = tiff.ifdSize(TAGS_COUNT);
+		final int firstIfdSize = tiff.ifdSize(TAGS_COUNT+1);
+		final long descriptionOffset = tiff.headerSize();
+		final long firstIfdOffset = TiffLayout.align(descriptionOffset + description.length);
+		dataOffset = TiffLayout.align(firstIfdOffset + firstIfdSize + (planesCount-1)*ifdSize);
+
+		channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+		                           StandardOpenOption.TRUNCATE_EXISTING);
+
+		//header and the description
+		writeFully(tiff.header(firstIfdOffset), 0);
+		writeFully(ByteBuffer.wrap(description), descriptionOffset);
+
+		//all IFDs, written in batches of planes
+		final int batchSize = 1024;
+		ByteBuffer ifds = ByteBuffer.allocate(batchSize*ifdSize + firstIfdSize).order(ByteOrder.LITTLE_ENDIAN);
+		long ifdsOffset = firstIfdOffset;
+		long ifdOffset = firstIfdOffset;
+		for (long p = 0; p < planesCount; ++p)
+		{
+			final boolean isFirst = p == 0;
+			final long nextIfdOffset = p+1 < planesCount ? ifdOffset + (isFirst ? firstIfdSize : ifdSize) : 0;
+			putIfd(ifds, dataOffset + p*planeBytes, nextIfdOffset,
+			       isFirst ? descriptionOffset : -1, description.length);
+			ifdOffset += isFirst ? firstIfdSize : ifdSize;
+
+			if (ifds.position() + ifdSize > ifds.capacity() || p+1 == planesCount)
+			{
+				ifds.flip();
+				writeFully(ifds, ifdsOffset);
+				ifdsOffset = ifdOffset;
+				ifds.clear();
+			}
+		}
+	}
+
+	private final String path;
+	private final int width, height, planesPerImage, imagesCount, bitDepth;
+	private final long planeBytes;
+	private final TiffLayout tiff;
+	private final long dataOffset;
+	private FileChannel channel;
+
+	/** returns true if a stack of 'imagesCount' images, each of 'planesPerImage' planes
+	    of 'planeBytes' bytes, does not fit into 4GB and would be written as BigTIFF */
+	public static
+	boolean needsBigTiff(final long planeBytes, final int planesPerImage, final int imagesCount)
+	{
+		final int descriptionLength = TiffLayout.imagejDescription(planesPerImage, imagesCount).length;
+		return estimateLength(descriptionLength, (long)planesPerImage * imagesCount, planeBytes) >= TiffLayout.CLASSIC_TIFF_LIMIT;
+	}
+
+	public String getPath() { return path; }
+	public int getImagesCount() { return imagesCount; }
+	public int getBitDepth() { return bitDepth; }
+
+	/** returns true if the 'imp' has the geometry and bit depth this file is expecting */
+	public
+	boolean isCompatible(final ImagePlus imp)
+	{
+		return imp.getWidth() == width && imp.getHeight() == height
+		    && imp.getStackSize() == planesPerImage && imp.getBitDepth() == bitDepth;
+	}
+
+	/** writes all planes of the 'imp' as the image 'index' (e.g. time point, zero-based)
+	    of the stack; may be called concurrently for different images (or planes) */
+	public
+	void writeImage(final int index, final ImagePlus imp)
+	throws IOException
+	{
+		if (!isCompatible(imp))
+			throw new IOException("Image "+imp.getTitle()+" does not fit into the stack "+path);
+		if (index < 0 || index >= imagesCount)
+			throw new IOException("Image index "+index+" is outside the stack "+path);
+
+		final ImageStack stack = imp.getStack();
+		final ByteBuffer buf = ByteBuffer.allocate((int)planeBytes).order(ByteOrder.LITTLE_ENDIAN);
+		for (int z = 0; z < planesPerImage; ++z)
+			writePlane(index, z, stack.getProcessor(z+1).getPixels(), buf);
+	}
+
+	/** writes the 'pixels' (of a type matching the bit depth) as the plane 'z' of the image 'index',
+	    the 'buf' is an aux buffer (of planeBytes capacity), or null to allocate a new one */
+	public
+	void writePlane(final int index, final int z, final Object pixels, ByteBuffer buf)
+	throws IOException
+	{
+		if (buf == null) buf = ByteBuffer.allocate((int)planeBytes).order(ByteOrder.LITTLE_ENDIAN);
+		buf.clear();
+		TiffLayout.putPixels(buf, pixels, 0, (int)(planeBytes / (bitDepth/8)));
+		buf.flip();
+
+		writeFully(buf, dataOffset + ((long)index*planesPerImage + z)*planeBytes);
+	}
+
+	/** closes the file until the next write, must not be called while writing */
+	public synchronized
+	void detach()
+	throws IOException
+	{
+		if (channel == null) return;
+		channel.close();
+		channel = null;
+	}
+
+	public
+	void close()
+	throws IOException
+	{
+		detach();
+	}
+
+	private synchronized
+	FileChannel attachedChannel()
+	throws IOException
+	{
+		if (channel == null)
+			channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE);
+		return channel;
+	}
+
+
+	// ----------------- the TIFF layout -----------------
+	private static final int TAGS_COUNT = 10; //NB: without the ImageDescription
+
+	private static long estimateLength(final int descriptionLength, final long planesCount, final long planeBytes)
+	{
+		//NB: as if BigTIFF, to have some reserve
+		final long ifds = planesCount * (16 + TAGS_COUNT*20) + 20;
+		return 16 + descriptionLength + ifds + 32 + planesCount*planeBytes;
+	}
+
+	/** puts one IFD, the ImageDescription is included if 'descriptionOffset' is non-negative */
+	private void putIfd(final ByteBuffer b, final long stripOffset, final long nextIfdOffset,
+	                    final long descriptionOffset, final int descriptionLength)
+	{
+		final int entries = TAGS_COUNT + (descriptionOffset >= 0 ? 1 : 0);
+		if (tiff.isBig) b.putLong(entries); else b.putShort((short)entries);
+
+		tiff.putEntry(b, 254, TiffLayout.TYPE_LONG,  1, 0);                   //NewSubfileType
+		tiff.putEntry(b, 256, TiffLayout.TYPE_LONG,  1, width);               //ImageWidth
+		tiff.putEntry(b, 257, TiffLayout.TYPE_LONG,  1, height);              //ImageLength
+		tiff.putEntry(b, 258, TiffLayout.TYPE_SHORT, 1, bitDepth);            //BitsPerSample
+		tiff.putEntry(b, 259, TiffLayout.TYPE_SHORT, 1, 1);                   //Compression: none
+		tiff.putEntry(b, 262, TiffLayout.TYPE_SHORT, 1, 1);                   //PhotometricInterpretation: BlackIsZero
+		if (descriptionOffset >= 0)
+			tiff.putEntry(b, 270, TiffLayout.TYPE_ASCII, descriptionLength, descriptionOffset); //ImageDescription
+		tiff.putEntry(b, 273, tiff.offsetType(), 1, stripOffset);             //StripOffsets
+		tiff.putEntry(b, 277, TiffLayout.TYPE_SHORT, 1, 1);                   //SamplesPerPixel
+		tiff.putEntry(b, 278, TiffLayout.TYPE_LONG,  1, height);              //RowsPerStrip
+		tiff.putEntry(b, 279, tiff.offsetType(), 1, planeBytes);              //StripByteCounts
+		tiff.putEntry(b, 339, TiffLayout.TYPE_SHORT, 1, bitDepth == 32 ? 3 : 1); //SampleFormat: float or uint
+
+		tiff.putOffset(b, nextIfdOffset);
+	}
+
+	private void writeFully(final ByteBuffer b, final long position)
+	throws IOException
+	{
+		TiffLayout.writeFully(attachedChannel(), b, position);
+	}
+}
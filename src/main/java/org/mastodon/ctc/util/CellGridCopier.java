@@ -0,0 +1,164 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Copies (materializes) a possibly lazily loaded image, e.g. a cached image
+ * of a BDV source, into an array-backed image. The copying is done block-wise
+ * in parallel, where the blocks follow the cell grid of the source image (if
+ * it is a cell image) so that every cell is loaded only once and by one thread.
+ *
+ * @author Vladimir Ulman
+ */
+public class CellGridCopier
+{
+	/** returns true if the 'img' can be copied with the copy() */
+	public static
+	boolean isSupported(final RandomAccessibleInterval<?> img)
+	{
+		return Util.getTypeFromInterval(img) instanceof NativeType;
+	}
+
+	/** returns the copy() of the 'img' if it isSupported(), or just a view on its 'roi'
+	    (or whole if null) whose coordinates start at zero otherwise */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static
+	RandomAccessibleInterval<?> copyOrView(final RandomAccessibleInterval<?> img, final Interval roi)
+	{
+		if (isSupported(img))
+			return copy((RandomAccessibleInterval)img, roi);
+		return roi == null ? img : Views.zeroMin( Views.interval(img, roi) );
+	}
+
+	/** copies the 'roi' (or everything if null) of the 'src' into a new PlanarImg
+	    whose coordinates start at zero; the blocks are copied in parallel and
+	    the method must therefore be called from within some ForkJoinPool */
+	public static <T extends NativeType<T>>
+	Img<T> copy(final RandomAccessibleInterval<T> src, final Interval roi)
+	{
+		final Interval region = roi != null ? roi : src;
+		final int n = region.numDimensions();
+		final long[] regionMin = new long[n];
+		region.min(regionMin);
+
+		final Img<T> dst = new PlanarImgFactory<>( Util.getTypeFromInterval(src).createVariable() )
+			.create( Views.zeroMin(Views.interval(src,region)) );
+
+		//blocks: the cells if known, otherwise the z-planes
+		final int[] blockSize = new int[n];
+		if (src instanceof AbstractCellImg)
+			((AbstractCellImg<?,?,?,?>)src).getCellGrid().cellDimensions(blockSize);
+		else
+		{
+			for (int d = 0; d < n; ++d) blockSize[d] = (int)Math.min(region.dimension(d), Integer.MAX_VALUE);
+			if (n > 2) blockSize[2] = 1;
+		}
+
+		final List<BlockCopy<T>> blocks = new ArrayList<>(1000);
+		final long[] bMin = new long[n];
+		final long[] bMax = new long[n];
+		for (int d = 0; d < n; ++d)
+			bMin[d] = Math.floorDiv(region.min(d) - src.min(d), blockSize[d]) * blockSize[d] + src.min(d);
+
+		//iterate over the grid of blocks that covers the region
+		while (true)
+		{
+			final long[] min = new long[n];
+			final long[] max = new long[n];
+			for (int d = 0; d < n; ++d)
+			{
+				bMax[d] = bMin[d] + blockSize[d] - 1;
+				min[d] = Math.max(bMin[d], region.min(d));
+				max[d] = Math.min(bMax[d], region.max(d));
+			}
+			blocks.add( new BlockCopy<>(src, dst, new FinalInterval(min,max), regionMin) );
+
+			int d = 0;
+			for (; d < n; ++d)
+			{
+				bMin[d] += blockSize[d];
+				if (bMin[d] <= region.max(d)) break;
+				bMin[d] = Math.floorDiv(region.min(d) - src.min(d), blockSize[d]) * blockSize[d] + src.min(d);
+			}
+			if (d == n) break;
+		}
+
+		ForkJoinTask.invokeAll(blocks);
+		return dst;
+	}
+
+	static class BlockCopy<T extends NativeType<T>> extends RecursiveAction
+	{
+		BlockCopy(final RandomAccessibleInterval<T> src, final Img<T> dst,
+		          final Interval block, final long[] dstOrigin)
+		{
+			this.src = src;
+			this.dst = dst;
+			this.block = block;
+			this.dstOrigin = dstOrigin;
+		}
+
+		final RandomAccessibleInterval<T> src;
+		final Img<T> dst;
+		final Interval block;
+		final long[] dstOrigin; //src coordinate that is at the dst's zero
+
+		@Override
+		protected void compute()
+		{
+			final Cursor<T> sc = Views.interval(src, block).localizingCursor();
+			final RandomAccess<T> dra = dst.randomAccess();
+			final int n = block.numDimensions();
+			while (sc.hasNext())
+			{
+				final T v = sc.next();
+				for (int d = 0; d < n; ++d)
+					dra.setPosition(sc.getLongPosition(d) - dstOrigin[d], d);
+				dra.get().set(v);
+			}
+		}
+	}
+}
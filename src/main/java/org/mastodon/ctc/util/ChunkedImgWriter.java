@@ -0,0 +1,263 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrWriter;
+
+/**
+ * Writes images as datasets of one N5 or Zarr container, every image is
+ * written block by block where the blocks are written concurrently with the
+ * given number of threads, and blocks that are completely zero are skipped
+ * altogether (which is typical for images of tracking markers).
+ *
+ * The API is similar to the one of {@link ParallelImgSaver}: the caller hands
+ * over the images, and can be blocked if too many images are still being written.
+ * The dataset of an image is given with its path, which is the path of the
+ * container followed by the dataset name, see getDatasetPath().
+ *
+ * @author Vladimir Ulman
+ */
+public class ChunkedImgWriter
+{
+	/** opens (or creates) the N5 (or Zarr if 'useZarr' is true) container at the 'containerPath' */
+	public
+	ChunkedImgWriter(final String containerPath, final boolean useZarr,
+	                 final int noOfWriterThreads, final int maxImagesInFlight)
+	throws IOException
+	{
+		this.containerPath = containerPath;
+		try
+		{
+			n5 = useZarr ? new N5ZarrWriter(containerPath) : new N5FSWriter(containerPath);
+		}
+		catch (Exception e) {
+			//NB: older N5 versions throw IOException, newer ones throw N5Exception
+			throw new IOException("Cannot open "+(useZarr ? "Zarr" : "N5")+" container "+containerPath+": "+e.getMessage(), e);
+		}
+		writers = Executors.newFixedThreadPool( Math.max(noOfWriterThreads,1) );
+		imagesInFlight = new Semaphore( Math.max(maxImagesInFlight,1) );
+	}
+
+	private final String containerPath;
+	private final N5Writer n5;
+	private final ExecutorService writers;
+	private final Semaphore imagesInFlight;
+
+	/** the edge length of the blocks, the blocks are cubes (or squares in 2D) */
+	public int blockSize = 64;
+
+	/** if not null, stored as the "resolution" attribute of every dataset */
+	public double[] resolution = null;
+
+	/** the first error that occurred while writing the blocks, or null */
+	private volatile Exception firstError = null;
+
+	/** returns the path of the dataset that would be used for an image file of the
+	    given 'filename': the container path followed by the file name without its extension */
+	public
+	String getDatasetPath(final String filename)
+	{
+		String name = new File(filename).getName();
+		final int dot = name.lastIndexOf('.');
+		if (dot > 0) name = name.substring(0,dot);
+		return containerPath + File.separator + name;
+	}
+
+	/** creates the dataset of the 'datasetPath' (see getDatasetPath()) for the 'img',
+	    and schedules all its blocks for the writing; the method returns immediately
+	    unless 'maxImagesInFlight' images are being written already, in which case it
+	    waits; the 'whenSaved' (if not null) is executed once all blocks are written
+	    (or failed), the returned future completes once all blocks are written,
+	    or completes exceptionally if some of them could not be written */
+	public <T extends NativeType<T>>
+	CompletableFuture<Void> addImgSaveRequestOrBlock(final RandomAccessibleInterval<T> img,
+	                                                 final String datasetPath,
+	                                                 final Runnable whenSaved)
+	throws InterruptedException
+	{
+		return addImgSaveRequestOrBlock(img, datasetPath, null, whenSaved);
+	}
+
+	/** the same as above, but for a downsampled image: if 'downsamplingFactors' is not null,
+	    it is stored as the "downsamplingFactors" attribute of the dataset, and the
+	    "resolution" attribute (if any) is scaled with it */
+	public <T extends NativeType<T>>
+	CompletableFuture<Void> addImgSaveRequestOrBlock(final RandomAccessibleInterval<T> img,
+	                                                 final String datasetPath,
+	                                                 final long[] downsamplingFactors,
+	                                                 final Runnable whenSaved)
+	throws InterruptedException
+	{
+		imagesInFlight.acquire();
+		final CompletableFuture<Void> written = new CompletableFuture<>();
+
+		final String dataset = new File(datasetPath).getName();
+		final RandomAccessibleInterval<T> zImg = Views.zeroMin(img);
+		final int n = zImg.numDimensions();
+
+		final long[] dims = new long[n];
+		zImg.dimensions(dims);
+		final int[] blockDims = new int[n];
+		final long[] gridDims = new long[n];
+		long blocksCount = 1;
+		for (int d = 0; d < n; ++d)
+		{
+			blockDims[d] = (int)Math.min(blockSize, dims[d]);
+			gridDims[d]  = (dims[d] + blockDims[d]-1) / blockDims[d];
+			blocksCount *= gridDims[d];
+		}
+
+		final T zero = Util.getTypeFromInterval(zImg).createVariable();
+		zero.setZero();
+
+		final DatasetAttributes attributes = new DatasetAttributes(dims, blockDims, N5Utils.dataType(zero), new GzipCompression());
+		try
+		{
+			n5.createDataset(dataset, attributes);
+			if (resolution != null) n5.setAttribute(dataset, "resolution", scaledResolution(downsamplingFactors));
+			if (downsamplingFactors != null) n5.setAttribute(dataset, "downsamplingFactors", downsamplingFactors);
+		}
+		catch (Exception e) {
+			firstError = firstError == null ? e : firstError;
+			imagesInFlight.release();
+			if (whenSaved != null) whenSaved.run();
+			written.completeExceptionally(e);
+			return written;
+		}
+
+		final AtomicInteger remainingBlocks = new AtomicInteger((int)blocksCount);
+		final AtomicReference<Exception> imgError = new AtomicReference<>();
+		final long[] gridPos = new long[n];
+		for (long b = 0; b < blocksCount; ++b)
+		{
+			final long[] min = new long[n];
+			final long[] max = new long[n];
+			for (int d = 0; d < n; ++d)
+			{
+				min[d] = gridPos[d] * blockDims[d];
+				max[d] = Math.min(min[d] + blockDims[d], dims[d]) - 1;
+			}
+			final long[] blockGridPos = gridPos.clone();
+
+			writers.submit( () -> {
+				try
+				{
+					N5Utils.saveNonEmptyBlock(Views.zeroMin(Views.interval(zImg, new FinalInterval(min,max))),
+						n5, dataset, attributes, blockGridPos, zero.copy());
+				}
+				catch (Exception e) {
+					firstError = firstError == null ? e : firstError;
+					imgError.compareAndSet(null, e);
+				}
+				finally
+				{
+					if (remainingBlocks.decrementAndGet() == 0)
+					{
+						if (whenSaved != null) whenSaved.run();
+						imagesInFlight.release();
+						if (imgError.get() != null) written.completeExceptionally(imgError.get());
+						else written.complete(null);
+					}
+				}
+			} );
+
+			//next block in the grid
+			for (int d = 0; d < n; ++d)
+			{
+				if (++gridPos[d] < gridDims[d]) break;
+				gridPos[d] = 0;
+			}
+		}
+		return written;
+	}
+
+	private
+	double[] scaledResolution(final long[] downsamplingFactors)
+	{
+		if (downsamplingFactors == null) return resolution;
+		final double[] scaled = resolution.clone();
+		for (int d = 0; d < Math.min(scaled.length, downsamplingFactors.length); ++d)
+			scaled[d] *= downsamplingFactors[d];
+		return scaled;
+	}
+
+	/** waits until all scheduled blocks are written, and closes the container;
+	    throws IOException if some of the blocks could not be written */
+	public
+	void closeAllWorkers_FinishFirstAllUnsavedImages()
+	throws InterruptedException, IOException
+	{
+		writers.shutdown();
+		writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		closeContainer();
+
+		if (firstError != null)
+			throw new IOException("Writing into "+containerPath+" failed: "+firstError.getMessage(), firstError);
+	}
+
+	/** stops writing immediately, unwritten blocks are lost;
+	    does nothing if the writer has been closed already */
+	public
+	void closeAllWorkers_LeavePossiblyUnsavedImages()
+	{
+		writers.shutdownNow();
+		closeContainer();
+	}
+
+	private boolean isClosed = false;
+
+	private synchronized
+	void closeContainer()
+	{
+		if (isClosed) return;
+		n5.close();
+		isClosed = true;
+	}
+}
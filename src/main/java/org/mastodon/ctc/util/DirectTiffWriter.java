@@ -0,0 +1,373 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+
+/**
+ * Writes array-backed images ({@link PlanarImg} or {@link ArrayImg}) of 8-bit or
+ * 16-bit unsigned integers or 32-bit floats as classic TIFF files. Images that
+ * would not fit below 4 GB are not supported, and should be left to ImageJ that
+ * writes them in its own (classic) layout, which it can also read back.
+ * The planes are taken directly from the images' arrays and are written
+ * through a {@link FileChannel}, 8-bit planes without any copying at all,
+ * the others with one bulk copy into the file's byte order.
+ *
+ * Optionally, the planes are split into strips that are deflate-compressed
+ * with the given number of threads, which are shared by all concurrent
+ * callers of write(). The (mostly empty) images of the tracking markers shrink
+ * a lot this way. The strips are written in their order as soon as they are
+ * compressed, followed by the IFDs (directories) at the end of the file.
+ *
+ * @author Vladimir Ulman
+ */
+public class DirectTiffWriter
+{
+	/** 'compressionThreads' larger than 0 makes the images deflate-compressed
+	    using that many threads, otherwise the images are written uncompressed */
+	public
+	DirectTiffWriter(final int compressionThreads)
+	{
+		compressors = compressionThreads > 0 ? Executors.newFixedThreadPool(compressionThreads) : null;
+	}
+
+	/** the compressing threads, or null if not compressing */
+	private final ExecutorService compressors;
+
+	public
+	boolean isCompressing()
+	{
+		return compressors != null;
+	}
+
+	/** stops the compressing threads, the writer must not be used afterwards */
+	public
+	void close()
+	{
+		if (compressors != null) compressors.shutdown();
+	}
+
+
+	/** returns true if the 'img' can be written with the write() */
+	public
+	boolean isSupported(final RandomAccessibleInterval<?> img)
+	{
+		final Planes planes = planesOf(img);
+		return planes != null && maxFileLength(planes) < TiffLayout.CLASSIC_TIFF_LIMIT;
+	}
+
+	/** returns true if the 'path' looks like a TIFF file */
+	public static
+	boolean isTiffPath(final String path)
+	{
+		final String lcPath = path.toLowerCase();
+		return lcPath.endsWith(".tif") || lcPath.endsWith(".tiff");
+	}
+
+	/** the pixels of all planes of an image: every plane is 'planeSize' voxels
+	    of the 'arrays[p]' starting from the 'offsets[p]' */
+	static class Planes
+	{
+		Object[] arrays;
+		int[] offsets;
+		int width, height, planeSize, bitDepth;
+	}
+
+	/** returns the planes of the 'img', or null if the 'img' is not supported */
+	static
+	Planes planesOf(final RandomAccessibleInterval<?> img)
+	{
+		if (img.numDimensions() < 2) return null;
+		final Object type = Util.getTypeFromInterval(img);
+		if (!(type instanceof UnsignedByteType || type instanceof UnsignedShortType || type instanceof FloatType))
+			return null;
+		if ((long)img.dimension(0) * img.dimension(1) > Integer.MAX_VALUE) return null;
+
+		final Planes planes = new Planes();
+		planes.width = (int)img.dimension(0);
+		planes.height = (int)img.dimension(1);
+		planes.planeSize = planes.width * planes.height;
+
+		long planesCount = 1;
+		for (int d = 2; d < img.numDimensions(); ++d) planesCount *= img.dimension(d);
+		if (planesCount > Integer.MAX_VALUE) return null;
+		planes.arrays = new Object[(int)planesCount];
+		planes.offsets = new int[(int)planesCount];
+
+		if (img instanceof PlanarImg)
+		{
+			final PlanarImg<?,?> pImg = (PlanarImg<?,?>)img;
+			for (int p = 0; p < planesCount; ++p)
+			{
+				final Object plane = pImg.getPlane(p);
+				if (!(plane instanceof ArrayDataAccess)) return null;
+				planes.arrays[p] = ((ArrayDataAccess<?>)plane).getCurrentStorageArray();
+			}
+		}
+		else if (img instanceof ArrayImg)
+		{
+			final Object data = ((ArrayImg<?,?>)img).update(null);
+			if (!(data instanceof ArrayDataAccess)) return null;
+			final Object array = ((ArrayDataAccess<?>)data).getCurrentStorageArray();
+			if (planesCount * planes.planeSize > Integer.MAX_VALUE) return null;
+			Arrays.fill(planes.arrays, array);
+			for (int p = 0; p < planesCount; ++p) planes.offsets[p] = p * planes.planeSize;
+		}
+		else return null;
+
+		planes.bitDepth = TiffLayout.bitDepthOf(planes.arrays[0]);
+		return planes.bitDepth > 0 ? planes : null;
+	}
+
+
+	/** the compressed strips should be about this large (before the compression) */
+	private static final int STRIP_BYTES = 64 << 10;
+
+	private
+	int rowsPerStrip(final Planes planes)
+	{
+		final int rowBytes = planes.width * planes.bitDepth/8;
+		return isCompressing() ? Math.max(1, Math.min(planes.height, STRIP_BYTES / rowBytes)) : planes.height;
+	}
+
+	/** an upper bound on the length of the file of the 'planes' */
+	private
+	long maxFileLength(final Planes planes)
+	{
+		final int rowsPerStrip = rowsPerStrip(planes);
+		final int stripsPerPlane = (planes.height + rowsPerStrip-1) / rowsPerStrip;
+		final int planesCount = planes.arrays.length;
+		final int descriptionLength = TiffLayout.imagejDescription(planesCount, 1).length;
+
+		//NB: deflate can make the data slightly larger, an upper bound is estimated here
+		final long dataBytes = (long)planesCount * planes.planeSize * (planes.bitDepth/8);
+		return 16 + descriptionLength + dataBytes + dataBytes/500
+			+ (long)planesCount * stripsPerPlane * (16+16) + (long)planesCount * (TiffLayout.align(8 + (TAGS_COUNT+1)*20 + 8) + 16);
+	}
+
+	/** writes (overwrites) the 'img' into the TIFF file 'path', may be called concurrently */
+	public
+	void write(final RandomAccessibleInterval<?> img, final String path)
+	throws IOException
+	{
+		final Planes planes = planesOf(img);
+		if (planes == null)
+			throw new IOException("Cannot write image of "+Util.getTypeFromInterval(img).getClass().getSimpleName()
+			                      +" directly into "+path);
+
+		//NB: ImageJ cannot read BigTIFF, larger images are written by ImageJ
+		if (maxFileLength(planes) >= TiffLayout.CLASSIC_TIFF_LIMIT)
+			throw new IOException("Image is too large to be written directly into "+path);
+
+		final int bytesPerVoxel = planes.bitDepth/8;
+		final int rowsPerStrip = rowsPerStrip(planes);
+		final int stripsPerPlane = (planes.height + rowsPerStrip-1) / rowsPerStrip;
+		final int planesCount = planes.arrays.length;
+
+		final byte[] description = TiffLayout.imagejDescription(planesCount, 1);
+		final TiffLayout tiff = new TiffLayout(false);
+
+		final long[][] stripOffsets = new long[planesCount][stripsPerPlane];
+		final long[][] stripBytes = new long[planesCount][stripsPerPlane];
+
+		try (final FileChannel channel = FileChannel.open(Paths.get(path),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			final long descriptionOffset = tiff.headerSize();
+			TiffLayout.writeFully(channel, ByteBuffer.wrap(description), descriptionOffset);
+			long position = TiffLayout.align(descriptionOffset + description.length);
+
+			if (isCompressing())
+			{
+				//all strips are compressed in parallel, and written in their order as they become ready
+				final List<Future<byte[]>> strips = new ArrayList<>(planesCount*stripsPerPlane);
+				for (int p = 0; p < planesCount; ++p)
+				for (int s = 0; s < stripsPerPlane; ++s)
+				{
+					final Object array = planes.arrays[p];
+					final int offset = planes.offsets[p] + s*rowsPerStrip*planes.width;
+					final int length = Math.min(rowsPerStrip, planes.height - s*rowsPerStrip) * planes.width;
+					strips.add( compressors.submit(() -> deflate(array, offset, length, bytesPerVoxel)) );
+				}
+
+				try
+				{
+					int i = 0;
+					for (int p = 0; p < planesCount; ++p)
+					for (int s = 0; s < stripsPerPlane; ++s)
+					{
+						final byte[] strip = strips.get(i++).get();
+						stripOffsets[p][s] = position;
+						stripBytes[p][s] = strip.length;
+						TiffLayout.writeFully(channel, ByteBuffer.wrap(strip), position);
+						position += strip.length;
+					}
+				}
+				catch (InterruptedException e) {
+					for (final Future<byte[]> strip : strips) strip.cancel(true);
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Writing of "+path+" was interrupted.");
+				}
+				catch (ExecutionException e) {
+					for (final Future<byte[]> strip : strips) strip.cancel(true);
+					throw new IOException("Compressing of "+path+" failed: "+e.getCause().getMessage(), e.getCause());
+				}
+			}
+			else
+			{
+				final ByteBuffer buf = planes.bitDepth == 8 ? null
+					: ByteBuffer.allocate(planes.planeSize * bytesPerVoxel).order(ByteOrder.LITTLE_ENDIAN);
+				for (int p = 0; p < planesCount; ++p)
+				{
+					final ByteBuffer plane;
+					if (buf == null)
+						plane = ByteBuffer.wrap((byte[])planes.arrays[p], planes.offsets[p], planes.planeSize);
+					else
+					{
+						buf.clear();
+						TiffLayout.putPixels(buf, planes.arrays[p], planes.offsets[p], planes.planeSize);
+						buf.flip();
+						plane = buf;
+					}
+					stripOffsets[p][0] = position;
+					stripBytes[p][0] = plane.remaining();
+					TiffLayout.writeFully(channel, plane, position);
+					position += stripBytes[p][0];
+				}
+			}
+
+			//the IFDs, each preceded with the tables of its strips (if there are more of them)
+			position = TiffLayout.align(position);
+			final long firstIfdOffset = position;
+			final int tablesSize = stripsPerPlane > 1 ? 2 * stripsPerPlane * tiff.offsetSize() : 0;
+			for (int p = 0; p < planesCount; ++p)
+			{
+				final boolean isFirst = p == 0;
+				final int ifdSize = tiff.ifdSize(TAGS_COUNT + (isFirst ? 1 : 0));
+				final long ifdOffset = position + tablesSize;
+				final long nextPosition = TiffLayout.align(ifdOffset + ifdSize);
+
+				final ByteBuffer b = ByteBuffer.allocate(tablesSize + ifdSize).order(ByteOrder.LITTLE_ENDIAN);
+				if (stripsPerPlane > 1)
+				{
+					for (final long o : stripOffsets[p]) tiff.putOffset(b, o);
+					for (final long c : stripBytes[p]) tiff.putOffset(b, c);
+				}
+
+				final int entries = TAGS_COUNT + (isFirst ? 1 : 0);
+				if (tiff.isBig) b.putLong(entries); else b.putShort((short)entries);
+				tiff.putEntry(b, 254, TiffLayout.TYPE_LONG,  1, 0);                   //NewSubfileType
+				tiff.putEntry(b, 256, TiffLayout.TYPE_LONG,  1, planes.width);        //ImageWidth
+				tiff.putEntry(b, 257, TiffLayout.TYPE_LONG,  1, planes.height);       //ImageLength
+				tiff.putEntry(b, 258, TiffLayout.TYPE_SHORT, 1, planes.bitDepth);     //BitsPerSample
+				tiff.putEntry(b, 259, TiffLayout.TYPE_SHORT, 1, isCompressing() ? 8 : 1); //Compression: deflate or none
+				tiff.putEntry(b, 262, TiffLayout.TYPE_SHORT, 1, 1);                   //PhotometricInterpretation: BlackIsZero
+				if (isFirst)
+					tiff.putEntry(b, 270, TiffLayout.TYPE_ASCII, description.length, descriptionOffset); //ImageDescription
+				tiff.putEntry(b, 273, tiff.offsetType(), stripsPerPlane,              //StripOffsets
+				              stripsPerPlane > 1 ? position : stripOffsets[p][0]);
+				tiff.putEntry(b, 277, TiffLayout.TYPE_SHORT, 1, 1);                   //SamplesPerPixel
+				tiff.putEntry(b, 278, TiffLayout.TYPE_LONG,  1, rowsPerStrip);        //RowsPerStrip
+				tiff.putEntry(b, 279, tiff.offsetType(), stripsPerPlane,              //StripByteCounts
+				              stripsPerPlane > 1 ? position + tablesSize/2 : stripBytes[p][0]);
+				tiff.putEntry(b, 339, TiffLayout.TYPE_SHORT, 1, planes.bitDepth == 32 ? 3 : 1); //SampleFormat: float or uint
+				tiff.putOffset(b, p+1 < planesCount ? nextPosition : 0);
+
+				b.flip();
+				TiffLayout.writeFully(channel, b, position);
+				position = nextPosition;
+			}
+
+			//finally, the header that points at the first IFD
+			TiffLayout.writeFully(channel, tiff.header(firstIfdOffset), 0);
+		}
+	}
+
+	private static final int TAGS_COUNT = 11; //NB: without the ImageDescription
+
+	/** returns the 'length' voxels of the 'array' from its 'offset' deflated (in the zlib format) */
+	static
+	byte[] deflate(final Object array, final int offset, final int length, final int bytesPerVoxel)
+	throws IOException
+	{
+		final byte[] input;
+		if (array instanceof byte[] && offset == 0 && length == ((byte[])array).length)
+			input = (byte[])array;
+		else
+		{
+			final ByteBuffer buf = ByteBuffer.allocate(length * bytesPerVoxel).order(ByteOrder.LITTLE_ENDIAN);
+			TiffLayout.putPixels(buf, array, offset, length);
+			input = buf.array();
+		}
+
+		//NB: the fastest level is enough for the (mostly empty) markers images
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try
+		{
+			deflater.setInput(input);
+			deflater.finish();
+			byte[] output = new byte[Math.max(input.length/8, 1024)];
+			int outputLength = 0;
+			while (!deflater.finished())
+			{
+				if (outputLength == output.length)
+					output = Arrays.copyOf(output, 2*output.length);
+				outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+			}
+			return Arrays.copyOf(output, outputLength);
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionStage;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Follows which time points of the export have already all their images
+ * written, and saves this progress (the checkpoint) so that a stopped,
+ * failed or crashed export can be resumed after the last fully written
+ * time point.
+ *
+ * The images are handed over to the saving threads in the order of their
+ * time points, but they may get written in any order. A time point is
+ * therefore considered written only once all its images and the images of
+ * all earlier time points are written. The checkpoint is valid only under
+ * the same export settings, which are hashed (see {@link ExportManifest}).
+ * The content of the written time points (e.g., the spots drawn into their
+ * markers images) is hashed too, so that an export cannot be resumed after
+ * the project has been changed in the already written time points.
+ *
+ * @author Vladimir Ulman
+ */
+public class ExportCheckpoint
+{
+	/** reads the previous checkpoint from the 'checkpointFile' if it
+	    exists and if it was created with the same 'settingsHash' */
+	public ExportCheckpoint(final File checkpointFile, final long settingsHash)
+	{
+		this.checkpointFile = checkpointFile;
+		this.settingsHash = settingsHash;
+
+		if (!checkpointFile.exists()) return;
+		try (final BufferedReader f = new BufferedReader( new FileReader(checkpointFile) ))
+		{
+			String line = f.readLine();
+			while (line != null && line.startsWith("#")) line = f.readLine();
+			if (line == null || !line.equals(SETTINGS_KEYWORD+Long.toHexString(settingsHash))) return;
+
+			line = f.readLine();
+			if (line == null || !line.startsWith(WRITTEN_KEYWORD)) return;
+			final int writtenTill = Integer.parseInt(line.substring(WRITTEN_KEYWORD.length()));
+
+			//NB: without the content hash, the written time points cannot be verified
+			line = f.readLine();
+			if (line == null || !line.startsWith(CONTENT_KEYWORD)) return;
+			previousContentHash = Long.parseUnsignedLong(line.substring(CONTENT_KEYWORD.length()),16);
+			previouslyWrittenTill = writtenTill;
+		}
+		catch (IOException | NumberFormatException e) {
+			previouslyWrittenTill = NONE;
+		}
+	}
+
+	private static final String SETTINGS_KEYWORD = "settings ";
+	private static final String WRITTEN_KEYWORD = "written_till ";
+	private static final String CONTENT_KEYWORD = "content ";
+
+	/** the time point "before any time point" */
+	public static final int NONE = Integer.MIN_VALUE;
+
+	private final File checkpointFile;
+	private final long settingsHash;
+
+	private int previouslyWrittenTill = NONE;
+	private long previousContentHash = ExportManifest.HASH_SEED;
+
+	/** the last time point that was fully written according to the previous
+	    checkpoint, or NONE if there is no usable previous checkpoint */
+	public int getPreviouslyWrittenTill()
+	{
+		return previouslyWrittenTill;
+	}
+
+
+	/** returns true if the content of the time points from 'timeFrom' till getPreviouslyWrittenTill(),
+	    as given with the 'contentHashOf' (see imagesQueued()), is the same as when the previous
+	    checkpoint was saved; the time points are then considered written already, as if
+	    they were queued and written with this export */
+	public boolean resume(final int timeFrom, final IntToLongFunction contentHashOf)
+	{
+		if (previouslyWrittenTill == NONE) return false;
+
+		long h = ExportManifest.HASH_SEED;
+		for (int time = timeFrom; time <= previouslyWrittenTill; ++time)
+			h = ExportManifest.mix(h, contentHashOf.applyAsLong(time));
+		if (h != previousContentHash) return false;
+
+		synchronized (this)
+		{
+			writtenContentHash = h;
+			contentHashes.clear();
+			imagesQueued(previouslyWrittenTill, 0);
+		}
+		return true;
+	}
+
+
+	/** map: time point to the number of its images that are not yet written */
+	private final TreeMap<Integer,Integer> pendingImages = new TreeMap<>();
+
+	/** the last time point whose all images were handed over for writing */
+	private int queuedTill = NONE;
+
+	/** the last time point saved with the save() */
+	private int savedTill = NONE;
+
+	/** map: time point to the hash of its content, for the time points not yet saved */
+	private final TreeMap<Integer,Long> contentHashes = new TreeMap<>();
+
+	/** the content hashes of all time points till the 'savedTill' mixed together */
+	private long writtenContentHash = ExportManifest.HASH_SEED;
+
+	/** the same as imagesQueued() but also declares the hash of the 'time' point's content,
+	    which is whatever its images depend on besides the export settings, e.g., the spots
+	    drawn into its markers image */
+	public synchronized void imagesQueued(final int time, final int imagesCount, final long contentHash)
+	{
+		contentHashes.put(time, contentHash);
+		imagesQueued(time, imagesCount);
+	}
+
+	/** declares that the 'imagesCount' images of the 'time' point are about to be handed
+	    over for writing, the time points must be declared in the increasing order */
+	public synchronized void imagesQueued(final int time, final int imagesCount)
+	{
+		if (imagesCount > 0) pendingImages.merge(time, imagesCount, Integer::sum);
+		queuedTill = time;
+	}
+
+	/** declares that one image of the 'time' point has been written, can be called from any thread */
+	public synchronized void imageWritten(final int time)
+	{
+		final Integer count = pendingImages.get(time);
+		if (count == null) return;
+		if (count > 1) pendingImages.put(time, count-1);
+		else pendingImages.remove(time);
+	}
+
+	/** declares one image of the 'time' point written once its 'saving' completes,
+	    an image whose saving has failed (or was cancelled) is never declared written */
+	public void imageWrittenWhenSaved(final int time, final CompletionStage<?> saving)
+	{
+		saving.thenRun( () -> imageWritten(time) );
+	}
+
+	/** returns the last time point such that it and all earlier time points are fully written */
+	public synchronized int getWrittenTill()
+	{
+		if (pendingImages.isEmpty()) return queuedTill;
+		return Math.min(queuedTill, pendingImages.firstKey()-1);
+	}
+
+	/** returns true if getWrittenTill() has moved since the last save() */
+	public boolean hasProgressed()
+	{
+		return getWrittenTill() > savedTill;
+	}
+
+	/** writes the checkpoint that all time points till 'writtenTill' are fully written */
+	public synchronized void save(final int writtenTill)
+	throws IOException
+	{
+		long contentHash = writtenContentHash;
+		for (final long h : contentHashes.headMap(writtenTill, true).values())
+			contentHash = ExportManifest.mix(contentHash, h);
+
+		//NB: written aside first, so that a crash cannot leave behind a damaged checkpoint
+		final File tmpFile = new File(checkpointFile.getPath()+".tmp");
+		try (final BufferedWriter f = new BufferedWriter( new FileWriter(tmpFile) ))
+		{
+			f.write("# CTC export checkpoint: all images till the time point below are written");
+			f.newLine();
+			f.write(SETTINGS_KEYWORD+Long.toHexString(settingsHash));
+			f.newLine();
+			f.write(WRITTEN_KEYWORD+writtenTill);
+			f.newLine();
+			f.write(CONTENT_KEYWORD+Long.toHexString(contentHash));
+			f.newLine();
+		}
+		checkpointFile.delete();
+		if (!tmpFile.renameTo(checkpointFile))
+			throw new IOException("Cannot write checkpoint "+checkpointFile);
+		savedTill = writtenTill;
+		writtenContentHash = contentHash;
+		contentHashes.headMap(writtenTill, true).clear();
+	}
+
+	/** saves the checkpoint (if it has progressed, or always if 'isFinal'), and the lineage
+	    'lineageFile' that covers only the fully written time points (if not null); the
+	    streamed lineage is shortened only with the final checkpoint, returns the time
+	    point till which all images are written, or NONE if nothing was saved */
+	public int save(final RemappableTrackRecords tracks, final String lineageFile,
+	                final int timeShift, final boolean isFinal)
+	throws IOException
+	{
+		if (!hasProgressed() && !isFinal) return NONE;
+		final int writtenTill = getWrittenTill();
+		if (lineageFile != null && tracks.isStreamed())
+		{
+			//NB: the streamed lineage is complete, shortening it now would lose it, so only when finishing
+			if (isFinal) RemappableTrackRecords.truncateLineageFile(lineageFile, writtenTill+timeShift);
+		}
+		else if (lineageFile != null)
+		{
+			tracks.exportTruncatedToFile(lineageFile, timeShift, writtenTill);
+			if (tracks.isRemapped()) tracks.exportRemappingToFile(lineageFile+".idmap");
+		}
+		save(writtenTill);
+		return writtenTill;
+	}
+
+	/** removes the checkpoint, e.g., after the export is complete */
+	public void delete()
+	{
+		checkpointFile.delete();
+	}
+}
@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Remembers the content hashes of the exported images, and compares them with
+ * the hashes from the previous export (that were saved in the manifest file)
+ * to tell which images need not be written again.
+ *
+ * The images are identified by their file names, their hashes are valid only
+ * under the same export settings, which are hashed too. The manifest file
+ * of the previous export is removed when it is read, and it is written anew
+ * with save() only after the export is over, so that an interrupted export
+ * cannot leave behind a manifest that would not agree with the images.
+ * Images whose writing failed are forgotten, and are written again next time.
+ *
+ * @author Vladimir Ulman
+ */
+public class ExportManifest
+{
+	/** reads (and removes) the previous manifest from the 'manifestFile' if
+	    it exists and if it was created with the same 'settingsHash' */
+	public ExportManifest(final File manifestFile, final long settingsHash)
+	{
+		this.manifestFile = manifestFile;
+		this.settingsHash = settingsHash;
+
+		if (!manifestFile.exists()) return;
+		try (final BufferedReader f = new BufferedReader( new FileReader(manifestFile) ))
+		{
+			String line = f.readLine();
+			while (line != null && line.startsWith("#")) line = f.readLine();
+			if (line == null || !line.equals(SETTINGS_KEYWORD+Long.toHexString(settingsHash))) return;
+
+			while ((line = f.readLine()) != null)
+			{
+				final int sep = line.indexOf(' ');
+				if (line.startsWith("#") || sep < 1) continue;
+				previousHashes.put(line.substring(sep+1), Long.parseUnsignedLong(line.substring(0,sep),16));
+			}
+		}
+		catch (IOException | NumberFormatException e) {
+			previousHashes.clear();
+		}
+		finally
+		{
+			manifestFile.delete();
+		}
+	}
+
+	private static final String SETTINGS_KEYWORD = "settings ";
+
+	private final File manifestFile;
+	private final long settingsHash;
+
+	/** map: image file name to its content hash */
+	private final Map<String,Long> previousHashes = new HashMap<>(1000);
+	private final Map<String,Long> currentHashes = new HashMap<>(1000);
+
+	/** true if the previous manifest was found and is usable */
+	public boolean hasPreviousExport()
+	{
+		return !previousHashes.isEmpty();
+	}
+
+	/** records the 'contentHash' of the image 'imgFilename', returns true if the
+	    image needs to be written, that is, if it does not exist yet or its
+	    previous hash is not known or it differs from the 'contentHash' */
+	public synchronized boolean update(final String imgFilename, final long contentHash)
+	{
+		final String key = new File(imgFilename).getName();
+		currentHashes.put(key, contentHash);
+
+		final Long previousHash = previousHashes.get(key);
+		return previousHash == null || previousHash != contentHash || !new File(imgFilename).exists();
+	}
+
+	/** forgets the hash of the image 'imgFilename', e.g., because its writing failed,
+	    so that it is written again with the next export; can be called from any thread */
+	public synchronized void forget(final String imgFilename)
+	{
+		currentHashes.remove( new File(imgFilename).getName() );
+	}
+
+	/** forgets the image 'imgFilename' if its 'saving' fails (or is cancelled) */
+	public void forgetWhenFailed(final String imgFilename, final CompletionStage<?> saving)
+	{
+		saving.whenComplete( (r,e) -> { if (e != null) forget(imgFilename); } );
+	}
+
+	/** writes all update()-ed (and not forgotten) hashes into the manifest file */
+	public synchronized void save()
+	throws IOException
+	{
+		try (final BufferedWriter f = new BufferedWriter( new FileWriter(manifestFile) ))
+		{
+			f.write("# CTC export manifest: content_hash image_file_name");
+			f.newLine();
+			f.write(SETTINGS_KEYWORD+Long.toHexString(settingsHash));
+			f.newLine();
+			for (final Map.Entry<String,Long> h : currentHashes.entrySet())
+			{
+				f.write(Long.toHexString(h.getValue())+" "+h.getKey());
+				f.newLine();
+			}
+		}
+	}
+
+
+	// ----------------- hashing -----------------
+	public static final long HASH_SEED = 0xcbf29ce484222325L;
+
+	/** mixes the 'value' into the hash 'h' (FNV-1a over the value's bytes) */
+	public static long mix(long h, long value)
+	{
+		for (int i = 0; i < 8; ++i)
+		{
+			h ^= value & 0xff;
+			h *= 0x100000001b3L;
+			value >>>= 8;
+		}
+		return h;
+	}
+
+	public static long mix(final long h, final double value)
+	{
+		return mix(h, Double.doubleToLongBits(value));
+	}
+
+	public static long mix(long h, final String value)
+	{
+		for (int i = 0; i < value.length(); ++i)
+			h = mix(h, (long)value.charAt(i));
+		return h;
+	}
+}
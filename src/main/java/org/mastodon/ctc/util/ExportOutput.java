@@ -0,0 +1,279 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.scijava.log.LogService;
+
+import ij.ImagePlus;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.view.Views;
+
+/**
+ * Where the exported images go: either TIFF files (one per image) written with
+ * the {@link ParallelImgSaver}, or TIFF hyperstacks (one per image kind, all time
+ * points in one file, see {@link BigTiffStackWriter}) also written with the saver,
+ * or datasets of one N5/Zarr container written with the {@link ChunkedImgWriter}.
+ *
+ * @author Vladimir Ulman
+ */
+public class ExportOutput
+{
+	/** writes the images as TIFF files with the 'saver' */
+	public ExportOutput(final ParallelImgSaver saver, final LogService logService)
+	{
+		this.saver = saver;
+		this.chunkedWriter = null;
+		this.logService = logService;
+	}
+
+	/** writes the images as datasets with the 'chunkedWriter' */
+	public ExportOutput(final ChunkedImgWriter chunkedWriter, final LogService logService)
+	{
+		this.saver = null;
+		this.chunkedWriter = chunkedWriter;
+		this.logService = logService;
+	}
+
+	/** the writer of TIFF files, or null if N5/Zarr datasets are written */
+	public final ParallelImgSaver saver;
+
+	/** the writer of N5/Zarr datasets, or null if TIFF files are written */
+	public final ChunkedImgWriter chunkedWriter;
+
+	private final LogService logService;
+
+	/** returns the writer into the container given by the 'outputFormat' ("Zarr..."
+	    or N5 otherwise) that is created in the 'outputFolder', or null (after
+	    reporting why) if it cannot be opened */
+	public static
+	ChunkedImgWriter openChunkedWriter(final File outputFolder, final String outputFormat,
+	                                   final ExportPlan plan, final double[] resLen,
+	                                   final LogService logService)
+	{
+		final boolean useZarr = outputFormat.startsWith("Zarr");
+		final String containerPath = outputFolder.getAbsolutePath() + File.separator + (useZarr ? "images.zarr" : "images.n5");
+		try
+		{
+			final ChunkedImgWriter writer = new ChunkedImgWriter(containerPath, useZarr,
+				plan.writerThreads, ExportPlan.SAVER_QUEUE_LENGTH + plan.writerThreads);
+			writer.resolution = resLen.clone();
+			logService.info("Output container is   : "+containerPath);
+			return writer;
+		}
+		catch (IOException e) {
+			logService.error(e.getMessage());
+			return null;
+		}
+	}
+
+
+	/** the hyperstack writers (per output file), or null if one file per time point is written */
+	private Map<String,BigTiffStackWriter> stackWriters = null;
+	private int stackTimeFrom, stackImagesCount;
+
+	/** from now on, the images are written into hyperstacks that have
+	    slots for the 'imagesCount' time points starting from 'timeFrom' */
+	public void useStacks(final int timeFrom, final int imagesCount)
+	{
+		stackWriters = new HashMap<>();
+		stackTimeFrom = timeFrom;
+		stackImagesCount = imagesCount;
+	}
+
+	/** returns the 'template' without the time point number, e.g. man_track%03d.tif -> man_track.tif */
+	public static
+	String stackFilename(final String template)
+	{
+		final String filename = template.replaceAll("%[0-9]*d", "");
+		return filename.isEmpty() || filename.startsWith(".") ? "stack"+filename : filename;
+	}
+
+	/** returns the hyperstack writer of the 'path', it is opened for images like the 'imp' if needed */
+	private
+	BigTiffStackWriter stackWriterFor(final String path, final ImagePlus imp)
+	throws IOException
+	{
+		BigTiffStackWriter writer = stackWriters.get(path);
+		if (writer == null)
+		{
+			writer = new BigTiffStackWriter(path, imp.getWidth(), imp.getHeight(), imp.getStackSize(),
+				stackImagesCount, imp.getBitDepth());
+			stackWriters.put(path, writer);
+			logService.info("Output hyperstack is  : "+path);
+		}
+		return writer;
+	}
+
+	private
+	void closeStackWriters()
+	{
+		if (stackWriters == null) return;
+		for (final BigTiffStackWriter writer : stackWriters.values())
+		{
+			try { writer.close(); }
+			catch (IOException e) {
+				logService.error("Closing of "+writer.getPath()+" failed: "+e.getMessage());
+			}
+		}
+		stackWriters = null;
+	}
+
+
+	/** returns the path to which the image of the 'filename' is actually written */
+	public
+	String outputPath(final String filename)
+	{
+		return chunkedWriter != null ? chunkedWriter.getDatasetPath(filename) : filename;
+	}
+
+	/** hands over the 'img' either to the 'saver' or to the 'chunkedWriter',
+	    possibly waits until the list of images to be saved becomes small,
+	    returns the future that completes only once the 'img' is written */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public
+	CompletableFuture<?> saveImg(final RandomAccessibleInterval img, final String path,
+	                             final int time, final Runnable whenSaved)
+	throws InterruptedException, IOException
+	{
+		if (stackWriters != null)
+			return saveImg(ImageJFunctions.wrap(img, path), path, time, whenSaved);
+		else if (chunkedWriter != null)
+			return chunkedWriter.addImgSaveRequestOrBlock(img, path, whenSaved);
+		else
+			return saver.addImgSaveRequestOrBlock(img, path, whenSaved);
+	}
+
+	/** hands over the already prepared 'imp' to the 'saver', either as a file
+	    of its own or as the time point 'time' of the hyperstack 'path' */
+	public
+	CompletableFuture<?> saveImg(final ImagePlus imp, final String path,
+	                             final int time, final Runnable whenSaved)
+	throws InterruptedException, IOException
+	{
+		if (stackWriters != null)
+			return saver.addImgSaveRequestOrBlock(imp, stackWriterFor(path, imp), time-stackTimeFrom, whenSaved);
+		else
+			return saver.addImgSaveRequestOrBlock(imp, path, whenSaved);
+	}
+
+	/** hands over the images of the given time point for saving, waits for
+	    the markers image to be rendered, and also possibly waits until the
+	    list of images to be saved becomes small; the raw images are cropped
+	    to the 'rawImgRoi' (unless null or already copied), the markers levels
+	    are downsampled with the 'pyramidFactors', see also watchWith() */
+	@SuppressWarnings({ "rawtypes" })
+	public <T>
+	void saveTimePoint(final TimePointInFlight<T> tp, final ImgBufferPool<MarkersRenderer.MarkersBuffer<T>> buffers,
+	                   final Interval rawImgRoi, final long[][] pyramidFactors)
+	throws InterruptedException, ExecutionException, IOException
+	{
+		if (checkpoint != null)
+			checkpoint.imagesQueued(tp.time, tp.imagesCount(pyramidFactors != null ? pyramidFactors.length : 0), tp.contentHash);
+
+		for (final TimePointInFlight.RawImg raw : tp.rawImgs)
+		if (raw.copy != null)
+			watch(tp, raw.filename, saveImg(raw.copy.get(), raw.filename, tp.time, null));
+		else
+		{
+			RandomAccessibleInterval rawImg = raw.source.getImage(tp.time);
+			if (rawImgRoi != null) rawImg = Views.zeroMin( Views.interval(rawImg, rawImgRoi) );
+			watch(tp, raw.filename, saveImg(rawImg, raw.filename, tp.time, null));
+		}
+		if (tp.outImg != null)
+			watch(tp, tp.outImgFilename, saveImg(tp.outImg.get(), tp.outImgFilename, tp.time, () -> buffers.release(tp.outBuffer)) );
+		if (tp.outLevels != null)
+			for (int l = 0; l < tp.outLevels.size(); ++l)
+			{
+				final String path = LabelPyramid.levelFilename(tp.outImgFilename, l+1);
+				if (chunkedWriter != null)
+					watch(tp, tp.outImgFilename, chunkedWriter.addImgSaveRequestOrBlock((RandomAccessibleInterval)tp.outLevels.get(l), path, pyramidFactors[l], null));
+				else
+					watch(tp, tp.outImgFilename, saveImg(tp.outLevels.get(l), path, tp.time, null));
+			}
+		if (tp.outPlanes != null)
+			watch(tp, tp.outImgFilename, saveImg(tp.outPlanes, tp.outImgFilename, tp.time, null));
+	}
+
+	private ExportCheckpoint checkpoint = null;
+	private ExportManifest manifest = null;
+
+	/** the images handed over with saveTimePoint() will be counted with the 'checkpoint',
+	    and those that fail to be written will be forgotten in the 'manifest' (either can be null) */
+	public void watchWith(final ExportCheckpoint checkpoint, final ExportManifest manifest)
+	{
+		this.checkpoint = checkpoint;
+		this.manifest = manifest;
+	}
+
+	/** reports the image of the 'tp' as written to the 'checkpoint' once its 'saving' succeeds,
+	    or forgets the 'manifestEntry' (the image itself, or the image whose level it is) if it fails */
+	private
+	void watch(final TimePointInFlight<?> tp, final String manifestEntry, final CompletableFuture<?> saving)
+	{
+		if (checkpoint != null) checkpoint.imageWrittenWhenSaved(tp.time, saving);
+		if (manifest != null) manifest.forgetWhenFailed(manifestEntry, saving);
+	}
+
+
+	/** waits until all images are written, and stops the writing threads */
+	public
+	void finishAll()
+	throws InterruptedException, IOException
+	{
+		if (chunkedWriter != null)
+			chunkedWriter.closeAllWorkers_FinishFirstAllUnsavedImages();
+		else
+			saver.closeAllWorkers_FinishFirstAllUnsavedImages();
+	}
+
+	/** stops the writing threads leaving the not yet written images unwritten, and closes
+	    the hyperstacks; does nothing to the writers that have been closed already */
+	public
+	void closeAll()
+	{
+		if (saver != null)
+		{
+			try { saver.closeAllWorkers_LeavePossiblyUnsavedImages(); }
+			catch (InterruptedException e) { /* closing anyway */ }
+		}
+		if (chunkedWriter != null)
+			chunkedWriter.closeAllWorkers_LeavePossiblyUnsavedImages();
+		closeStackWriters();
+	}
+}
@@ -0,0 +1,170 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.io.File;
+import java.util.List;
+
+import org.scijava.log.LogService;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.Util;
+
+/**
+ * The threads and memory related settings with which the export actually runs:
+ * the user's settings, possibly adapted to the available memory with the
+ * adaptToMemory(). The whole images are held while rendered, waiting in the
+ * saver's queue and being saved, so the peak memory is estimated from the
+ * sizes of the images of one time point ({@link ImagesSizes}) and from how
+ * many time points are in flight.
+ *
+ * @author Vladimir Ulman
+ */
+public class ExportPlan
+{
+	/** starts from the user's settings */
+	public ExportPlan(final int renderThreads, final int writerThreads,
+	                  final boolean doPlaneStreaming, final boolean doRawImgCopying)
+	{
+		this.renderThreads = Math.max(renderThreads,1);
+		this.writerThreads = Math.max(writerThreads,1);
+		this.doPlaneStreaming = doPlaneStreaming;
+		this.doRawImgCopying = doRawImgCopying;
+	}
+
+	public int renderThreads;
+	public int writerThreads;
+	public boolean doPlaneStreaming;
+	public boolean doRawImgCopying;
+
+	/** how many time points may wait in the saver's queue before the exporter is blocked */
+	public static final int SAVER_QUEUE_LENGTH = 2;
+
+	/** how many time points are rendered, waiting in the saver's queue and being saved */
+	public int timePointsInFlight()
+	{
+		return renderThreads + SAVER_QUEUE_LENGTH + writerThreads;
+	}
+
+	/** sizes (in bytes) of the images of one time point */
+	public static class ImagesSizes
+	{
+		/** 'markersVoxelType' is null if markers are not exported, the 'rawImgs' are
+		    the raw images (of all channels) of some time point that are exported
+		    cropped to the 'roiImg' (or whole if null) */
+		public ImagesSizes(final long[] outImgSize, final Object markersVoxelType, final boolean withLevels,
+		                   final List<RandomAccessibleInterval<?>> rawImgs, final Interval roiImg)
+		{
+			//NB: the smallest voxel type can only be smaller
+			markersBytes = markersVoxelType != null ? ResourcePlanner.imgBytes(outImgSize, markersVoxelType) : 0;
+			markersPlanes = outImgSize.length > 2 ? (int)Math.max(outImgSize[2],1) : 1;
+			markersPlaneBytes = markersBytes / markersPlanes;
+			//NB: the downsampled levels together take at most 1/3 of the markers image
+			levelsBytes = withLevels ? markersBytes/3 : 0;
+
+			long raw = 0, rawPlane = 0;
+			rawChannelPlanes = new int[rawImgs.size()];
+			rawChannelPlaneBytes = new long[rawImgs.size()];
+			for (int c = 0; c < rawImgs.size(); ++c)
+			{
+				final RandomAccessibleInterval<?> img = rawImgs.get(c);
+				final Interval box = roiImg != null ? roiImg : img;
+				final long bytes = ResourcePlanner.imgBytes(box, Util.getTypeFromInterval(img));
+				raw += bytes;
+				rawPlane += img.numDimensions() > 2 ? bytes / Math.max(img.dimension(2),1) : bytes;
+
+				rawChannelPlanes[c] = box.numDimensions() > 2 ? (int)Math.max(box.dimension(2),1) : 1;
+				rawChannelPlaneBytes[c] = bytes / rawChannelPlanes[c];
+			}
+			rawBytes = raw;
+			rawPlaneBytes = rawPlane;
+		}
+
+		public final long markersBytes, markersPlaneBytes, levelsBytes;
+		public final long rawBytes, rawPlaneBytes; //of all raw channels together
+		private final int markersPlanes;
+		private final int[] rawChannelPlanes;
+		private final long[] rawChannelPlaneBytes;
+
+		public long timePointBytes()
+		{
+			return markersBytes + levelsBytes + rawBytes;
+		}
+
+		/** returns true if some hyperstack of 'timePointsCount' images would need the BigTIFF format */
+		public boolean needsBigTiffStack(final int timePointsCount)
+		{
+			//NB: every image kind is written into its own hyperstack, the levels are smaller than the markers
+			if (markersBytes > 0 && BigTiffStackWriter.needsBigTiff(markersPlaneBytes, markersPlanes, timePointsCount))
+				return true;
+			for (int c = 0; c < rawChannelPlanes.length; ++c)
+				if (BigTiffStackWriter.needsBigTiff(rawChannelPlaneBytes[c], rawChannelPlanes[c], timePointsCount))
+					return true;
+			return false;
+		}
+	}
+
+	/** estimates the peak memory taken by the images in flight, and if it exceeds the budget,
+	    adapts this plan: the raw images copying is turned off first, then the numbers
+	    of the rendering threads, plane by plane rendering is turned on, and finally the number
+	    of the writing threads is lowered; also estimates the size of all outputs on the disk */
+	public void adaptToMemory(final ImagesSizes sizes, final boolean doChunkedOutput,
+	                          final int timePointsCount, final File outputFolder, final LogService logService)
+	{
+		final ResourcePlanner planner = new ResourcePlanner(logService);
+
+		long peak = estimatePeakBytes(sizes, doChunkedOutput);
+		while (!planner.fitsIntoHeap(peak))
+		{
+			if (doRawImgCopying) doRawImgCopying = false;
+			else if (renderThreads > 1) --renderThreads;
+			else if (!doPlaneStreaming && !doChunkedOutput && sizes.markersBytes > 0) doPlaneStreaming = true;
+			else if (writerThreads > 1) --writerThreads;
+			else break; //NB: nothing more can be given up
+			peak = estimatePeakBytes(sizes, doChunkedOutput);
+		}
+
+		planner.reportHeap(renderThreads+" rendering and "+writerThreads+" writing threads"
+		                   +(doRawImgCopying ? ", with raw images copying" : "")
+		                   +(doPlaneStreaming && !doChunkedOutput ? ", plane by plane" : ""), peak);
+		planner.reportDisk(outputFolder, timePointsCount * sizes.timePointBytes());
+	}
+
+	/** peak memory of the images in flight under this plan */
+	public long estimatePeakBytes(final ImagesSizes sizes, final boolean doChunkedOutput)
+	{
+		final int imagesInFlight = timePointsInFlight();
+		final long markers = doPlaneStreaming && !doChunkedOutput ?
+			sizes.markersPlaneBytes * writerThreads : (sizes.markersBytes + sizes.levelsBytes) * imagesInFlight;
+		//NB: not copied raw images are read lazily while saved
+		final long raw = doRawImgCopying ? sizes.rawBytes * imagesInFlight : sizes.rawPlaneBytes * writerThreads;
+		return markers + raw;
+	}
+}
@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.util.ArrayDeque;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool of (typically large) buffers, e.g. images, that are recycled
+ * instead of being re-allocated over and over again. At most 'capacity' buffers
+ * are ever created, acquire() blocks when all of them are taken, until some
+ * of them is release()-d back. The returned buffers are not cleaned in any way.
+ *
+ * @author Vladimir Ulman
+ */
+public class ImgBufferPool<B>
+{
+	public ImgBufferPool(final int capacity, final Supplier<B> bufferFactory)
+	{
+		this.capacity = Math.max(capacity,1);
+		this.bufferFactory = bufferFactory;
+		this.freeBuffers = new ArrayDeque<>(this.capacity);
+	}
+
+	private final int capacity;
+	private final Supplier<B> bufferFactory;
+	private final ArrayDeque<B> freeBuffers;
+	private int createdBuffers = 0;
+
+	/** returns a free buffer, creates a new one if none is free and the capacity
+	    is not exhausted yet, otherwise waits until some buffer is released */
+	public synchronized
+	B acquire()
+	throws InterruptedException
+	{
+		while (freeBuffers.isEmpty() && createdBuffers >= capacity)
+			this.wait();
+
+		if (!freeBuffers.isEmpty()) return freeBuffers.pop();
+
+		++createdBuffers;
+		return bufferFactory.get();
+	}
+
+	/** returns the 'buffer' back to the pool, it must not be used anymore by the caller */
+	public synchronized
+	void release(final B buffer)
+	{
+		freeBuffers.push(buffer);
+		this.notifyAll();
+	}
+
+	/** how many buffers have been created so far */
+	public synchronized
+	int createdBuffersCount()
+	{
+		return createdBuffers;
+	}
+
+	public
+	int getCapacity()
+	{
+		return capacity;
+	}
+}
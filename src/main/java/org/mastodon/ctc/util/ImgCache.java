@@ -0,0 +1,209 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.ImagePlus;
+import net.imglib2.img.Img;
+
+/**
+ * Keeps the recently read images (of files) in the memory, up to the given
+ * total size in bytes, so that reading the same image again (e.g., by another
+ * plugin, or by the same plugin for the previous time point) needs not touch
+ * the disk. When the budget is exceeded, the least recently used images are
+ * evicted until the new image fits; an image larger than the budget is not
+ * cached at all.
+ *
+ * The images are identified by their files' absolute paths, and an image is
+ * not returned if its file has been modified (or its size changed) since it
+ * was cached. Writers of the files should nevertheless invalidate() them.
+ *
+ * One instance is shared by all plugins of the Fiji session, see shared(), its
+ * budget is 1/4 of the max heap unless the system property {@value #BUDGET_PROPERTY}
+ * gives it in megabytes. The returned images are shared and must not be modified.
+ *
+ * Note that images of the Mastodon's (BDV) sources are not cached here because
+ * the BDV maintains its own cache of them.
+ *
+ * @author Vladimir Ulman
+ */
+public class ImgCache
+{
+	public static final String BUDGET_PROPERTY = "mastodon.ctc.imgCacheMB";
+
+	private static ImgCache sharedCache = null;
+
+	/** returns the cache that is shared by all plugins */
+	public static synchronized
+	ImgCache shared()
+	{
+		if (sharedCache == null)
+		{
+			final Long budgetMB = Long.getLong(BUDGET_PROPERTY);
+			sharedCache = new ImgCache(budgetMB != null ? budgetMB << 20 : Runtime.getRuntime().maxMemory() / 4);
+		}
+		return sharedCache;
+	}
+
+	public ImgCache(final long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+
+	private static class Entry
+	{
+		Entry(final Img<?> img, final long bytes, final File file)
+		{
+			this.img = img;
+			this.bytes = bytes;
+			this.lastModified = file.lastModified();
+			this.length = file.length();
+		}
+
+		final Img<?> img;
+		final long bytes;
+		final long lastModified, length; //of the file when the image was read
+
+		boolean isValidFor(final File file)
+		{
+			return file.lastModified() == lastModified && file.length() == length;
+		}
+	}
+
+	/** map: absolute path to the image, in the order from the least recently used */
+	private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+	private long maxBytes;
+	private long usedBytes = 0;
+	private long hits = 0, misses = 0;
+
+	public synchronized
+	long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/** changes the budget, evicts the least recently used images if needed */
+	public synchronized
+	void setMaxBytes(final long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+		evictUntilFits(0);
+	}
+
+	public synchronized
+	long getUsedBytes()
+	{
+		return usedBytes;
+	}
+
+	/** returns the cached image of the 'file', or null if it is not cached
+	    (or the file has changed since then) */
+	public synchronized
+	Img<?> get(final File file)
+	{
+		final String key = file.getAbsolutePath();
+		final Entry e = entries.get(key);
+		if (e != null && e.isValidFor(file))
+		{
+			++hits;
+			return e.img;
+		}
+
+		if (e != null) remove(key);
+		++misses;
+		return null;
+	}
+
+	/** caches the 'img' that was just read from the 'file' (wrapped from the 'ip') */
+	public
+	void put(final File file, final Img<?> img, final ImagePlus ip)
+	{
+		put(file, img, (long)ip.getWidth() * ip.getHeight() * ip.getStackSize() * ip.getBytesPerPixel());
+	}
+
+	/** caches the 'img' of 'bytes' that was just read from the 'file' */
+	public synchronized
+	void put(final File file, final Img<?> img, final long bytes)
+	{
+		final String key = file.getAbsolutePath();
+		remove(key);
+		if (bytes > maxBytes) return;
+
+		evictUntilFits(bytes);
+		entries.put(key, new Entry(img, bytes, file));
+		usedBytes += bytes;
+	}
+
+	/** forgets the image of the file 'path', e.g., because it is being rewritten */
+	public synchronized
+	void invalidate(final String path)
+	{
+		remove(new File(path).getAbsolutePath());
+	}
+
+	public synchronized
+	void clear()
+	{
+		entries.clear();
+		usedBytes = 0;
+	}
+
+	/** a human-readable summary of the cache's state and its usage so far */
+	public synchronized
+	String report()
+	{
+		return entries.size()+" images in "+ResourcePlanner.toHuman(usedBytes)+" of "+ResourcePlanner.toHuman(maxBytes)
+		       +", "+hits+" hits and "+misses+" misses so far";
+	}
+
+	private
+	void remove(final String key)
+	{
+		final Entry e = entries.remove(key);
+		if (e != null) usedBytes -= e.bytes;
+	}
+
+	/** evicts the least recently used images until 'bytes' more would fit */
+	private
+	void evictUntilFits(final long bytes)
+	{
+		final Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator();
+		while (usedBytes + bytes > maxBytes && it.hasNext())
+		{
+			usedBytes -= it.next().getValue().bytes;
+			it.remove();
+		}
+	}
+}
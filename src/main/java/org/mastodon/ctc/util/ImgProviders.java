@@ -39,6 +39,12 @@ import ij.ImagePlus;
 import bdv.viewer.Source;
 
 import java.io.File;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Govering class to provide unified way of obtaining images at given time point
@@ -49,12 +55,18 @@ import java.io.File;
  * living at given time index 't' can be then obtained with the method getImage(t).
  *
  * Note that the ImgProviderFromDisk variant may throw IllegalArgumentException
- * if the corresponding file could not be opened.
+ * if the corresponding file could not be opened. This variant also keeps the
+ * read images in the {@link ImgCache#shared()}, so that the same files need
+ * not be read again, not even by another plugin, and it can read the images
+ * of the next time points ahead in the background, see ImgProvider.prefetch().
  *
  * @author Vladimir Ulman, 2019
  */
 public class ImgProviders
 {
+	/** how many next time points the importers ask to read ahead, see ImgProvider.prefetch() */
+	public static final int READ_AHEAD_TIMEPOINTS = 2;
+
 	public interface ImgProvider
 	{
 		/** the implementing method must return existing non-null image,
@@ -63,6 +75,31 @@ public class ImgProviders
 			 @return RAI image at the given time index */
 		RandomAccessibleInterval<?> getImage(final int time);
 
+		/** the same as getImage() except that the image is obtained in the background
+		    if the implementation can do it, the returned future then completes with
+		    the image or exceptionally with the IllegalArgumentException
+		    @param time time index to be obtained
+		    @return future of the RAI image at the given time index */
+		default CompletableFuture<RandomAccessibleInterval<?>> getImageAsync(final int time)
+		{
+			final CompletableFuture<RandomAccessibleInterval<?>> img = new CompletableFuture<>();
+			try
+			{
+				img.complete( getImage(time) );
+			}
+			catch (RuntimeException e)
+			{
+				img.completeExceptionally(e);
+			}
+			return img;
+		}
+
+		/** a hint that the images of the time indices 'time' till 'time+count-1'
+		    will be soon requested, the implementation may read them ahead
+		    @param time the first of the time indices
+		    @param count how many consecutive time indices */
+		default void prefetch(final int time, final int count) {}
+
 		/** Returns the spatial dimensionality of fetched images.
 		    @return The number of dimensions the output images will have,
 		            most of the time the return value is 3 */
@@ -138,9 +175,10 @@ public class ImgProviders
 				this.vd = new FinalVoxelDimensions( ipc.getUnit(),
 				                ipc.pixelWidth,ipc.pixelHeight,ipc.pixelDepth);
 
-				//update the cache
+				//update the caches
 				this.cachedImg = ImageJFunctions.wrap(ip);
 				this.cachedImgTimePoint = time;
+				if (cachedImg != null) sharedCache.put(new File(filename), cachedImg, ip);
 			}
 			catch (RuntimeException e)
 			{
@@ -160,18 +198,48 @@ public class ImgProviders
 		Img<?> cachedImg = null;
 		int cachedImgTimePoint;
 
+		//cache of recently read images of all providers (of all plugins)
+		final ImgCache sharedCache = ImgCache.shared();
+
 		@Override
 		public RandomAccessibleInterval<?> getImage(int time)
 		{
 			//reuse the cached image if the same time point requested
 			if (cachedImg != null && cachedImgTimePoint == time) return cachedImg;
 
+			cachedImg = null; //"invalidate" before attempting to read
+			final CompletableFuture<Img<?>> readAhead = readsAhead.remove(time);
+			try
+			{
+				cachedImg = readAhead != null ? readAhead.join() : readImage(time);
+			}
+			catch (CompletionException e)
+			{
+				if (e.getCause() instanceof IllegalArgumentException)
+					throw (IllegalArgumentException)e.getCause();
+				throw new IllegalArgumentException("Error reading image file "
+					+String.format(fileTemplate,time)+"\n"+e.getCause().getMessage());
+			}
+			cachedImgTimePoint = time;
+			return cachedImg;
+		}
+
+		/** reads the image from the disk unless it is in the shared cache,
+		    this may be called concurrently (from the read-ahead threads) */
+		Img<?> readImage(final int time)
+		{
 			final String filename = String.format(fileTemplate,time);
+			final File file = new File(filename);
+			Img<?> img;
 			try
 			{
-				cachedImg = null; //"invalidate" before attempting to read
-				cachedImg = ImageJFunctions.wrap(new ImagePlus( filename ));
-				cachedImgTimePoint = time;
+				img = sharedCache.get(file);
+				if (img == null)
+				{
+					final ImagePlus ip = new ImagePlus( filename );
+					img = ImageJFunctions.wrap(ip);
+					if (img != null) sharedCache.put(file, img, ip);
+				}
 			}
 			catch (RuntimeException e)
 			{
@@ -179,9 +247,64 @@ public class ImgProviders
 			}
 
 			//make sure we always return some non-null reference
-			if (cachedImg == null)
+			if (img == null)
 				throw new IllegalArgumentException("Error reading image file "+filename);
-			return cachedImg;
+			return img;
+		}
+
+
+		//map: time point to its image that is being read ahead
+		final Map<Integer,CompletableFuture<Img<?>>> readsAhead = new ConcurrentHashMap<>();
+
+		/** hands over the image that is being read ahead for this time point, if any,
+		    or starts reading it in the background; the returned future is owned
+		    by the caller and is not cancelled by any later prefetch() */
+		@Override
+		public CompletableFuture<RandomAccessibleInterval<?>> getImageAsync(final int time)
+		{
+			if (cachedImg != null && cachedImgTimePoint == time)
+				return CompletableFuture.completedFuture(cachedImg);
+
+			CompletableFuture<Img<?>> img = readsAhead.remove(time);
+			if (img == null) img = CompletableFuture.supplyAsync(() -> readImage(time), readAheadThreads());
+			return img.thenApply(i -> i);
+		}
+
+		/** starts reading the images of the time points 'time' till 'time+count-1'
+		    in the background, and cancels the read-aheads of other time points */
+		@Override
+		public void prefetch(final int time, final int count)
+		{
+			//NB: a cancelled read-ahead that has not started yet is never executed
+			readsAhead.entrySet().removeIf(e -> {
+				if (e.getKey() >= time && e.getKey() < time+count) return false;
+				e.getValue().cancel(false);
+				return true;
+			});
+			for (int t = time; t < time+count; ++t)
+				if (cachedImg == null || cachedImgTimePoint != t) readAhead(t);
+		}
+
+		void readAhead(final int time)
+		{
+			readsAhead.computeIfAbsent(time,
+				t -> CompletableFuture.supplyAsync(() -> readImage(t), readAheadThreads()));
+		}
+
+		//threads reading ahead for all providers
+		static private ExecutorService readAheadThreads = null;
+		static private final int READ_AHEAD_THREADS = 2;
+
+		static synchronized
+		ExecutorService readAheadThreads()
+		{
+			if (readAheadThreads == null)
+				readAheadThreads = Executors.newFixedThreadPool(READ_AHEAD_THREADS, r -> {
+					final Thread t = new Thread(r, "CTC images read-ahead");
+					t.setDaemon(true); //never prevent Fiji from quitting
+					return t;
+				});
+			return readAheadThreads;
 		}
 
 
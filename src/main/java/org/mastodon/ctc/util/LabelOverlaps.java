@@ -0,0 +1,221 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects and resolves the overlaps of markers (labels) that are drawn into
+ * one image, typically into one time point. Instead of reporting every voxel
+ * where one label is about to overwrite another one, the number of such voxels
+ * is only counted per pair of labels, and the whole summary can be obtained
+ * once the image is drawn.
+ *
+ * What happens in the overlapping voxels is decided with one of the policies,
+ * see availableChoices and the POLICY_ constants. The policies are applied while
+ * drawing, except for the "leave unlabelled" policy, which only remembers the
+ * contested voxels and these need to be zeroed with forEachContestedVoxel().
+ *
+ * Not thread-safe, one image (time point) should be drawn by one thread at a time.
+ *
+ * @author Vladimir Ulman
+ */
+public class LabelOverlaps
+{
+	public static final int POLICY_LATER_WINS = 0;
+	public static final int POLICY_KEEP_FIRST = 1;
+	public static final int POLICY_NEAREST_CENTRE_WINS = 2;
+	public static final int POLICY_LEAVE_UNLABELLED = 3;
+
+	/** human-readable names of the POLICY_ constants, in the same order */
+	public static final
+	String[] availableChoices = {
+		"Later spot overwrites the earlier one",
+		"Earlier spot is kept",
+		"Spot with the nearer centre wins",
+		"Overlaps are left unlabelled" };
+
+	/** returns the POLICY_ constant of the given human-readable name,
+	    falls back to the POLICY_LATER_WINS if not recognized */
+	public static
+	int decodePolicy(final String choice)
+	{
+		if (choice != null)
+			for (int i = 0; i < availableChoices.length; ++i)
+				if (choice.startsWith(availableChoices[i])) return i;
+		return POLICY_LATER_WINS;
+	}
+
+	public LabelOverlaps(final int policy, final double[] resLen)
+	{
+		this.policy = policy;
+		this.resLen = resLen;
+	}
+
+	final int policy;
+	final double[] resLen; //1px lengths, to measure distances in the same (physical) units
+
+	/** map: label to the centre (in pixel units) of its marker, and the name of its spot */
+	final Map<Integer,double[]> centres = new HashMap<>(500);
+	final Map<Integer,String> names = new HashMap<>(500);
+
+	/** map: pair of labels (see pairKey()) to the number of voxels they compete for */
+	final Map<Long,long[]> conflicts = new HashMap<>(100);
+	long conflictingVoxels = 0;
+
+	/** the contested voxels as x,y,z triplets, for the POLICY_LEAVE_UNLABELLED */
+	long[] contested = new long[0];
+	int contestedSize = 0;
+
+	/** registers the marker's 'label' together with its 'centre' (in pixel units) and
+	    its 'name'; the centre is needed only with the POLICY_NEAREST_CENTRE_WINS */
+	public
+	void registerMarker(final int label, final String name, final double[] centre)
+	{
+		names.put(label, name);
+		if (policy == POLICY_NEAREST_CENTRE_WINS) centres.put(label, centre.clone());
+	}
+
+	/** records that the 'newLabel' is about to be drawn over the 'oldLabel' at
+	    the given voxel (in pixel units, 'z' is ignored for 2D images), and
+	    returns true if the 'newLabel' should be drawn indeed */
+	public
+	boolean resolve(final int newLabel, final long oldLabel, final long x, final long y, final long z)
+	{
+		final long key = pairKey(newLabel, oldLabel);
+		long[] cnt = conflicts.get(key);
+		if (cnt == null)
+		{
+			cnt = new long[1];
+			conflicts.put(key, cnt);
+		}
+		++cnt[0];
+		++conflictingVoxels;
+
+		switch (policy)
+		{
+		case POLICY_KEEP_FIRST:
+			return false;
+		case POLICY_NEAREST_CENTRE_WINS:
+			final double[] newCentre = centres.get(newLabel);
+			final double[] oldCentre = centres.get((int)oldLabel);
+			if (newCentre == null || oldCentre == null) return true;
+			return distSq(newCentre, x,y,z) < distSq(oldCentre, x,y,z);
+		case POLICY_LEAVE_UNLABELLED:
+			if (contestedSize+3 > contested.length)
+				contested = Arrays.copyOf(contested, Math.max(3*1024, 2*contested.length));
+			contested[contestedSize++] = x;
+			contested[contestedSize++] = y;
+			contested[contestedSize++] = z;
+			return true;
+		default:
+			return true;
+		}
+	}
+
+	private
+	double distSq(final double[] centre, final long x, final long y, final long z)
+	{
+		double dSq = 0, d;
+		d = (x - centre[0])*resLen[0]; dSq += d*d;
+		d = (y - centre[1])*resLen[1]; dSq += d*d;
+		if (centre.length > 2)
+		{
+			d = (z - centre[2])*resLen[2]; dSq += d*d;
+		}
+		return dSq;
+	}
+
+	private static
+	long pairKey(final long labelA, final long labelB)
+	{
+		final long lo = Math.min(labelA,labelB);
+		final long hi = Math.max(labelA,labelB);
+		return (hi << 32) | (lo & 0xffffffffL);
+	}
+
+
+	public interface VoxelConsumer
+	{
+		void accept(final long x, final long y, final long z);
+	}
+
+	/** calls the 'zeroer' on every voxel remembered with the POLICY_LEAVE_UNLABELLED
+	    (only those in the given z-plane if 'z' is non-negative), and forgets them */
+	public
+	void forEachContestedVoxel(final long z, final VoxelConsumer zeroer)
+	{
+		for (int i = 0; i < contestedSize; i += 3)
+			if (z < 0 || contested[i+2] == z) zeroer.accept(contested[i],contested[i+1],contested[i+2]);
+		contestedSize = 0;
+	}
+
+	/** forgets everything recorded so far, but keeps the registered markers */
+	public
+	void resetCounters()
+	{
+		conflicts.clear();
+		conflictingVoxels = 0;
+		contestedSize = 0;
+	}
+
+	public
+	boolean hasConflicts()
+	{ return conflictingVoxels > 0; }
+
+	/** how many pairs of labels to list at most in the summary */
+	public static int maxReportedPairs = 20;
+
+	/** returns multi-line report of the overlaps, the most overlapping pairs first */
+	public
+	String printSummary(final String header)
+	{
+		final StringBuilder sb = new StringBuilder(header);
+		sb.append(conflictingVoxels).append(" voxels in ").append(conflicts.size())
+		  .append(" overlaps, policy: ").append(availableChoices[policy]);
+
+		final ArrayList<Map.Entry<Long,long[]>> pairs = new ArrayList<>(conflicts.entrySet());
+		pairs.sort( (a,b) -> Long.compare(b.getValue()[0], a.getValue()[0]) );
+
+		for (int i = 0; i < Math.min(pairs.size(),maxReportedPairs); ++i)
+		{
+			final int hi = (int)(pairs.get(i).getKey() >>> 32);
+			final int lo = (int)(pairs.get(i).getKey() & 0xffffffffL);
+			sb.append("\n  labels ").append(lo).append(" (spot ").append(names.get(lo))
+			  .append(") and ").append(hi).append(" (spot ").append(names.get(hi))
+			  .append("): ").append(pairs.get(i).getValue()[0]).append(" voxels");
+		}
+		if (pairs.size() > maxReportedPairs)
+			sb.append("\n  ...and ").append(pairs.size()-maxReportedPairs).append(" more overlaps");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,252 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Downsamples label images (e.g. of tracking markers) into a multi-resolution
+ * pyramid. Every voxel of a coarser level takes the most frequent label (the mode)
+ * of its block of voxels in the finer level, where the background (zero) is taken
+ * only if there is no label at all in the block, so that no marker vanishes
+ * from the coarse levels. No new values are ever created (as opposed to
+ * averaging), the labels are thus preserved.
+ *
+ * The coarse levels are downsampled in parallel, row by row, and the
+ * methods must therefore be called from within some ForkJoinPool.
+ *
+ * @author Vladimir Ulman
+ */
+public class LabelPyramid
+{
+	/** returns the downsampling factors (w.r.t. the full resolution) of the 'levels' coarser
+	    levels for images of the 'dims' and 'voxelSize'; every level halves the resolution
+	    of the axes whose voxels are not already (at least twice) larger than the smallest
+	    voxel side, so that anisotropic images become more isotropic with the levels */
+	public static
+	long[][] levelFactors(final double[] voxelSize, final long[] dims, final int levels)
+	{
+		final int n = dims.length;
+		final long[][] factors = new long[Math.max(levels,0)][];
+
+		long[] current = new long[n];
+		Arrays.fill(current, 1);
+		for (int l = 0; l < factors.length; ++l)
+		{
+			double smallestSide = Double.MAX_VALUE;
+			for (int d = 0; d < n; ++d)
+				if (dims[d] > current[d]) smallestSide = Math.min(smallestSide, sideOf(voxelSize,d) * current[d]);
+
+			final long[] next = current.clone();
+			for (int d = 0; d < n; ++d)
+				if (dims[d] > current[d] && sideOf(voxelSize,d) * current[d] < 2*smallestSide) next[d] *= 2;
+			factors[l] = next;
+			current = next;
+		}
+		return factors;
+	}
+
+	private static
+	double sideOf(final double[] voxelSize, final int d)
+	{
+		return voxelSize != null && d < voxelSize.length ? voxelSize[d] : 1.0;
+	}
+
+	/** returns the file name of the 'level' (1,2,...) of the image of the 'filename':
+	    "_s"+level is inserted just before the extension of the file name */
+	public static
+	String levelFilename(final String filename, final int level)
+	{
+		final int dot = filename.lastIndexOf('.');
+		final int sep = filename.lastIndexOf(File.separatorChar);
+		if (dot <= sep) return filename+"_s"+level;
+		return filename.substring(0,dot)+"_s"+level+filename.substring(dot);
+	}
+
+	/** returns the coarser levels of the 'img' for the given 'levelFactors' (see levelFactors()),
+	    every level is downsampled from the previous one (or the 'img' itself for the first one) */
+	public static <T extends RealType<T> & NativeType<T>>
+	List<Img<T>> downsampleLevels(final RandomAccessibleInterval<T> img, final long[][] levelFactors)
+	{
+		final List<Img<T>> levels = new ArrayList<>(levelFactors.length);
+		RandomAccessibleInterval<T> finer = img;
+		long[] finerFactors = null;
+		for (final long[] factors : levelFactors)
+		{
+			final long[] relative = factors.clone();
+			if (finerFactors != null)
+				for (int d = 0; d < relative.length; ++d) relative[d] /= finerFactors[d];
+
+			final Img<T> coarser = downsample(finer, relative);
+			levels.add(coarser);
+			finer = coarser;
+			finerFactors = factors;
+		}
+		return levels;
+	}
+
+	/** returns a new image that is the 'src' mode-downsampled with the 'factors' along its axes */
+	public static <T extends RealType<T> & NativeType<T>>
+	Img<T> downsample(final RandomAccessibleInterval<T> src, final long[] factors)
+	{
+		final RandomAccessibleInterval<T> zSrc = Views.zeroMin(src);
+		final int n = zSrc.numDimensions();
+		final long[] dims = new long[n];
+		for (int d = 0; d < n; ++d)
+			dims[d] = (zSrc.dimension(d) + factors[d]-1) / factors[d];
+
+		final Img<T> dst = new PlanarImgFactory<>( Util.getTypeFromInterval(zSrc).createVariable() ).create(dims);
+
+		//rows: all positions of the dst along all but the first axis
+		long rowsCount = 1;
+		for (int d = 1; d < n; ++d) rowsCount *= dims[d];
+
+		final List<RowsDownsampling<T>> jobs = new ArrayList<>((int)(rowsCount/ROWS_PER_JOB +1));
+		for (long row = 0; row < rowsCount; row += ROWS_PER_JOB)
+			jobs.add( new RowsDownsampling<>(zSrc, dst, factors, row, Math.min(row+ROWS_PER_JOB, rowsCount)) );
+		ForkJoinTask.invokeAll(jobs);
+
+		return dst;
+	}
+
+	private static final int ROWS_PER_JOB = 64;
+
+	static class RowsDownsampling<T extends RealType<T>> extends RecursiveAction
+	{
+		RowsDownsampling(final RandomAccessibleInterval<T> src, final RandomAccessibleInterval<T> dst,
+		                 final long[] factors, final long fromRow, final long tillRow)
+		{
+			this.src = src;
+			this.dst = dst;
+			this.factors = factors;
+			this.fromRow = fromRow;
+			this.tillRow = tillRow;
+		}
+
+		final RandomAccessibleInterval<T> src, dst;
+		final long[] factors;
+		final long fromRow, tillRow; //NB: 'tillRow' is exclusive
+
+		@Override
+		protected void compute()
+		{
+			final int n = src.numDimensions();
+			final RandomAccess<T> sra = src.randomAccess();
+			final RandomAccess<T> dra = dst.randomAccess();
+
+			int blockVoxels = 1;
+			for (int d = 0; d < n; ++d) blockVoxels *= factors[d];
+			final double[] labels = new double[blockVoxels];
+
+			final long[] dPos = new long[n];
+			final long[] sMin = new long[n];
+			final long[] sMax = new long[n];
+			final long[] sPos = new long[n];
+
+			for (long row = fromRow; row < tillRow; ++row)
+			{
+				long r = row;
+				for (int d = 1; d < n; ++d)
+				{
+					dPos[d] = r % dst.dimension(d);
+					r /= dst.dimension(d);
+				}
+
+				for (dPos[0] = 0; dPos[0] < dst.dimension(0); ++dPos[0])
+				{
+					//the block of the src voxels (clipped at the src's border)
+					for (int d = 0; d < n; ++d)
+					{
+						sMin[d] = dPos[d] * factors[d];
+						sMax[d] = Math.min(sMin[d] + factors[d], src.dimension(d)) - 1;
+						sPos[d] = sMin[d];
+					}
+
+					//collect the labels within the block
+					int labelsCount = 0;
+					while (true)
+					{
+						sra.setPosition(sPos);
+						final double label = sra.get().getRealDouble();
+						if (label != 0) labels[labelsCount++] = label;
+
+						int d = 0;
+						for (; d < n; ++d)
+						{
+							if (++sPos[d] <= sMax[d]) break;
+							sPos[d] = sMin[d];
+						}
+						if (d == n) break;
+					}
+
+					dra.setPosition(dPos);
+					dra.get().setReal( mode(labels, labelsCount) );
+				}
+			}
+		}
+	}
+
+	/** the most frequent value among the first 'count' 'values' (which get sorted),
+	    the smallest one of the equally frequent, or 0 if 'count' is 0 */
+	static
+	double mode(final double[] values, final int count)
+	{
+		if (count == 0) return 0;
+		Arrays.sort(values, 0, count);
+
+		double best = values[0];
+		int bestRun = 0;
+		for (int i = 0; i < count; )
+		{
+			int j = i+1;
+			while (j < count && values[j] == values[i]) ++j;
+			if (j-i > bestRun)
+			{
+				best = values[i];
+				bestRun = j-i;
+			}
+			i = j;
+		}
+		return best;
+	}
+}
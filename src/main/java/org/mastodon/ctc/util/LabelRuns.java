@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.NativeType;
+
+/**
+ * Aux functions to draw runs of the same label directly into the primitive
+ * arrays that back, e.g., the planes of PlanarImgs or the ImageJ's processors.
+ * A run is an interval of indices (both ends inclusive) into such an array.
+ *
+ * Only the arrays of primitive types where one array element represents one
+ * voxel (and its value) are supported, see isSupported().
+ *
+ * @author Vladimir Ulman
+ */
+public class LabelRuns
+{
+	/** decides what to do with a voxel that is already occupied by another label */
+	public interface OverwriteHandler
+	{
+		/** @param index index into the array of the occupied voxel
+		    @param oldLabel the label that is currently there
+		    @return true if the new label should be drawn over the 'oldLabel' */
+		boolean shouldOverwrite(final int index, final double oldLabel);
+	}
+
+	/** returns true if the 'array' can be used with the fill() */
+	public static
+	boolean isSupported(final Object array)
+	{
+		return array instanceof byte[]  || array instanceof short[]
+		    || array instanceof int[]   || array instanceof long[]
+		    || array instanceof float[] || array instanceof double[];
+	}
+
+	/** returns true if the planes of the 'img' can be used with the fill(),
+	    which is when it is a PlanarImg and its voxels are not "packed" */
+	public static <T extends NativeType<T>>
+	boolean hasSupportedPlanes(final Img<T> img)
+	{
+		if (!(img instanceof PlanarImg)) return false;
+		if (img.firstElement().getEntitiesPerPixel().getRatio() != 1.0) return false;
+		return isSupported( getPlane(img,0) );
+	}
+
+	/** returns the primitive array behind the given z-plane of the PlanarImg 'img' */
+	public static <T extends NativeType<T>>
+	Object getPlane(final Img<T> img, final int z)
+	{
+		return ((PlanarImg<T,?>)img).getPlane(z).getCurrentStorageArray();
+	}
+
+	/** draws the 'label' into the 'array' at indices 'from' till 'to' (both inclusive),
+	    and consults the 'handler' (if not null) before any non-zero voxel is overwritten */
+	public static
+	void fill(final Object array, final int from, final int to, final int label,
+	          final OverwriteHandler handler)
+	{
+		if (array instanceof short[])
+		{
+			final short[] a = (short[])array;
+			final short l = (short)label;
+			for (int i = from; i <= to; ++i)
+			{
+				if (a[i] != 0 && handler != null && !handler.shouldOverwrite(i, a[i] & 0xffff)) continue;
+				a[i] = l;
+			}
+		}
+		else if (array instanceof byte[])
+		{
+			final byte[] a = (byte[])array;
+			final byte l = (byte)label;
+			for (int i = from; i <= to; ++i)
+			{
+				if (a[i] != 0 && handler != null && !handler.shouldOverwrite(i, a[i] & 0xff)) continue;
+				a[i] = l;
+			}
+		}
+		else if (array instanceof int[])
+		{
+			final int[] a = (int[])array;
+			for (int i = from; i <= to; ++i)
+			{
+				if (a[i] != 0 && handler != null && !handler.shouldOverwrite(i, a[i] & 0xffffffffL)) continue;
+				a[i] = label;
+			}
+		}
+		else if (array instanceof float[])
+		{
+			final float[] a = (float[])array;
+			for (int i = from; i <= to; ++i)
+			{
+				if (a[i] != 0 && handler != null && !handler.shouldOverwrite(i, a[i])) continue;
+				a[i] = label;
+			}
+		}
+		else if (array instanceof long[])
+		{
+			final long[] a = (long[])array;
+			for (int i = from; i <= to; ++i)
+			{
+				if (a[i] != 0 && handler != null && !handler.shouldOverwrite(i, a[i])) continue;
+				a[i] = label;
+			}
+		}
+		else if (array instanceof double[])
+		{
+			final double[] a = (double[])array;
+			for (int i = from; i <= to; ++i)
+			{
+				if (a[i] != 0 && handler != null && !handler.shouldOverwrite(i, a[i])) continue;
+				a[i] = label;
+			}
+		}
+		else
+			throw new IllegalArgumentException("Unsupported type of array: "+array.getClass().getSimpleName());
+	}
+}
@@ -0,0 +1,327 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.util.function.IntConsumer;
+
+import org.scijava.log.LogService;
+
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.spatial.SpatioTemporalIndex;
+import org.mastodon.collection.RefIntMap;
+import org.mastodon.collection.RefMaps;
+import org.mastodon.kdtree.ClipConvexPolytope;
+import net.imglib2.algorithm.kdtree.ConvexPolytope;
+import net.imglib2.algorithm.kdtree.HyperPlane;
+
+import net.celltrackingchallenge.measures.TrackRecords;
+
+/**
+ * Walks the Mastodon's lineage graph, one time point after another, and assigns
+ * the CTC track IDs to the visited spots. The assignment is recorded into
+ * the given {@link TrackRecords} (the lineage .txt file content) and into
+ * the {@literal RefIntMap<Spot>} "spot labels" map (that tells which spot
+ * is to be drawn with which label into the CTC marker images).
+ *
+ * The time points must be processed in the increasing order, starting from
+ * the 'timeFrom' as given to the c'tor. Once done, call release().
+ *
+ * Optionally, a handler can be notified about every track that has been closed,
+ * that is, that cannot be extended anymore by the later time points, see
+ * setClosedTracksHandler().
+ *
+ * Optionally, only spots whose centres are inside a box can be considered,
+ * see setRegionOfInterest(). The walk then behaves as if the other spots
+ * did not exist at all, and the tracks are numbered only for this subset.
+ *
+ * @author Vladimir Ulman
+ */
+public class LineageBuilder
+{
+	final ModelGraph modelGraph;
+	final SpatioTemporalIndex< Spot > spots;
+	final int timeFrom, timeTill;
+	final boolean setParentAfterGap;
+	final LogService logService;
+
+	/** map: Mastodon's spotID to CTC's trackID, holds only the "active" spots */
+	final RefIntMap< Spot > knownTracks;
+
+	//aux Mastodon data: shortcuts and caches/proxies
+	final Link lRef;  //link reference
+	final Spot sRef;  //spot reference
+	final Spot fRef;  //some spot's future buddy
+
+	public LineageBuilder(final ModelGraph modelGraph, final SpatioTemporalIndex< Spot > spots,
+	                      final int timeFrom, final int timeTill,
+	                      final boolean setParentAfterGap, final LogService logService)
+	{
+		this.modelGraph = modelGraph;
+		this.spots = spots;
+		this.timeFrom = timeFrom;
+		this.timeTill = timeTill;
+		this.setParentAfterGap = setParentAfterGap;
+		this.logService = logService;
+
+		knownTracks = RefMaps.createRefIntMap( modelGraph.vertices(), -1, 500 );
+		lRef = modelGraph.edgeRef();
+		sRef = modelGraph.vertices().createRef();
+		fRef = modelGraph.vertices().createRef();
+	}
+
+	/** the region of interest, in world coordinates, or null if all spots are considered */
+	double[] roiMin = null, roiMax = null;
+
+	/** from now on, consider only spots whose centres are inside the given box
+	    (in world coordinates, both corners inclusive) */
+	public void setRegionOfInterest(final double[] min, final double[] max)
+	{
+		roiMin = min.clone();
+		roiMax = max.clone();
+	}
+
+	IntConsumer closedTracksHandler = null;
+
+	/** from now on, the 'handler' is given the ID of every track that is closed,
+	    a track is closed at the latest in the time point of its last spot */
+	public void setClosedTracksHandler(final IntConsumer handler)
+	{
+		closedTracksHandler = handler;
+	}
+
+	/** returns the considered spots of the given time point, that is, only those
+	    inside the region of interest (using the spatial index) if it is set */
+	public Iterable<Spot> spotsOf(final int time)
+	{
+		if (roiMin == null) return spots.getSpatialIndex( time );
+
+		final HyperPlane[] planes = new HyperPlane[2*roiMin.length];
+		for (int d = 0; d < roiMin.length; ++d)
+		{
+			final double[] normal = new double[roiMin.length];
+			normal[d] = 1;
+			planes[2*d] = new HyperPlane(normal, roiMin[d]);   //x >= min
+			final double[] negNormal = new double[roiMin.length];
+			negNormal[d] = -1;
+			planes[2*d+1] = new HyperPlane(negNormal, -roiMax[d]); //x <= max
+		}
+
+		final ClipConvexPolytope< Spot > clip = spots.getSpatialIndex( time ).getClipConvexPolytope();
+		clip.clip( new ConvexPolytope(planes) );
+		return clip.getInsideValues();
+	}
+
+	/** returns true if the spot is considered, that is, if it is inside the region of interest */
+	boolean isIncluded(final Spot spot)
+	{
+		if (roiMin == null) return true;
+		for (int d = 0; d < roiMin.length; ++d)
+		{
+			final double x = spot.getDoublePosition(d);
+			if (x < roiMin[d] || x > roiMax[d]) return false;
+		}
+		return true;
+	}
+
+	/** releases the aux "binder" objects, the object is not usable afterwards */
+	public void release()
+	{
+		modelGraph.vertices().releaseRef(fRef);
+		modelGraph.vertices().releaseRef(sRef);
+		modelGraph.releaseRef(lRef);
+	}
+
+
+	/** processes all spots from the given time point: updates the 'tracks'
+	    and, if not null, stores the CTC track ID of every such spot into the 'spotLabels' */
+	public void processTimePoint(final int time, final TrackRecords tracks, final RefIntMap< Spot > spotLabels)
+	{
+		//over all spots in the current time point
+		for ( final Spot spot : spotsOf( time ) )
+		{
+			//find how many back- and forward-references (time-wise) this spot has
+			int countBackwardLinks = 0;
+			int countForwardLinks = 0;
+
+			for (int n=0; n < spot.incomingEdges().size(); ++n)
+			{
+				spot.incomingEdges().get(n, lRef).getSource( sRef );
+				if (sRef.getTimepoint() < time && sRef.getTimepoint() >= timeFrom && isIncluded(sRef)) ++countBackwardLinks;
+				if (sRef.getTimepoint() > time && sRef.getTimepoint() <= timeTill && isIncluded(sRef))
+				{
+					++countForwardLinks;
+					fRef.refTo( sRef );
+				}
+			}
+			for (int n=0; n < spot.outgoingEdges().size(); ++n)
+			{
+				spot.outgoingEdges().get(n, lRef).getTarget( sRef );
+				if (sRef.getTimepoint() < time && sRef.getTimepoint() >= timeFrom && isIncluded(sRef)) ++countBackwardLinks;
+				if (sRef.getTimepoint() > time && sRef.getTimepoint() <= timeTill && isIncluded(sRef))
+				{
+					++countForwardLinks;
+					fRef.refTo( sRef );
+				}
+			}
+
+			//process events:
+			//
+			//feasibility test: too many joining paths? (aka merging event)
+			if (countBackwardLinks > 1)
+			{
+				logService.error("spot "+spot.getLabel()
+				                  +" has multiple ("+countBackwardLinks
+				                  +") older-time-point links!");
+
+				//ideally should stop here, but we opted to finish all tracks
+				//that join this one, and start the new (parentID = 0) track here
+
+				//list backward links and just forget them (aka delete them from knownTracks)
+				for (int n=0; n < spot.incomingEdges().size(); ++n)
+				{
+					spot.incomingEdges().get(n, lRef).getSource( sRef );
+					if (sRef.getTimepoint() < time && sRef.getTimepoint() >= timeFrom && isIncluded(sRef))
+						knownTracks.remove( sRef );
+				}
+				for (int n=0; n < spot.outgoingEdges().size(); ++n)
+				{
+					spot.outgoingEdges().get(n, lRef).getTarget( sRef );
+					if (sRef.getTimepoint() < time && sRef.getTimepoint() >= timeFrom && isIncluded(sRef))
+						knownTracks.remove( sRef );
+				}
+
+				//a new track from this spot must be existing because some from the backward
+				//links must have created it, and creating it means either it is a single-follower
+				//in which case we must remove this track (just abandon it), or it is a
+				//one-from-many-follower (division) in which case the track has just been started
+				//(which is OK) and has parent info set (which is not desired now); in the latter
+				//case and since we cannot modify existing track, we just delete it
+				//
+				//and by re-setting backward links, new track will start just in the code below
+				countBackwardLinks = 0;
+
+				if (tracks.getStartTimeOfTrack( knownTracks.get(spot) ) == time)
+				{
+					//the track 'ID' would have been just starting here,
+					//re-starting really means to remove it first
+					tracks.removeTrack( knownTracks.get(spot) );
+					logService.trace(spot.getLabel()+": will supersede track ID "+knownTracks.get(spot));
+				}
+				else
+				{
+					logService.trace(spot.getLabel()+": will just leave the track ID "+knownTracks.get(spot));
+					if (closedTracksHandler != null) closedTracksHandler.accept( knownTracks.get(spot) );
+				}
+			}
+
+			//spot with no backward links?
+			if (countBackwardLinks == 0)
+			{
+				//start a new track
+				knownTracks.put( spot, tracks.startNewTrack(time) );
+				logService.trace(spot.getLabel()+": started track ID "+knownTracks.get(spot)+" at time "+spot.getTimepoint());
+			}
+			else //countBackwardLinks == 1
+			{
+				//prolong the existing track
+				tracks.updateTrack( knownTracks.get(spot), time );
+				logService.trace(spot.getLabel()+": updated track ID "+knownTracks.get(spot)+" at time "+spot.getTimepoint());
+			}
+
+			//multiple "followers"? feels like a division...
+			if (countForwardLinks > 1)
+			{
+				//list forward links and create them at their respective times,
+				//mark spot as their parent
+				for (int n=0; n < spot.incomingEdges().size(); ++n)
+				{
+					spot.incomingEdges().get(n, lRef).getSource( sRef );
+					if (sRef.getTimepoint() > time && sRef.getTimepoint() <= timeTill && isIncluded(sRef))
+					if (knownTracks.get(sRef) == -1)
+					{
+						knownTracks.put(sRef, tracks.startNewTrack( sRef.getTimepoint(), knownTracks.get(spot) ) );
+						logService.trace(sRef.getLabel()+": started track ID "+knownTracks.get(sRef)+" at time "+sRef.getTimepoint());
+					}
+				}
+				for (int n=0; n < spot.outgoingEdges().size(); ++n)
+				{
+					spot.outgoingEdges().get(n, lRef).getTarget( sRef );
+					if (sRef.getTimepoint() > time && sRef.getTimepoint() <= timeTill && isIncluded(sRef))
+					if (knownTracks.get(sRef) == -1)
+					{
+						knownTracks.put(sRef, tracks.startNewTrack( sRef.getTimepoint(), knownTracks.get(spot) ) );
+						logService.trace(sRef.getLabel()+": started track ID "+knownTracks.get(sRef)+" at time "+sRef.getTimepoint());
+					}
+				}
+			}
+			else if (countForwardLinks == 1)
+			{
+				//just one follower, is he right in the next frame?
+				if (fRef.getTimepoint() == time+1)
+				{
+					//yes, just replace myself in the map
+					if (knownTracks.get(fRef) == -1)
+						knownTracks.put( fRef, knownTracks.get(spot) );
+				}
+				else
+				{
+					//no, start a new track for the follower
+					if (knownTracks.get(fRef) == -1)
+					{
+						knownTracks.put( fRef, tracks.startNewTrack( fRef.getTimepoint(), (setParentAfterGap ? knownTracks.get(spot) : 0) ) );
+						logService.trace(fRef.getLabel()+": started track ID "+knownTracks.get(fRef)+" at time "+fRef.getTimepoint());
+					}
+				}
+			}
+
+			//remember with which CTC's trackID the spot shall be rendered
+			if (spotLabels != null)
+				spotLabels.put( spot, knownTracks.get(spot) );
+
+			//is the track of this spot not continuing with its follower?
+			if (closedTracksHandler != null)
+			{
+				final boolean isPassedOn = countForwardLinks == 1 && fRef.getTimepoint() == time+1
+				                        && knownTracks.get(fRef) == knownTracks.get(spot);
+				if (!isPassedOn) closedTracksHandler.accept( knownTracks.get(spot) );
+			}
+
+			//forget the currently closed track
+			knownTracks.remove( spot );
+
+			//debug: report currently knownTracks
+			/*
+			for (final Spot s : knownTracks.keySet())
+				System.out.println(s.getLabel()+" -> "+knownTracks.get(s));
+			*/
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Util;
+
+/**
+ * Markers image whose z-planes are rendered only when they are asked for, that is,
+ * when they are being written to the disk by the IJ's TIFF writer. The spots are
+ * sorted by their z-extents and only those intersecting the requested plane are
+ * visited, in their original order (so that the overlaps are resolved exactly
+ * as with the full image rendering). Only one z-plane is kept in the memory.
+ *
+ * @author Vladimir Ulman
+ */
+public class MarkersPlanesStack extends VirtualStack
+{
+	/** the 'spotsToRender' will be drawn with the 'renderer' into planes of
+	    'imgSize', which are of 8, 16 or 32 bits depending on the 'bitsPerVoxel' */
+	public MarkersPlanesStack(final MarkersRenderer renderer, final int bitsPerVoxel,
+	                          final int time,
+	                          final long[] imgSize, final AffineTransform3D transform, //world2img transform
+	                          final List<SpotRecord> spotsToRender)
+	{
+		super((int)imgSize[0], (int)imgSize[1], null, null);
+		this.renderer = renderer;
+		this.bitDepth = bitsPerVoxel <= 8 ? 8 : (bitsPerVoxel <= 16 ? 16 : 32);
+		this.time    = time;
+		planeWidth   = (int)imgSize[0];
+		planeHeight  = (int)imgSize[1];
+		planesCount  = renderer.outImgDims > 2 ? (int)imgSize[2] : 1;
+		overlaps     = new LabelOverlaps(renderer.overlapsPolicy, renderer.resLen);
+		reporter     = new MarkersRenderer.OverwriteReporter(overlaps);
+
+		//establish all sweeping boxes, and sort them along the z-axis
+		final MarkersRenderer.RenderingContext ctx = renderer.new RenderingContext(overlaps);
+		final FinalInterval img = new FinalInterval(imgSize);
+		for (int i = 0; i < spotsToRender.size(); ++i)
+		{
+			final SpotRecord spot = spotsToRender.get(i);
+			renderer.logService.info("rendering spot "+spot.spotLabel
+			  +" with label "+spot.label+", at "+Util.printCoordinates(spot.position)
+			  +" with radius="+spot.radius);
+
+			if (ctx.setupSweepingBox(img, transform, spot))
+				spotsByZmin.add( new PlacedSpot(i, spot, ctx.coord, ctx.spotMin, ctx.spotMax) );
+		}
+		spotsByZmin.sort( (a,b) -> Long.compare(zMin(a), zMin(b)) );
+	}
+
+	final MarkersRenderer renderer;
+	final int bitDepth;
+	final int time;
+	final int planeWidth, planeHeight, planesCount;
+	final LabelOverlaps overlaps;
+	final ArrayList<PlacedSpot> spotsByZmin = new ArrayList<>(500);
+
+	/** spot whose sweeping box is already established */
+	static class PlacedSpot
+	{
+		PlacedSpot(final int order, final SpotRecord spot, final RealPoint centre,
+		           final long[] spotMin, final long[] spotMax)
+		{
+			this.order = order;
+			this.spot = spot;
+			this.centre = new double[spotMin.length];
+			centre.localize(this.centre);
+			this.spotMin = spotMin.clone();
+			this.spotMax = spotMax.clone();
+		}
+
+		final int order;        //rendering order within its time point
+		final SpotRecord spot;
+		final double[] centre;  //rounded, in pixel units
+		final long[] spotMin, spotMax;
+	}
+
+	//the sweeping state: spots intersecting the recently rendered plane
+	final ArrayList<PlacedSpot> activeSpots = new ArrayList<>(100);
+	int nextSpotToActivate = 0;
+	int lastRenderedZ = Integer.MAX_VALUE;
+
+	//NB: the overlaps are reported only once even if the planes are asked for
+	//repeatedly, e.g., the ImagePlus asks for the first plane already when created
+	boolean isReported = false;
+
+	long zMin(final PlacedSpot s) { return renderer.outImgDims > 2 ? s.spotMin[2] : 0; }
+	long zMax(final PlacedSpot s) { return renderer.outImgDims > 2 ? s.spotMax[2] : 0; }
+
+	@Override
+	public ImageProcessor getProcessor(final int n)
+	{
+		final int z = n-1;
+
+		//update the sweeping state, restart it if going backwards or repeating the plane
+		if (z <= lastRenderedZ)
+		{
+			activeSpots.clear();
+			nextSpotToActivate = 0;
+			overlaps.resetCounters();
+		}
+		lastRenderedZ = z;
+
+		activeSpots.removeIf( s -> zMax(s) < z );
+		while (nextSpotToActivate < spotsByZmin.size() && zMin(spotsByZmin.get(nextSpotToActivate)) <= z)
+		{
+			final PlacedSpot s = spotsByZmin.get(nextSpotToActivate++);
+			if (zMax(s) >= z) activeSpots.add(s);
+		}
+		activeSpots.sort( (a,b) -> Integer.compare(a.order, b.order) );
+
+		final ImageProcessor ip = createPlane();
+		for (final PlacedSpot s : activeSpots)
+			renderSpotIntoPlane(ip, s, z);
+
+		overlaps.forEachContestedVoxel(z, (x,y,zz) -> ip.setf((int)x,(int)y, 0) );
+		if (z == planesCount-1 && !isReported)
+		{
+			renderer.reportOverlaps(time, overlaps);
+			isReported = true;
+		}
+		return ip;
+	}
+
+	ImageProcessor createPlane()
+	{
+		switch (bitDepth)
+		{
+		case 8:
+			return new ByteProcessor(planeWidth,planeHeight);
+		case 16:
+			return new ShortProcessor(planeWidth,planeHeight);
+		default:
+			return new FloatProcessor(planeWidth,planeHeight);
+		}
+	}
+
+	//aux distance vector, and run-length stuff
+	final double[] distVec = new double[3];
+	final double[] xSpan = new double[2];
+	final long[] run = new long[2];
+	final MarkersRenderer.OverwriteReporter reporter;
+
+	void renderSpotIntoPlane(final ImageProcessor ip, final PlacedSpot s, final int z)
+	{
+		final double[] resLen = renderer.resLen;
+		final int label = s.spot.label;
+		if (renderer.outImgDims > 2)
+			distVec[2] = (z - s.centre[2])*resLen[2];
+
+		if (s.spot.shape.providesRowSpans())
+		{
+			final Object pixels = ip.getPixels();
+			reporter.spot = s.spot;
+			reporter.z = z;
+			for (int y = (int)s.spotMin[1]; y <= s.spotMax[1]; ++y)
+			{
+				distVec[1] = (y - s.centre[1])*resLen[1];
+				if (!renderer.findRun(s.spot.shape, distVec, s.spot.radius, s.centre[0], s.spotMin[0], s.spotMax[0], xSpan, run))
+					continue;
+
+				reporter.rowOffset = y*planeWidth;
+				reporter.y = y;
+				LabelRuns.fill(pixels, (int)run[0]+reporter.rowOffset, (int)run[1]+reporter.rowOffset, label, reporter);
+			}
+			return;
+		}
+
+		for (int y = (int)s.spotMin[1]; y <= s.spotMax[1]; ++y)
+		{
+			distVec[1] = (y - s.centre[1])*resLen[1];
+			for (int x = (int)s.spotMin[0]; x <= s.spotMax[0]; ++x)
+			{
+				distVec[0] = (x - s.centre[0])*resLen[0];
+
+				//if close to the spot's center, draw into this voxel
+				if (s.spot.shape.isInside(distVec, s.spot.radius))
+				{
+					if (ip.getf(x,y) > 0 && !overlaps.resolve(label, (long)ip.getf(x,y), x,y,z))
+						continue;
+					ip.setf(x,y, label);
+				}
+			}
+		}
+	}
+
+	@Override
+	public int getSize()
+	{ return planesCount; }
+
+	@Override
+	public int getBitDepth()
+	{ return bitDepth; }
+
+	@Override
+	public String getSliceLabel(final int n)
+	{ return null; }
+}
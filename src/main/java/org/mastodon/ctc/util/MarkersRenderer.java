@@ -0,0 +1,400 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.scijava.log.LogService;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RealPoint;
+import net.imglib2.img.Img;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import org.mastodon.ctc.auxPlugins.TRAMarkersProvider;
+
+/**
+ * Renders the tracking markers of the spots (of one time point) into a markers
+ * image, every marker is drawn with its spot's label (CTC's track ID). Markers
+ * that provide their row spans are drawn by whole rows (runs of voxels), the
+ * others voxel by voxel. The overlaps of the markers are resolved with the
+ * {@link LabelOverlaps} and only their summary is reported per time point.
+ *
+ * One renderer can be used by many threads at the same time, every call of
+ * render() uses its own rendering context. See also {@link MarkersPlanesStack}
+ * that renders the image plane by plane while it is being saved.
+ *
+ * @author Vladimir Ulman
+ */
+public class MarkersRenderer
+{
+	/** renders into images of the dimensionality of the 'resLen', which are the
+	    physical sizes of their voxels; 'doOneZslicePerMarker' squashes the markers
+	    along the z-axis into one xy-slice, the 'overlapsPolicy' is the one of the
+	    {@link LabelOverlaps} */
+	public MarkersRenderer(final double[] resLen, final boolean doOneZslicePerMarker,
+	                       final int overlapsPolicy, final LogService logService)
+	{
+		this.outImgDims = resLen.length;
+		this.resLen = resLen.clone();
+		this.doOneZslicePerMarker = doOneZslicePerMarker;
+		this.overlapsPolicy = overlapsPolicy;
+		this.logService = logService;
+	}
+
+	final int outImgDims;
+	final double[] resLen;       //aux 1px lengths (in some physical unit)
+	final boolean doOneZslicePerMarker;
+	final int overlapsPolicy;
+	final LogService logService;
+
+	/** markers image that is recycled among the time points, and that remembers
+	    where it was drawn into so that only these places need to be cleared */
+	public static class MarkersBuffer<T>
+	{
+		public MarkersBuffer(final Img<T> img)
+		{
+			this.img = img;
+		}
+
+		public final Img<T> img;
+
+		/** sweeping boxes (min and max corners concatenated) of the recently drawn spots */
+		final ArrayList<long[]> paintedBoxes = new ArrayList<>(500);
+	}
+
+	/** clears the (recycled) image in the 'buffer' and renders into it all the given spots,
+	    in their order, and reports the overlaps of the markers that happened in the meantime */
+	public <T extends RealType<T>>
+	Img<T> render(final int time,
+	              final MarkersBuffer<T> buffer,
+	              final AffineTransform3D transform, //world2img transform
+	              final List<SpotRecord> spotsToRender)
+	{
+		final Img<T> outImg = buffer.img;
+		final LabelOverlaps overlaps = new LabelOverlaps(overlapsPolicy, resLen);
+		final RenderingContext renderer = new RenderingContext(overlaps);
+
+		//NB: nothing was drawn outside these boxes, the rest of the image is still zero
+		for (final long[] box : buffer.paintedBoxes)
+			renderer.clearBox(outImg, box);
+		buffer.paintedBoxes.clear();
+		renderer.paintedBoxes = buffer.paintedBoxes;
+
+		for (final SpotRecord spot : spotsToRender)
+			renderer.renderSpot( outImg, transform, spot );
+
+		final RandomAccess<T> ra = outImg.randomAccess();
+		overlaps.forEachContestedVoxel(-1, (x,y,z) -> {
+			ra.setPosition(x,0);
+			ra.setPosition(y,1);
+			if (outImgDims > 2) ra.setPosition(z,2);
+			ra.get().setZero();
+		});
+		reportOverlaps(time, overlaps);
+		return outImg;
+	}
+
+	void reportOverlaps(final int time, final LabelOverlaps overlaps)
+	{
+		if (overlaps.hasConflicts())
+			logService.warn(overlaps.printSummary("Time point "+time+", overlapping markers: "));
+	}
+
+
+	/** finds the run of voxels on the row, given with the y- and z-distances in the
+	    'distVec' (see TRAMarkersProvider.intersectionDecidable.getRowSpan()), that are
+	    inside the 'shape' centred at (pixel) 'centreX', and that is clipped to the
+	    interval 'minX' till 'maxX'; the run is returned in 'run', the 'distVec[0]'
+	    and 'xSpan' are overwritten, returns false if no voxel is inside */
+	boolean findRun(final TRAMarkersProvider.intersectionDecidable shape,
+	                final double[] distVec, final double radius, final double centreX,
+	                final long minX, final long maxX, final double[] xSpan, final long[] run)
+	{
+		if (!shape.getRowSpan(distVec, radius, xSpan)) return false;
+		run[0] = Math.max( (long)Math.ceil( centreX + xSpan[0]/resLen[0]), minX );
+		run[1] = Math.min( (long)Math.floor(centreX + xSpan[1]/resLen[0]), maxX );
+
+		//make sure the run ends agree exactly with isInside(), which the analytic span
+		//might not do due to rounding errors -- only few voxels are tested in this way
+		while (run[0] <= run[1] && !isInsideAt(shape, run[0], distVec, radius, centreX)) ++run[0];
+		while (run[0] <= run[1] && !isInsideAt(shape, run[1], distVec, radius, centreX)) --run[1];
+		if (run[0] > run[1]) return false;
+		while (run[0] > minX && isInsideAt(shape, run[0]-1, distVec, radius, centreX)) --run[0];
+		while (run[1] < maxX && isInsideAt(shape, run[1]+1, distVec, radius, centreX)) ++run[1];
+		return true;
+	}
+
+	private
+	boolean isInsideAt(final TRAMarkersProvider.intersectionDecidable shape,
+	                   final long x, final double[] distVec, final double radius, final double centreX)
+	{
+		distVec[0] = (x - centreX)*resLen[0];
+		return shape.isInside(distVec, radius);
+	}
+
+	/** consults the overwriting of some other label with the {@link LabelOverlaps} */
+	static class OverwriteReporter implements LabelRuns.OverwriteHandler
+	{
+		OverwriteReporter(final LabelOverlaps overlaps)
+		{
+			this.overlaps = overlaps;
+		}
+
+		final LabelOverlaps overlaps;
+		SpotRecord spot;
+		int rowOffset;
+		long y,z;
+
+		@Override
+		public boolean shouldOverwrite(final int index, final double oldLabel)
+		{
+			return overlaps.resolve(spot.label, (long)oldLabel, index-rowOffset, y, z);
+		}
+	}
+
+	/** rendering context of one thread: holds the aux variables that
+	    are (re)used during the rendering of every spot */
+	class RenderingContext
+	{
+		RenderingContext(final LabelOverlaps overlaps)
+		{
+			this.overlaps = overlaps;
+			this.reporter = new OverwriteReporter(overlaps);
+		}
+
+		final LabelOverlaps overlaps;
+		final OverwriteReporter reporter;
+		final double[] centre = new double[outImgDims];
+
+		/** if not null, the sweeping boxes of the rendered spots are recorded here */
+		List<long[]> paintedBoxes = null;
+
+		final long[] spotMin = new long[outImgDims];   //image coordinates (in voxel units)
+		final long[] spotMax = new long[outImgDims];
+		final double[] radii = new double[2*outImgDims]; //BBox corners relative to spot's center
+		final RealPoint coord = new RealPoint(outImgDims); //aux tmp coordinate
+		final double[] xSpan = new double[2];
+		final long[] run = new long[2];
+
+		//can the recently seen image be drawn directly into its planes?
+		Img<?> lastSeenImg = null;
+		boolean lastSeenImgHasArrays = false;
+
+		/** projects the spot's centre into the image (into 'coord', rounded to pixel units),
+		    and determines its sweeping box ('spotMin' and 'spotMax') that is clipped to
+		    the 'img'; returns false if the box does not intersect with the 'img' at all */
+		boolean setupSweepingBox(final Interval img,final AffineTransform3D transform, //world2img transform
+		                         final SpotRecord spot)
+		{
+			//project the spot's centre into the output image (coord in pixel units)
+			transform.apply(spot.position, coord);
+
+			//setup a sweeping bbox around it: define half-width (aka radius) in some physical unit
+			spot.shape.setHalfBBoxInterval(radii, spot.radius);
+
+			//finalize the bbox parameters, per dimension....
+			for (int d=0; d < outImgDims; ++d)
+			{
+				//round centre position to the nearest pixel coord
+				coord.setPosition( Math.round(coord.getDoublePosition(d)), d );
+
+				//define the sweeping interval around this rounded centre
+				final double R = radii[d]/resLen[d];         //half-width in pixel units
+				radii[d           ] = coord.getDoublePosition(d) - R;
+				radii[d+outImgDims] = coord.getDoublePosition(d) + R;
+			}
+			coord.localize(centre);
+			overlaps.registerMarker(spot.label, spot.spotLabel, centre);
+			//if, however, only one zSlice is requested, squash the BBox to a plane in 2nd (z) axis
+			if (doOneZslicePerMarker && outImgDims > 2)
+			{
+				radii[2           ] = coord.getDoublePosition(2);
+				radii[2+outImgDims] = coord.getDoublePosition(2);
+			}
+
+			//now, radii[] (an imgBBox) has to be in pixel (integer) units and intersect with img,
+			//also check if there is some intersection with the image at all
+			for (int d=0; d < outImgDims; ++d)
+			{
+				spotMin[d] = Math.max( (long)Math.round(radii[d           ]), img.min(d) );
+				spotMax[d] = Math.min( (long)Math.round(radii[d+outImgDims]), img.max(d) );
+
+				//no intersection along this axis?
+				if (spotMin[d] > spotMax[d]) return false;
+			}
+			return true;
+		}
+
+		<T extends RealType<T>>
+		void renderSpot(final Img<T> img,final AffineTransform3D transform, //world2img transform
+		                final SpotRecord spot)
+		{
+			//the spot size
+			final double radius = spot.radius;
+			final int label = spot.label;
+
+			logService.info("rendering spot "+spot.spotLabel
+			  +" with label "+label+", at "+Util.printCoordinates(spot.position)
+			  +" with radius="+radius);
+
+			if (!setupSweepingBox(img, transform, spot)) return;
+			if (outImgDims < 3) radii[2] = 0; //NB: no z-distance in 2D images
+
+			if (paintedBoxes != null)
+			{
+				final long[] box = Arrays.copyOf(spotMin, 2*outImgDims);
+				System.arraycopy(spotMax,0, box,outImgDims, outImgDims);
+				paintedBoxes.add(box);
+			}
+
+			if (spot.shape.providesRowSpans())
+			{
+				renderSpotByRows(img, spot);
+				return;
+			}
+
+			//NB: the tests above assure that spotMin and spotMax make sense and live inside the img
+			final Cursor<T> p = Views.interval(img, spotMin, spotMax).localizingCursor();
+			T voxelAtP;
+			while (p.hasNext())
+			{
+				//get next voxel
+				voxelAtP = p.next();
+
+				//get it's (pixel) image coordinate, and convert to image-units distance vector
+				for (int d=0; d < outImgDims; ++d)
+					radii[d] = (p.getDoublePosition(d) - coord.getDoublePosition(d))*resLen[d];
+
+				//if close to the spot's center, draw into this voxel
+				if (spot.shape.isInside(radii, radius))
+				{
+					if (voxelAtP.getRealDouble() > 0
+					  && !overlaps.resolve(label, (long)voxelAtP.getRealDouble(), p.getLongPosition(0),
+					                       p.getLongPosition(1), outImgDims > 2 ? p.getLongPosition(2) : 0))
+						continue;
+					voxelAtP.setReal(label);
+				}
+			}
+		}
+
+		/** zeroes the 'img' inside the 'box' (min and max corners concatenated) */
+		<T extends RealType<T>>
+		void clearBox(final Img<T> img, final long[] box)
+		{
+			if (img != lastSeenImg)
+			{
+				lastSeenImg = img;
+				lastSeenImgHasArrays = LabelRuns.hasSupportedPlanes(img);
+			}
+			if (!lastSeenImgHasArrays)
+			{
+				for (final T v : Views.interval(img, Arrays.copyOf(box,outImgDims), Arrays.copyOfRange(box,outImgDims,2*outImgDims)))
+					v.setZero();
+				return;
+			}
+
+			final long width = img.dimension(0);
+			final long zFrom = outImgDims > 2 ? box[2] : 0;
+			final long zTill = outImgDims > 2 ? box[2+outImgDims] : 0;
+			for (long z = zFrom; z <= zTill; ++z)
+			{
+				final Object plane = LabelRuns.getPlane(img, outImgDims > 2 ? (int)(z-img.min(2)) : 0);
+				for (long y = box[1]; y <= box[1+outImgDims]; ++y)
+				{
+					final int rowOffset = (int)((y-img.min(1))*width - img.min(0));
+					LabelRuns.fill(plane, (int)box[0]+rowOffset, (int)box[outImgDims]+rowOffset, 0, null);
+				}
+			}
+		}
+
+		/** the same as renderSpot() after setupSweepingBox() except that it
+		    sweeps whole rows (runs of voxels) rather than individual voxels */
+		<T extends RealType<T>>
+		void renderSpotByRows(final Img<T> img, final SpotRecord spot)
+		{
+			if (img != lastSeenImg)
+			{
+				lastSeenImg = img;
+				lastSeenImgHasArrays = LabelRuns.hasSupportedPlanes(img);
+			}
+			final RandomAccess<T> ra = lastSeenImgHasArrays ? null : img.randomAccess();
+			final long width = img.dimension(0);
+			reporter.spot = spot;
+
+			final long zFrom = outImgDims > 2 ? spotMin[2] : 0;
+			final long zTill = outImgDims > 2 ? spotMax[2] : 0;
+			for (long z = zFrom; z <= zTill; ++z)
+			{
+				if (outImgDims > 2)
+					radii[2] = (z - coord.getDoublePosition(2))*resLen[2];
+				final Object plane = lastSeenImgHasArrays ?
+					LabelRuns.getPlane(img, outImgDims > 2 ? (int)(z-img.min(2)) : 0) : null;
+
+				for (long y = spotMin[1]; y <= spotMax[1]; ++y)
+				{
+					radii[1] = (y - coord.getDoublePosition(1))*resLen[1];
+					if (!findRun(spot.shape, radii, spot.radius, coord.getDoublePosition(0), spotMin[0], spotMax[0], xSpan, run))
+						continue;
+
+					if (lastSeenImgHasArrays)
+					{
+						//index of the voxel (0,y) in the plane
+						final int rowOffset = (int)((y-img.min(1))*width - img.min(0));
+						reporter.rowOffset = rowOffset;
+						reporter.y = y;
+						reporter.z = z;
+						LabelRuns.fill(plane, (int)run[0]+rowOffset, (int)run[1]+rowOffset, spot.label, reporter);
+					}
+					else
+					{
+						ra.setPosition(run[0],0);
+						ra.setPosition(y,1);
+						if (outImgDims > 2) ra.setPosition(z,2);
+						for (long x = run[0]; x <= run[1]; ++x, ra.fwd(0))
+						{
+							final T voxelAtP = ra.get();
+							if (voxelAtP.getRealDouble() > 0
+							  && !overlaps.resolve(spot.label, (long)voxelAtP.getRealDouble(), x,y,z))
+								continue;
+							voxelAtP.setReal(spot.label);
+						}
+					}
+				}
+			}
+		}
+	}
+}
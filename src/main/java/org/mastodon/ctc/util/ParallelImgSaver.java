@@ -30,50 +30,106 @@ package org.mastodon.ctc.util;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.io.FileSaver;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.NumericType;
-
-import java.util.List;
-import java.util.LinkedList;
-import java.util.Collections;
-
+import net.imglib2.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Saves images in the background with the given number of threads (workers).
+ *
+ * The caller hands over an image and is blocked only if the images that are
+ * waiting to be saved would take more than the given number of bytes.
+ * The workers are woken up as soon as an image arrives, and the blocked caller
+ * as soon as an image is taken for saving, there is no polling.
+ *
+ * Every request returns a {@link CompletableFuture} that completes, once the
+ * image is written, with the {@link SaveReport} of how long the image was waiting and
+ * how long it was being written, or that completes exceptionally with the
+ * IOException if the writing has failed.
+ *
+ * Array-backed images can be written directly (and possibly compressed) with
+ * a {@link DirectTiffWriter}, see setTiffWriter(), the rest is saved via ImageJ.
+ *
+ * @author Vladimir Ulman
+ */
 public class ParallelImgSaver
 {
 	/** the list of images waiting to be saved */
 	private
-	final List<ImgPathPair> imgQueue
-		= Collections.synchronizedList(new LinkedList<>());
+	final BlockingDeque<ImgPathPair> imgQueue = new LinkedBlockingDeque<>();
 
 	/** the array of workers -- each takes one image from
 	    the list and makes sure to save it */
 	private
 	final Worker[] workersQueue;
 
+	/** the limit of the total size of the images waiting to be saved */
+	private
+	final long maxQueuedBytes;
+
+	/** guards the counters below, signals their changes */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition queueShrunk = lock.newCondition();
+	private final Condition allSaved = lock.newCondition();
+
+	/** the total size of the images waiting to be saved */
+	private long queuedBytes = 0;
+
+	/** how many images are waiting or being saved */
+	private int unfinishedCount = 0;
+
 	/** setups initially the crowd of savers,
 	    see the Worker inner class */
 	public
 	ParallelImgSaver(final int noOfWriterThreads)
 	{
-		workersQueue = new Worker[noOfWriterThreads];
+		this(noOfWriterThreads, Long.MAX_VALUE);
+	}
+
+	/** setups initially the crowd of savers, and limits the total size
+	    of the images that can be waiting to be saved to 'maxQueuedBytes' */
+	public
+	ParallelImgSaver(final int noOfWriterThreads, final long maxQueuedBytes)
+	{
+		this.maxQueuedBytes = maxQueuedBytes;
+		workersQueue = new Worker[Math.max(noOfWriterThreads,1)];
+		setAdaptiveConcurrency(false);
 
-		for (int i=0; i < noOfWriterThreads; i++)
+		for (int i=0; i < workersQueue.length; i++)
 		{
 			workersQueue[i] = new Worker(i);
 			workersQueue[i].start();
 		}
 	}
 
-	/** user-adjustable period between job queue is considered,
-	    applies only for (blocking API) methods: addImgSaveRequestOrBlockUntilLessThan()
-	    and closeAllWorkers_FinishFirstAllUnsavedImages() */
-	public
-	long clientPollingMillis = 2000;
 
-	/** user-adjustable period between job queue is checked by the image
-	    saving workers/threads (after their finish their image saving) */
-	public
-	long workersPollingMillis = 1000;
+	/** how the saving of one image went */
+	public static class SaveReport
+	{
+		SaveReport(final String path, final long bytes, final long waitingNanos, final long writingNanos)
+		{
+			this.path = path;
+			this.bytes = bytes;
+			this.waitingNanos = waitingNanos;
+			this.writingNanos = writingNanos;
+		}
+
+		public final String path;
+		public final long bytes;        //size of the image in the memory
+		public final long waitingNanos; //spent in the queue
+		public final long writingNanos; //spent by the writing
+	}
 
 
 	/** how many images are waiting for (and not yet) being saved */
@@ -86,30 +142,119 @@ public class ParallelImgSaver
 	/** enlist the 'img' to the list of images to be saved,
 	    returns immediately */
 	public <T extends NumericType<T>>
-	void addImgSaveRequest(final RandomAccessibleInterval<T> img,
-	                       final String path)
+	CompletableFuture<SaveReport> addImgSaveRequest(final RandomAccessibleInterval<T> img,
+	                                                final String path)
 	{
-		imgQueue.add( new ImgPathPair(img,path) );
+		return enqueue( new ImgPathPair(img,path) );
 	}
 
-	/** enlist the 'img' to the list of images to be saved,
-	    returns immediately only if the list of images waiting to be saved
-	    is smaller than 'maxQueueLength' -- otherwise it blocks/waits until
-	    this holds (until this.imgQueue.size() < maxQueueLength) making sure
-	    the list is never longer than 'maxQueueLength' */
+	/** enlist the already prepared 'img' to the list of images to be saved,
+	    returns immediately */
+	public
+	CompletableFuture<SaveReport> addImgSaveRequest(final ImagePlus img,
+	                                                final String path)
+	{
+		return enqueue( new ImgPathPair(img,path) );
+	}
+
+	/** enlist the 'img' to the list of images to be saved, returns immediately
+	    only if the images waiting to be saved, together with this one, take not
+	    more than the limit given in the constructor -- otherwise it blocks/waits
+	    until this holds (an image larger than the limit is accepted only
+	    into the empty queue); the 'whenSaved' (if not null) is executed (by
+	    the saving thread) right after the 'img' is saved (or its saving failed),
+	    e.g., to recycle the 'img' for another use; only the returned future tells
+	    if the 'img' was actually written */
 	public <T extends NumericType<T>>
-	void addImgSaveRequestOrBlockUntilLessThan(final int maxQueueLength,
-	                                           final RandomAccessibleInterval<T> img,
-	                                           final String path)
+	CompletableFuture<SaveReport> addImgSaveRequestOrBlock(final RandomAccessibleInterval<T> img,
+	                                                       final String path,
+	                                                       final Runnable whenSaved)
+	throws InterruptedException
+	{
+		return enqueueOrBlock( new ImgPathPair(img,path,whenSaved) );
+	}
+
+	/** the same as above except that the 'img' is already prepared, e.g.,
+	    it is a virtual stack that populates its planes only when being saved */
+	public
+	CompletableFuture<SaveReport> addImgSaveRequestOrBlock(final ImagePlus img,
+	                                                       final String path,
+	                                                       final Runnable whenSaved)
+	throws InterruptedException
+	{
+		return enqueueOrBlock( new ImgPathPair(img,path,whenSaved) );
+	}
+
+	/** the same as above except that the 'img' is not saved into its own file
+	    but written as the image 'stackIndex' into the (shared) 'stack' file */
+	public
+	CompletableFuture<SaveReport> addImgSaveRequestOrBlock(final ImagePlus img,
+	                                                       final BigTiffStackWriter stack,
+	                                                       final int stackIndex,
+	                                                       final Runnable whenSaved)
+	throws InterruptedException
+	{
+		return enqueueOrBlock( new ImgPathPair(img,stack,stackIndex,whenSaved) );
+	}
+
+	/** adds the 'ipp' to the queue, possibly after waiting until
+	    the 'ipp' fits into the limit of the queued bytes */
+	private
+	CompletableFuture<SaveReport> enqueueOrBlock(final ImgPathPair ipp)
 	throws InterruptedException
 	{
-		while (imgQueue.size() >= maxQueueLength)
+		lock.lockInterruptibly();
+		try
+		{
+			while (queuedBytes > 0 && queuedBytes + ipp.bytes > maxQueuedBytes)
+				queueShrunk.await();
+			add(ipp);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		return ipp.future;
+	}
+
+	/** adds the 'ipp' to the queue right away */
+	private
+	CompletableFuture<SaveReport> enqueue(final ImgPathPair ipp)
+	{
+		lock.lock();
+		try
 		{
-			Thread.sleep(clientPollingMillis);
+			add(ipp);
 		}
-		//NB: not atomic between size() and add()....
+		finally
+		{
+			lock.unlock();
+		}
+		return ipp.future;
+	}
+
+	/** must be called with the 'lock' held */
+	private
+	void add(final ImgPathPair ipp)
+	{
+		if (isClosed) throw new IllegalStateException("The image saver is closed already.");
+		queuedBytes += ipp.bytes;
+		++unfinishedCount;
+		ipp.queuedAt = System.nanoTime();
+		imgQueue.addLast(ipp);
+	}
+
+
+	/** the writer of the supported images into TIFF files, or null to save everything with ImageJ */
+	private volatile DirectTiffWriter tiffWriter = null;
 
-		imgQueue.add( new ImgPathPair(img,path) );
+	/** from now on, the images that the 'tiffWriter' supports (and that are to be saved
+	    into TIFF files) are written with it, rather than via ImageJ; the 'tiffWriter'
+	    is closed together with this saver */
+	public
+	void setTiffWriter(final DirectTiffWriter tiffWriter)
+	{
+		this.tiffWriter = tiffWriter;
 	}
 
 
@@ -122,47 +267,276 @@ public class ParallelImgSaver
 			super("Image saver #"+id);
 		}
 
-		/** loops until interrupted: retrieve/remove next available image from
-		    the image queue and start saving it, then repeat... there's 10 secs
-		    delay between polling the image queue (relaxed busy waiting model) */
+		/** loops until the poison pill is found: retrieve/remove next available
+		    image from the image queue (waits for it) and save it, then repeat... */
 		@Override
 		public
 		void run()
 		{
-			boolean shouldStopSaving = false;
-			while (!this.isInterrupted() && !shouldStopSaving)
+			while (true)
 			{
-				//the image to be saved
-				ImgPathPair ipp = null;
+				//wait until this worker is allowed to save (see the adaptive concurrency)
+				lock.lock();
+				try
+				{
+					while (savingCount >= activeLimit && !isClosed)
+						slotFreed.await();
+					++savingCount;
+				}
+				catch (InterruptedException e) {
+					break;
+				}
+				finally
+				{
+					lock.unlock();
+				}
 
-				//try to retrieve a reference on an image to be saved
-				try { ipp = imgQueue.remove(0); }
-				catch (IndexOutOfBoundsException e)
+				//the image to be saved
+				ImgPathPair ipp;
+				try { ipp = imgQueue.takeFirst(); }
+				catch (InterruptedException e) { ipp = POISON_PILL; }
+				if (ipp == POISON_PILL)
 				{
-					//failed -> queue is empty
-					ipp = null;
+					releaseSlot(null);
+					break;
 				}
 
-				if (ipp != null)
+				lock.lock();
+				try
 				{
-					//save it
-					savingInProgress = true;
-					IJ.save( ipp.img, ipp.path );
-					savingInProgress = false;
+					queuedBytes -= ipp.bytes;
+					queueShrunk.signalAll();
 				}
-				else
+				finally
 				{
-					//wait 10 secs
-					try { Thread.sleep(workersPollingMillis); }
-					catch (InterruptedException e)
-					{
-						shouldStopSaving = true;
-					}
+					lock.unlock();
 				}
+
+				save(ipp);
+				releaseSlot(ipp);
+			}
+		}
+	}
+
+	/** the worker has finished the saving of the 'saved' image (or of nothing if null) */
+	private
+	void releaseSlot(final ImgPathPair saved)
+	{
+		lock.lock();
+		try
+		{
+			--savingCount;
+			if (saved != null)
+			{
+				if (--unfinishedCount == 0) allSaved.signalAll();
+				if (isAdaptive) adaptConcurrency(saved.bytes);
 			}
+			slotFreed.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+
+	// ----------------- adaptive concurrency -----------------
+	/** how many workers may be saving at the same time, the rest of them is idle */
+	private int activeLimit;
+	private int savingCount = 0;
+	private final Condition slotFreed = lock.newCondition();
+
+	private boolean isAdaptive = false;
+
+	/** the measurement window: since when, how many bytes were saved, how many images,
+	    and after how many of them there were still images waiting in the queue */
+	private long windowStart;
+	private long windowBytes;
+	private int windowImages, windowBackloggedImages;
+
+	/** the throughput (in bytes per second) of the previous saturated window */
+	private double previousThroughput = 0;
+
+	/** the best seen throughput and the number of workers that achieved it */
+	private double bestThroughput = 0;
+	private int bestLimit = 1;
+	private int smallestLimit, largestLimit;
+
+	private static final long MIN_WINDOW_NANOS = 500_000_000L;
+	private static final double THROUGHPUT_TOLERANCE = 0.1;
+
+	/** makes the number of the saving workers adapt, in between 1 and the number of
+	    threads given in the constructor, to reach the largest throughput (in bytes
+	    per second): the number is additively increased while the images are waiting
+	    in the queue and the throughput is not getting worse, and multiplicatively
+	    decreased when the throughput drops, the saving starts with one worker */
+	public
+	void setAdaptiveConcurrency(final boolean isAdaptive)
+	{
+		lock.lock();
+		try
+		{
+			this.isAdaptive = isAdaptive;
+			activeLimit = isAdaptive ? 1 : workersQueue.length;
+			smallestLimit = largestLimit = bestLimit = activeLimit;
+			windowStart = System.nanoTime();
+			windowBytes = 0;
+			windowImages = windowBackloggedImages = 0;
+			slotFreed.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/** must be called with the 'lock' held, after an image of 'savedBytes' is saved */
+	private
+	void adaptConcurrency(final long savedBytes)
+	{
+		windowBytes += savedBytes;
+		++windowImages;
+		if (!imgQueue.isEmpty()) ++windowBackloggedImages;
+
+		//wait until the window is long enough, and every active worker could contribute
+		final long now = System.nanoTime();
+		if (now - windowStart < MIN_WINDOW_NANOS || windowImages < 2*activeLimit) return;
+
+		final double throughput = windowBytes * 1e9 / (now - windowStart);
+		final boolean isSaturated = 2*windowBackloggedImages >= windowImages;
+		if (throughput > bestThroughput)
+		{
+			bestThroughput = throughput;
+			bestLimit = activeLimit;
+		}
+
+		//NB: if the writers were not saturated, the throughput tells how fast the images arrive
+		if (isSaturated)
+		{
+			if (previousThroughput > 0 && throughput < (1-THROUGHPUT_TOLERANCE) * previousThroughput)
+				activeLimit = Math.max(1, Math.min(activeLimit-1, activeLimit*3/4));
+			else if (activeLimit < workersQueue.length)
+				++activeLimit;
+			previousThroughput = throughput;
+
+			smallestLimit = Math.min(smallestLimit, activeLimit);
+			largestLimit = Math.max(largestLimit, activeLimit);
+		}
+
+		windowStart = now;
+		windowBytes = 0;
+		windowImages = windowBackloggedImages = 0;
+	}
+
+	/** how many workers may currently be saving at the same time */
+	public
+	int getActiveWorkersCount()
+	{
+		lock.lock();
+		try
+		{
+			return activeLimit;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/** a human-readable summary of the concurrency of the saving */
+	public
+	String reportConcurrency()
+	{
+		lock.lock();
+		try
+		{
+			if (!isAdaptive) return workersQueue.length+" writing thread(s)";
+			return activeLimit+" writing thread(s) at the end, "+smallestLimit+" to "+largestLimit+" were used, "
+			       +bestLimit+" achieved the best "+String.format("%.1f", bestThroughput/(1<<20))+" MB/s";
+		}
+		finally
+		{
+			lock.unlock();
 		}
+	}
+
+	/** writes the 'ipp' and reports how it went via its future */
+	void save(final ImgPathPair ipp)
+	{
+		final long startedAt = System.nanoTime();
+		IOException failure = null;
+		try
+		{
+			//the file is being rewritten, don't let anyone read its old content
+			ImgCache.shared().invalidate( ipp.path );
+
+			if (ipp.stack != null) ipp.stack.writeImage( ipp.stackIndex, ipp.img );
+			else if (ipp.directImg != null) tiffWriter.write( ipp.directImg, ipp.path );
+			else writeFile( ipp.img, ipp.path );
+		}
+		catch (IOException e) {
+			failure = e;
+		}
+		catch (RuntimeException e) {
+			failure = new IOException(e.getMessage(), e);
+		}
+		finally
+		{
+			if (ipp.whenSaved != null) ipp.whenSaved.run();
+		}
+
+		if (failure != null)
+		{
+			reportFailure(failure);
+			ipp.future.completeExceptionally(failure);
+		}
+		else
+			ipp.future.complete( new SaveReport(ipp.path, ipp.bytes,
+				startedAt - ipp.queuedAt, System.nanoTime() - startedAt) );
+	}
+
+	/** saves the 'img' into the file 'path', TIFF files are written such that a failure is noticed */
+	static
+	void writeFile(final ImagePlus img, final String path)
+	throws IOException
+	{
+		if (DirectTiffWriter.isTiffPath(path))
+		{
+			if (!new FileSaver(img).saveAsTiff(path))
+				throw new IOException("Cannot write TIFF file "+path);
+		}
+		else
+		{
+			IJ.save( img, path );
+			if (!new File(path).exists())
+				throw new IOException("Cannot write file "+path);
+		}
+	}
+
+
+	/** the first error of the saving, and how many savings failed */
+	private volatile IOException firstFailure = null;
+	private volatile int failuresCount = 0;
+
+	private synchronized
+	void reportFailure(final IOException e)
+	{
+		if (firstFailure == null) firstFailure = e;
+		++failuresCount;
+	}
+
+	/** the first error that occurred while saving the images, or null */
+	public
+	IOException getFirstFailure()
+	{
+		return firstFailure;
+	}
 
-		boolean savingInProgress = false;
+	/** how many images could not be saved */
+	public
+	int getFailuresCount()
+	{
+		return failuresCount;
 	}
 
 
@@ -171,75 +545,81 @@ public class ParallelImgSaver
 	public
 	boolean isSomeSavingInProgress()
 	{
-		for (Worker t : workersQueue)
-			if (t.savingInProgress) return true;
-		return false;
+		lock.lock();
+		try
+		{
+			return unfinishedCount > imgQueue.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
 
-	/** interrupts every image saving thread and waits for it to finish,
+	private boolean isClosed = false;
+
+	/** stops every image saving thread and waits for it to finish,
 	    every thread finishes its current saving job and will not start
-	    a new one (even if there is still some images waiting in the queue) */
+	    a new one (even if there is still some images waiting in the queue),
+	    the futures of such images are cancelled; calling it again (e.g.
+	    after the closeAllWorkers_FinishFirstAllUnsavedImages()) only waits
+	    for the threads, if the previous call got interrupted */
 	public
 	void closeAllWorkers_LeavePossiblyUnsavedImages()
 	throws InterruptedException
 	{
-		//we first notify all our image saving threads to stop
-		for (Thread t : workersQueue)
-		if (t != null)
+		final boolean wasClosed;
+		lock.lock();
+		try
+		{
+			wasClosed = isClosed;
+			isClosed = true;
+			slotFreed.signalAll();
+		}
+		finally
 		{
-			t.interrupt();
+			lock.unlock();
 		}
 
+		//we first notify all our image saving threads to stop,
+		//the poison pills go in front of the waiting images
+		if (!wasClosed)
+			for (int i = 0; i < workersQueue.length; ++i)
+				imgQueue.addFirst(POISON_PILL);
+
 		//we than wait for them to finish (unless we got interrupted ourselves)
 		for (Thread t : workersQueue)
-		if (t != null)
-		{
 			t.join();
-		}
+
+		//NB: the workers are gone, nobody else is using the writer
+		final DirectTiffWriter writer = tiffWriter;
+		tiffWriter = null;
+		if (writer != null) writer.close();
+
+		ImgPathPair ipp;
+		while ((ipp = imgQueue.pollFirst()) != null)
+			if (ipp != POISON_PILL) ipp.future.completeExceptionally(new CancellationException("Not saved: "+ipp.path));
 	}
 
-	/** interrupts every image saving thread and waits for it to finish,
-	    every thread finishes its current saving job and will start
-	    a new saving unless the queue of waiting images is empty */
+	/** waits until all waiting images are saved, and then stops every
+	    image saving thread and waits for it to finish */
 	public
 	void closeAllWorkers_FinishFirstAllUnsavedImages()
 	throws InterruptedException
 	{
-		boolean shouldStopWaiting = false;
-
-		//first, make sure the queue is empty...
-		while (imgQueue.size() > 0 && !shouldStopWaiting)
+		lock.lock();
+		try
 		{
-			//wait 10 secs
-			try { Thread.sleep(clientPollingMillis); }
-			catch (InterruptedException e)
-			{
-				//no matter what is in the queue, we're closing...
-				shouldStopWaiting = true;
-			}
+			while (unfinishedCount > 0)
+				allSaved.await();
 		}
-
-		//just to make sure that it takes a lot longer from the queue test above
-		//to isSomeSavingInProgress() test below than it takes to Worker.run() from
-		//its imgQueue.remove() to savingInProgress=true;
-		if (!shouldStopWaiting)
-		{
-			try { Thread.sleep(500); }
-			catch (InterruptedException e) {}
+		catch (InterruptedException e) {
+			//no matter what is in the queue, we're closing...
 		}
-
-		//...and, then that no saving is still in progress
-		//(assuming no one would add a new job again)
-		while (isSomeSavingInProgress() && !shouldStopWaiting)
+		finally
 		{
-			//wait 10 secs
-			try { Thread.sleep(clientPollingMillis); }
-			catch (InterruptedException e)
-			{
-				//no matter what is in the queue, we're closing...
-				shouldStopWaiting = true;
-			}
+			lock.unlock();
 		}
 
 		closeAllWorkers_LeavePossiblyUnsavedImages();
@@ -248,14 +628,73 @@ public class ParallelImgSaver
 
 	private class ImgPathPair
 	{
+		/** the image for the tiffWriter, and if it is null then the 'img' for ImageJ */
+		final RandomAccessibleInterval<?> directImg;
 		final ImagePlus img;
 		final String path;
+		final Runnable whenSaved;
+		final BigTiffStackWriter stack;
+		final int stackIndex;
+
+		/** size of the image in the memory */
+		final long bytes;
+		/** when the image was added to the queue, as System.nanoTime() */
+		long queuedAt;
+		final CompletableFuture<SaveReport> future = new CompletableFuture<>();
 
 		<T extends NumericType<T>>
 		ImgPathPair(final RandomAccessibleInterval<T> i, final String p)
 		{
-			img = ImageJFunctions.wrap(i,p);
+			this(i,p,null);
+		}
+
+		<T extends NumericType<T>>
+		ImgPathPair(final RandomAccessibleInterval<T> i, final String p, final Runnable w)
+		{
+			final boolean isDirect = tiffWriter != null && DirectTiffWriter.isTiffPath(p) && tiffWriter.isSupported(i);
+			directImg = isDirect ? i : null;
+			img = isDirect ? null : ImageJFunctions.wrap(i,p);
+			path = p;
+			whenSaved = w;
+			stack = null;
+			stackIndex = -1;
+			bytes = isDirect ? ResourcePlanner.imgBytes(i, Util.getTypeFromInterval(i)) : bytesOf(img);
+		}
+
+		ImgPathPair(final ImagePlus i, final String p)
+		{
+			this(i,p,(Runnable)null);
+		}
+
+		ImgPathPair(final ImagePlus i, final String p, final Runnable w)
+		{
+			directImg = null;
+			img = i;
 			path = p;
+			whenSaved = w;
+			stack = null;
+			stackIndex = -1;
+			bytes = bytesOf(i);
+		}
+
+		ImgPathPair(final ImagePlus i, final BigTiffStackWriter s, final int si, final Runnable w)
+		{
+			directImg = null;
+			img = i;
+			path = s.getPath();
+			whenSaved = w;
+			stack = s;
+			stackIndex = si;
+			bytes = bytesOf(i);
 		}
 	}
+
+	static
+	long bytesOf(final ImagePlus img)
+	{
+		return img == null ? 0 : (long)img.getWidth() * img.getHeight() * img.getStackSize() * img.getBytesPerPixel();
+	}
+
+	/** the marker that tells a worker to stop */
+	private final ImgPathPair POISON_PILL = new ImgPathPair((ImagePlus)null, "", null);
 }
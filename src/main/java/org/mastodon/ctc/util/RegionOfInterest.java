@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.util.Arrays;
+
+import org.scijava.log.LogService;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * The box (in world coordinates) to which the export is restricted, given either
+ * as the bounding box of some spots, or explicitly with six numbers. The box is
+ * returned as {min,max} corners, and can be projected into an image.
+ *
+ * @author Vladimir Ulman
+ */
+public class RegionOfInterest
+{
+	/** returns the world-coordinates box {min,max} around the 'spots',
+	    or null (after reporting why) if there are no spots */
+	public static
+	double[][] boundingBoxOf(final Iterable<Spot> spots, final LogService logService)
+	{
+		final double[][] box = new double[2][3];
+		Arrays.fill(box[0], Double.POSITIVE_INFINITY);
+		Arrays.fill(box[1], Double.NEGATIVE_INFINITY);
+
+		boolean isEmpty = true;
+		for (final Spot spot : spots)
+		{
+			final double radius = Math.sqrt(spot.getBoundingSphereRadiusSquared());
+			for (int d = 0; d < 3; ++d)
+			{
+				box[0][d] = Math.min(box[0][d], spot.getDoublePosition(d)-radius);
+				box[1][d] = Math.max(box[1][d], spot.getDoublePosition(d)+radius);
+			}
+			isEmpty = false;
+		}
+		if (isEmpty)
+		{
+			logService.error("No spots are selected to define the region of interest.");
+			return null;
+		}
+		return box;
+	}
+
+	/** returns the world-coordinates box {min,max} given as "minX,minY,minZ,maxX,maxY,maxZ",
+	    or null (after reporting why) if it cannot be parsed */
+	public static
+	double[][] parse(final String worldBox, final LogService logService)
+	{
+		final double[][] box = new double[2][3];
+		final String[] values = worldBox.split(",");
+		if (values.length != 6)
+		{
+			logService.error("The region of interest must be given with six comma-separated numbers, got: "+worldBox);
+			return null;
+		}
+		try
+		{
+			for (int i = 0; i < 6; ++i)
+				box[i/3][i%3] = Double.parseDouble(values[i].trim());
+		}
+		catch (NumberFormatException e) {
+			logService.error("The region of interest is not given with numbers: "+e.getMessage());
+			return null;
+		}
+		for (int d = 0; d < 3; ++d)
+		if (box[0][d] > box[1][d])
+		{
+			logService.error("The region of interest has its min corner above its max corner.");
+			return null;
+		}
+		return box;
+	}
+
+	/** returns the bounding box (in pixel units) of the 'worldBox' projected into the 'img',
+	    clipped to the 'img', or null if it is completely outside the 'img' */
+	public static
+	Interval toImgInterval(final double[][] worldBox, final AffineTransform3D world2img,
+	                       final Interval img)
+	{
+		final int imgDims = img.numDimensions();
+		final long[] min = new long[imgDims];
+		final long[] max = new long[imgDims];
+		Arrays.fill(min, Long.MAX_VALUE);
+		Arrays.fill(max, Long.MIN_VALUE);
+
+		//project all corners of the box, and find their bounding box
+		final double[] corner = new double[3];
+		for (int c = 0; c < 8; ++c)
+		{
+			for (int d = 0; d < 3; ++d)
+				corner[d] = worldBox[(c >> d) & 1][d];
+			world2img.apply(corner, corner);
+
+			for (int d = 0; d < imgDims; ++d)
+			{
+				min[d] = Math.min(min[d], (long)Math.floor(corner[d]));
+				max[d] = Math.max(max[d], (long)Math.ceil(corner[d]));
+			}
+		}
+
+		for (int d = 0; d < imgDims; ++d)
+		{
+			min[d] = Math.max(min[d], img.min(d));
+			max[d] = Math.min(max[d], img.max(d));
+			if (min[d] > max[d]) return null;
+		}
+		return new FinalInterval(min, max);
+	}
+}
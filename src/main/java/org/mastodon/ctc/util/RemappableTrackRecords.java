@@ -0,0 +1,244 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import net.celltrackingchallenge.measures.TrackRecords;
+
+/**
+ * {@link TrackRecords} that can renumber its tracks into a dense range of IDs,
+ * 1,2,3,..., (keeping the order of the original IDs) so that the markers
+ * images can be stored with a voxel type as small as possible.
+ *
+ * The lineage .txt file with the new IDs is written from the tracks that are
+ * stored in the {@link TrackRecords} itself, only the new IDs are kept aside.
+ *
+ * Alternatively, the tracks can be streamed: every closed track is written
+ * right away into the lineage .txt file and forgotten, so that only the tracks
+ * that are still alive are held in the memory. Streamed tracks cannot be
+ * renumbered, and they are written in the order of their closing.
+ *
+ * @author Vladimir Ulman
+ */
+public class RemappableTrackRecords extends TrackRecords
+{
+	/** the new ID of every original track ID (used as the index), 0 if not
+	    remapped, or null if no track is remapped */
+	protected int[] remap = null;
+
+	/** the IDs of the currently held tracks, in ascending order */
+	protected int[] sortedIDs()
+	{
+		return tracks.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+	}
+
+
+	/** how many tracks are there, including the already streamed ones */
+	public int getTracksCount()
+	{
+		return tracks.size() + streamedCount;
+	}
+
+	/** the largest track ID in use, or 0 if there are no tracks */
+	public int getMaxTrackID()
+	{
+		int maxID = streamedMaxID;
+		for (final Integer ID : tracks.keySet()) maxID = Math.max(maxID, ID);
+		return maxID;
+	}
+
+	/** renumbers all current tracks into the range 1 till getTracksCount(),
+	    the tracks must not be changed afterwards, not available for streamed tracks */
+	public void remapToDenseIDs()
+	{
+		if (isStreamed()) throw new IllegalStateException("Streamed tracks cannot be renumbered.");
+		final int[] IDs = sortedIDs();
+		remap = new int[IDs.length > 0 ? IDs[IDs.length-1]+1 : 1];
+		for (int i = 0; i < IDs.length; ++i)
+			remap[IDs[i]] = i+1;
+	}
+
+	public boolean isRemapped()
+	{
+		return remap != null;
+	}
+
+	/** returns the (possibly remapped) ID of the 'ID' track, 0 (no track) stays 0 */
+	public int getOutputID(final int ID)
+	{
+		if (remap == null || ID <= 0 || ID >= remap.length || remap[ID] == 0) return ID;
+		return remap[ID];
+	}
+
+	/** writes the lineage .txt file, in the CTC format, with the remapped track IDs,
+	    the begin and end times of the tracks are shifted by 'timeShift' */
+	public void exportRemappedToFile(final String filename, final int timeShift)
+	throws IOException
+	{
+		try (final BufferedWriter f = new BufferedWriter( new FileWriter(filename) ))
+		{
+			for (final int ID : sortedIDs())
+			{
+				f.write(getOutputID(ID)+" "+(getStartTimeOfTrack(ID)+timeShift)+" "+(getEndTimeOfTrack(ID)+timeShift)
+				        +" "+getOutputID(getParentOfTrack(ID)));
+				f.newLine();
+			}
+		}
+	}
+
+	/** writes the lineage .txt file, in the CTC format, with the (possibly remapped) track IDs,
+	    as if the tracks were known only till the 'lastTime' (inclusive): later tracks are
+	    left out and longer ones are shortened, the times are shifted by 'timeShift' */
+	public void exportTruncatedToFile(final String filename, final int timeShift, final int lastTime)
+	throws IOException
+	{
+		try (final BufferedWriter f = new BufferedWriter( new FileWriter(filename) ))
+		{
+			for (final int ID : sortedIDs())
+			{
+				if (getStartTimeOfTrack(ID) > lastTime) continue;
+				f.write(getOutputID(ID)+" "+(getStartTimeOfTrack(ID)+timeShift)+" "+(Math.min(getEndTimeOfTrack(ID),lastTime)+timeShift)
+				        +" "+getOutputID(getParentOfTrack(ID)));
+				f.newLine();
+			}
+		}
+	}
+
+	// ----------------- streaming -----------------
+	protected BufferedWriter streamFile = null;
+	protected int streamTimeShift = 0;
+	protected int streamedCount = 0, streamedMaxID = 0;
+	protected boolean wasStreamed = false;
+
+	/** the first failure of writing the closed tracks, it is reported with finishStreaming() */
+	protected IOException streamFailure = null;
+
+	/** from now on, the closed tracks are written into the lineage .txt file 'filename',
+	    in the CTC format, with the begin and end times shifted by 'timeShift' */
+	public void startStreaming(final String filename, final int timeShift)
+	throws IOException
+	{
+		streamFile = new BufferedWriter( new FileWriter(filename) );
+		streamTimeShift = timeShift;
+		wasStreamed = true;
+	}
+
+	/** true if the tracks are, or were, streamed into the lineage .txt file */
+	public boolean isStreamed()
+	{
+		return wasStreamed;
+	}
+
+	/** writes the track 'ID' into the lineage .txt file and forgets it,
+	    the track must not be changed afterwards; does nothing if not streaming */
+	public void closeTrack(final int ID)
+	{
+		if (streamFile == null || !tracks.containsKey(ID)) return;
+		final int begin = getStartTimeOfTrack(ID);
+		final int end = getEndTimeOfTrack(ID);
+		final int parent = getParentOfTrack(ID);
+
+		removeTrack(ID);
+		++streamedCount;
+		streamedMaxID = Math.max(streamedMaxID, ID);
+
+		if (streamFailure != null) return;
+		try
+		{
+			streamFile.write(ID+" "+(begin+streamTimeShift)+" "+(end+streamTimeShift)+" "+parent);
+			streamFile.newLine();
+		}
+		catch (IOException e) {
+			streamFailure = e;
+		}
+	}
+
+	/** writes all not yet closed tracks, and finishes the lineage .txt file */
+	public void finishStreaming()
+	throws IOException
+	{
+		if (streamFile == null) return;
+		for (final int ID : sortedIDs())
+			closeTrack(ID);
+		streamFile.close();
+		streamFile = null;
+
+		if (streamFailure != null) throw streamFailure;
+	}
+
+	/** rewrites the (e.g. streamed) lineage .txt file 'filename' as if the tracks were known
+	    only till the 'lastTime' (inclusive, in the file's times), see exportTruncatedToFile() */
+	public static void truncateLineageFile(final String filename, final int lastTime)
+	throws IOException
+	{
+		final File file = new File(filename);
+		final File tmpFile = new File(filename+".tmp");
+		try (final BufferedReader in = new BufferedReader( new FileReader(file) );
+		     final BufferedWriter out = new BufferedWriter( new FileWriter(tmpFile) ))
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				final String[] v = line.trim().split("\\s+");
+				if (v.length < 4 || Integer.parseInt(v[1]) > lastTime) continue;
+				out.write(v[0]+" "+v[1]+" "+Math.min(Integer.parseInt(v[2]),lastTime)+" "+v[3]);
+				out.newLine();
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("Damaged lineage file "+filename+": "+e.getMessage());
+		}
+		file.delete();
+		if (!tmpFile.renameTo(file))
+			throw new IOException("Cannot rewrite lineage file "+filename);
+	}
+
+
+	/** writes the table of the original and remapped track IDs, one pair per line */
+	public void exportRemappingToFile(final String filename)
+	throws IOException
+	{
+		try (final BufferedWriter f = new BufferedWriter( new FileWriter(filename) ))
+		{
+			f.write("# new_track_ID original_track_ID");
+			f.newLine();
+			for (final int ID : sortedIDs())
+			{
+				f.write(getOutputID(ID)+" "+ID);
+				f.newLine();
+			}
+		}
+	}
+}
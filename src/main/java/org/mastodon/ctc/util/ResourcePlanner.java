@@ -0,0 +1,159 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.io.File;
+
+import org.scijava.log.LogService;
+
+import net.imglib2.Dimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+
+/**
+ * Estimates, before an export or import starts, whether its images fit into
+ * the memory (Java heap) and its outputs onto the disk, so that the work can
+ * be reconfigured (e.g., to use fewer threads or images in flight) or at least
+ * warned about upfront, rather than failing with {@link OutOfMemoryError}
+ * halfway through.
+ *
+ * The estimates consider only the image data (the voxels), the overhead of
+ * the image objects themselves and of the Mastodon's project is not included;
+ * this is what the safety fraction of the available heap is for.
+ *
+ * @author Vladimir Ulman
+ */
+public class ResourcePlanner
+{
+	/** the memory budget is this fraction of the currently available heap */
+	public static final double HEAP_SAFETY_FRACTION = 0.75;
+
+	public ResourcePlanner(final LogService logService)
+	{
+		this.logService = logService;
+		this.heapBudget = (long)(availableHeapBytes() * HEAP_SAFETY_FRACTION);
+	}
+
+	private final LogService logService;
+	private final long heapBudget;
+
+	/** how many bytes can the planned work take from the heap */
+	public long getHeapBudget()
+	{
+		return heapBudget;
+	}
+
+	public boolean fitsIntoHeap(final long bytes)
+	{
+		return bytes <= heapBudget;
+	}
+
+	/** logs the estimated peak memory consumption of the planned work, and
+	    warns if it exceeds the budget; returns true if it fits */
+	public boolean reportHeap(final String what, final long peakBytes)
+	{
+		final boolean fits = fitsIntoHeap(peakBytes);
+		final String msg = "Memory plan          : "+what+" needs about "+toHuman(peakBytes)
+		                 +" of "+toHuman(heapBudget)+" available";
+		if (fits) logService.info(msg);
+		else logService.warn(msg+", may run out of memory!");
+		return fits;
+	}
+
+	/** logs the estimated size of the outputs, and warns if the disk
+	    of the 'folder' has not enough free space; returns true if they fit */
+	public boolean reportDisk(final File folder, final long outputBytes)
+	{
+		final long freeBytes = usableDiskBytes(folder);
+		final boolean fits = freeBytes < 0 || outputBytes <= freeBytes;
+		final String msg = "Disk plan            : outputs take up to "+toHuman(outputBytes)
+		                 +(freeBytes < 0 ? "" : " of "+toHuman(freeBytes)+" free");
+		if (fits) logService.info(msg);
+		else logService.warn(msg+", the disk may become full!");
+		return fits;
+	}
+
+	/** logs the estimated peak memory of an import that reads the images of the 'imgs'
+	    one time point after another while holding 'imagesInFlight' of them at a time,
+	    the images are considered as large as the one at the 'referenceTime';
+	    returns true if it fits */
+	public boolean reportImport(final ImgProviders.ImgProvider imgs, final int referenceTime, final int imagesInFlight)
+	{
+		final RandomAccessibleInterval<?> img = imgs.getImage(referenceTime);
+		final long bytes = imgBytes(img, Util.getTypeFromInterval(img));
+		return reportHeap(imagesInFlight+" image(s) of "+toHuman(bytes)+" in flight", imagesInFlight * bytes);
+	}
+
+
+	/** bytes of heap that can still be allocated: the max heap minus what is already used */
+	public static long availableHeapBytes()
+	{
+		final Runtime r = Runtime.getRuntime();
+		return r.maxMemory() - (r.totalMemory() - r.freeMemory());
+	}
+
+	/** bytes of one voxel of the given 'type', unknown types are considered 4 bytes long */
+	public static long bytesPerVoxel(final Object type)
+	{
+		if (type instanceof RealType)
+			return Math.max( ((RealType<?>)type).getBitsPerPixel() / 8, 1 );
+		return 4;
+	}
+
+	public static long imgBytes(final long[] dims, final Object type)
+	{
+		long voxels = 1;
+		for (final long d : dims) voxels *= d;
+		return voxels * bytesPerVoxel(type);
+	}
+
+	public static long imgBytes(final Dimensions img, final Object type)
+	{
+		final long[] dims = new long[img.numDimensions()];
+		img.dimensions(dims);
+		return imgBytes(dims, type);
+	}
+
+	/** free bytes on the disk where the 'folder' is (or would be), or -1 if not known */
+	public static long usableDiskBytes(File folder)
+	{
+		folder = folder.getAbsoluteFile();
+		while (folder != null && !folder.exists()) folder = folder.getParentFile();
+		return folder == null ? -1 : folder.getUsableSpace();
+	}
+
+	public static String toHuman(final long bytes)
+	{
+		if (bytes < 1024) return bytes+" B";
+		if (bytes < 1024L*1024) return String.format("%.1f kB", bytes/1024.0);
+		if (bytes < 1024L*1024*1024) return String.format("%.1f MB", bytes/(1024.0*1024));
+		return String.format("%.1f GB", bytes/(1024.0*1024*1024));
+	}
+}
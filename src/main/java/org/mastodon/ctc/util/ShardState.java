@@ -0,0 +1,255 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mastodon.collection.RefIntMap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * The state of one shard of the CTC export, that is, of an export of only
+ * a range of time points, that is needed to merge it later with the shards
+ * of the adjacent time ranges (see {@link ShardsMerger}).
+ *
+ * Besides the time range and where the shard's lineage .txt file and markers
+ * images are, it lists the spots of the first and the last time point together
+ * with their tracks and with how they are linked beyond the shard's time range.
+ * The spots are identified with their Mastodon's internal IDs, which agree among
+ * the shards as long as these were exported from the same project file.
+ *
+ * @author Vladimir Ulman
+ */
+public class ShardState
+{
+	/** the shard's time range, and how its time points were renumbered in its outputs */
+	public int timeFrom, timeTill, timeShift;
+
+	/** the shard's lineage .txt file */
+	public String lineageFile;
+
+	/** the template of the shard's markers image files (time point is
+	    the parameter), or null if these are not individual TIFF files */
+	public String imgFilenameFormat = null;
+
+	/** true once the shard's markers images have been all relabeled to agree
+	    with a merged lineage, they must not be relabeled again then */
+	public boolean isRelabeled = false;
+
+	/** the file this state was loaded from, or null */
+	public File stateFile = null;
+
+	/** a spot of the shard's first time point */
+	public static class FirstSpot
+	{
+		public FirstSpot(final int spotId, final int track, final int backwardLinks, final int predecessorId)
+		{
+			this.spotId = spotId;
+			this.track = track;
+			this.backwardLinks = backwardLinks;
+			this.predecessorId = predecessorId;
+		}
+
+		public final int spotId, track;
+		/** how many links to earlier time points this spot has in the project */
+		public final int backwardLinks;
+		/** the linked spot from the previous time point, or -1 if there is none */
+		public final int predecessorId;
+	}
+
+	/** a spot of the shard's last time point */
+	public static class LastSpot
+	{
+		public LastSpot(final int spotId, final int track, final int forwardLinks)
+		{
+			this.spotId = spotId;
+			this.track = track;
+			this.forwardLinks = forwardLinks;
+		}
+
+		public final int spotId, track;
+		/** how many links to later time points this spot has in the project */
+		public final int forwardLinks;
+	}
+
+	public final List<FirstSpot> firstSpots = new ArrayList<>(1000);
+	public final List<LastSpot> lastSpots = new ArrayList<>(1000);
+
+	/** returns the state of the export of the time points 'timeFrom' till 'timeTill'
+	    (the boundary spots, as seen by the 'lineage', and their tracks) for a later
+	    merging with the exports of the adjacent time ranges; the 'spotLabels' map
+	    the spots to their tracks in the 'tracks' */
+	public static
+	ShardState collect(final ModelGraph modelGraph, final LineageBuilder lineage, final RefIntMap<Spot> spotLabels,
+	                   final RemappableTrackRecords tracks, final int timeFrom, final int timeTill,
+	                   final int timeShift, final String imgFilenameFormat)
+	{
+		final ShardState state = new ShardState();
+		state.timeFrom = timeFrom;
+		state.timeTill = timeTill;
+		state.timeShift = timeShift;
+		state.imgFilenameFormat = imgFilenameFormat;
+
+		final Link lRef = modelGraph.edgeRef();
+		final Spot sRef = modelGraph.vertices().createRef();
+		for (final Spot spot : lineage.spotsOf(timeFrom))
+		{
+			final int track = spotLabels.get(spot);
+			if (track < 0) continue;
+
+			int backwardLinks = 0;
+			int predecessorId = -1;
+			for (int n=0; n < spot.incomingEdges().size() + spot.outgoingEdges().size(); ++n)
+			{
+				if (n < spot.incomingEdges().size()) spot.incomingEdges().get(n, lRef).getSource( sRef );
+				else spot.outgoingEdges().get(n-spot.incomingEdges().size(), lRef).getTarget( sRef );
+				if (sRef.getTimepoint() >= timeFrom) continue;
+				++backwardLinks;
+				if (sRef.getTimepoint() == timeFrom-1) predecessorId = sRef.getInternalPoolIndex();
+			}
+			state.firstSpots.add( new FirstSpot(spot.getInternalPoolIndex(), tracks.getOutputID(track),
+			                                    backwardLinks, predecessorId) );
+		}
+		for (final Spot spot : lineage.spotsOf(timeTill))
+		{
+			final int track = spotLabels.get(spot);
+			if (track < 0) continue;
+
+			int forwardLinks = 0;
+			for (int n=0; n < spot.incomingEdges().size() + spot.outgoingEdges().size(); ++n)
+			{
+				if (n < spot.incomingEdges().size()) spot.incomingEdges().get(n, lRef).getSource( sRef );
+				else spot.outgoingEdges().get(n-spot.incomingEdges().size(), lRef).getTarget( sRef );
+				if (sRef.getTimepoint() > timeTill) ++forwardLinks;
+			}
+			state.lastSpots.add( new LastSpot(spot.getInternalPoolIndex(), tracks.getOutputID(track), forwardLinks) );
+		}
+		modelGraph.vertices().releaseRef(sRef);
+		modelGraph.releaseRef(lRef);
+		return state;
+	}
+
+
+	public void save(final File stateFile)
+	throws IOException
+	{
+		try (final BufferedWriter f = new BufferedWriter( new FileWriter(stateFile) ))
+		{
+			f.write("# CTC export shard state");
+			f.newLine();
+			f.write("time "+timeFrom+" "+timeTill+" "+timeShift);
+			f.newLine();
+			f.write("lineage "+lineageFile);
+			f.newLine();
+			if (imgFilenameFormat != null)
+			{
+				f.write("images "+imgFilenameFormat);
+				f.newLine();
+			}
+			if (isRelabeled)
+			{
+				f.write("relabeled");
+				f.newLine();
+			}
+			for (final FirstSpot s : firstSpots)
+			{
+				f.write("first "+s.spotId+" "+s.track+" "+s.backwardLinks+" "+s.predecessorId);
+				f.newLine();
+			}
+			for (final LastSpot s : lastSpots)
+			{
+				f.write("last "+s.spotId+" "+s.track+" "+s.forwardLinks);
+				f.newLine();
+			}
+		}
+	}
+
+	public static ShardState load(final File stateFile)
+	throws IOException
+	{
+		final ShardState state = new ShardState();
+		boolean foundTime = false;
+		try (final BufferedReader f = new BufferedReader( new FileReader(stateFile) ))
+		{
+			String line;
+			while ((line = f.readLine()) != null)
+			{
+				if (line.startsWith("#") || line.isEmpty()) continue;
+				final int sep = line.indexOf(' ');
+				final String key = sep < 0 ? line : line.substring(0,sep);
+				final String value = sep < 0 ? "" : line.substring(sep+1);
+				final String[] v = value.split(" ");
+				switch (key)
+				{
+				case "time":
+					state.timeFrom = Integer.parseInt(v[0]);
+					state.timeTill = Integer.parseInt(v[1]);
+					state.timeShift = Integer.parseInt(v[2]);
+					foundTime = true;
+					break;
+				case "lineage":
+					state.lineageFile = value;
+					break;
+				case "images":
+					state.imgFilenameFormat = value;
+					break;
+				case "relabeled":
+					state.isRelabeled = true;
+					break;
+				case "first":
+					state.firstSpots.add( new FirstSpot(Integer.parseInt(v[0]), Integer.parseInt(v[1]),
+					                                    Integer.parseInt(v[2]), Integer.parseInt(v[3])) );
+					break;
+				case "last":
+					state.lastSpots.add( new LastSpot(Integer.parseInt(v[0]), Integer.parseInt(v[1]), Integer.parseInt(v[2])) );
+					break;
+				default:
+					throw new IOException("Unknown entry '"+key+"' in "+stateFile);
+				}
+			}
+		}
+		catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Damaged shard state "+stateFile+": "+e.getMessage());
+		}
+
+		if (!foundTime || state.lineageFile == null)
+			throw new IOException("Incomplete shard state "+stateFile);
+		state.stateFile = stateFile;
+		return state;
+	}
+}
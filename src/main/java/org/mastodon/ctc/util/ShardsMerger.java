@@ -0,0 +1,340 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import org.scijava.log.LogService;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Stitches the lineages of several shards of the CTC export, each exported from
+ * an adjacent range of time points, into one consistent lineage.
+ *
+ * The track IDs of every shard are first shifted past the IDs of the previous
+ * shards. A track that starts in the shard's first time point is then joined
+ * with the track of its predecessor (from the previous shard's last time point)
+ * if the two spots are linked one-to-one, or it gets the predecessor's track
+ * as its parent if the predecessor divides. A track that starts with a merge
+ * (the spot has more predecessors) keeps no parent, the same as the LineageBuilder
+ * does within one export. Links that jump over the shards' boundary (gaps) are
+ * not followed. Once merged, the markers images of the
+ * shards can be relabeled to agree with the merged lineage.
+ *
+ * The merged IDs overlap the shards' IDs, so the images must be relabeled only
+ * once. Every relabeled image is therefore marked (with an image property) and
+ * replaced atomically, and a shard whose images are all relabeled is marked in
+ * its state file. Marked images and shards are not relabeled again, not even
+ * when the relabeling is repeated after it was interrupted.
+ *
+ * @author Vladimir Ulman
+ */
+public class ShardsMerger
+{
+	public ShardsMerger(final List<ShardState> shardStates, final LogService logService)
+	throws IOException
+	{
+		this.logService = logService;
+		shards = new ArrayList<>(shardStates);
+		shards.sort( Comparator.comparingInt(s -> s.timeFrom) );
+		for (int k = 1; k < shards.size(); ++k)
+			if (shards.get(k).timeFrom != shards.get(k-1).timeTill+1)
+				throw new IOException("Shards are not adjacent: time points "+shards.get(k-1).timeFrom+"-"+shards.get(k-1).timeTill
+				                     +" and "+shards.get(k).timeFrom+"-"+shards.get(k).timeTill);
+
+		//all tracks, with their IDs shifted past the previous shards
+		offsets = new int[shards.size()];
+		int offset = 0;
+		for (int k = 0; k < shards.size(); ++k)
+		{
+			offsets[k] = offset;
+			final List<Integer> IDs = new ArrayList<>(1000);
+			final int maxID = readLineage(shards.get(k), offset, IDs);
+			shardTrackIDs.add(IDs);
+			logService.info("Shard "+shards.get(k).timeFrom+"-"+shards.get(k).timeTill+": tracks "+(offset+1)+"-"+(offset+maxID));
+			offset += maxID;
+		}
+
+		//link the tracks across the boundaries
+		int joined = 0, parented = 0;
+		for (int k = 1; k < shards.size(); ++k)
+		{
+			final Map<Integer,ShardState.LastSpot> predecessors = new HashMap<>();
+			for (final ShardState.LastSpot p : shards.get(k-1).lastSpots)
+				predecessors.put(p.spotId, p);
+
+			for (final ShardState.FirstSpot s : shards.get(k).firstSpots)
+			{
+				final ShardState.LastSpot p = predecessors.get(s.predecessorId);
+				if (p == null) continue;
+
+				final int P = offsets[k-1] + p.track;
+				final int T = offsets[k] + s.track;
+				if (p.forwardLinks == 1 && s.backwardLinks == 1)
+				{
+					joinedInto.put(T, P);
+					++joined;
+				}
+				else if (p.forwardLinks > 1 && s.backwardLinks == 1
+				         && tracks.get(T) != null && tracks.get(T)[2] == 0)
+				{
+					tracks.get(T)[2] = P;
+					++parented;
+				}
+			}
+		}
+
+		//NB: ascending IDs, so that the tracks are joined in the order of time
+		for (final Map.Entry<Integer,Integer> j : joinedInto.entrySet())
+		{
+			final int[] root = tracks.get( findTrack(j.getValue()) );
+			final int[] joinedTrack = tracks.remove(j.getKey());
+			if (root != null && joinedTrack != null) root[1] = Math.max(root[1], joinedTrack[1]);
+		}
+		for (final int[] bep : tracks.values())
+			bep[2] = findTrack(bep[2]);
+
+		logService.info("Merged lineage has "+tracks.size()+" tracks, "+joined+" tracks were joined across shards, "
+		               +parented+" got their parent from the previous shard.");
+	}
+
+	private final LogService logService;
+	private final List<ShardState> shards;
+	private final int[] offsets;
+
+	/** the (not shifted) track IDs of every shard */
+	private final List<List<Integer>> shardTrackIDs = new ArrayList<>();
+
+	/** map: merged track ID to its {begin, end, parent}, in the original time points */
+	private final TreeMap<Integer,int[]> tracks = new TreeMap<>();
+
+	/** map: (shifted) track ID to the (shifted) ID of the track which it continues */
+	private final TreeMap<Integer,Integer> joinedInto = new TreeMap<>();
+
+	/** returns the merged ID of the (shifted) track 'ID' */
+	private int findTrack(int ID)
+	{
+		Integer next;
+		while ((next = joinedInto.get(ID)) != null) ID = next;
+		return ID;
+	}
+
+	/** adds the shard's tracks, shifted by 'offset', lists the shard's (not shifted)
+	    track IDs into the 'IDs', and returns the largest track ID of the shard */
+	private int readLineage(final ShardState shard, final int offset, final List<Integer> IDs)
+	throws IOException
+	{
+		int maxID = 0;
+		try (final BufferedReader f = new BufferedReader( new FileReader(shard.lineageFile) ))
+		{
+			String line;
+			while ((line = f.readLine()) != null)
+			{
+				final String[] v = line.trim().split("\\s+");
+				if (v.length < 4) continue;
+				final int ID = Integer.parseInt(v[0]);
+				final int parent = Integer.parseInt(v[3]);
+				tracks.put(offset+ID, new int[] { Integer.parseInt(v[1])+shard.timeShift,
+				                                  Integer.parseInt(v[2])+shard.timeShift,
+				                                  parent > 0 ? offset+parent : 0 });
+				IDs.add(ID);
+				maxID = Math.max(maxID, ID);
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("Damaged lineage file "+shard.lineageFile+": "+e.getMessage());
+		}
+		return maxID;
+	}
+
+
+	/** writes the merged lineage .txt file, in the CTC format, with the
+	    time points shifted the same way as in the first shard */
+	public void exportToFile(final String filename)
+	throws IOException
+	{
+		final int timeShift = shards.isEmpty() ? 0 : -shards.get(0).timeShift;
+		try (final BufferedWriter f = new BufferedWriter( new FileWriter(filename) ))
+		{
+			for (final Map.Entry<Integer,int[]> t : tracks.entrySet())
+			{
+				final int[] bep = t.getValue();
+				f.write(t.getKey()+" "+(bep[0]+timeShift)+" "+(bep[1]+timeShift)+" "+bep[2]);
+				f.newLine();
+			}
+		}
+	}
+
+	/** rewrites the labels in the markers images of the shards to agree with the
+	    merged lineage, 'threads' images are processed in parallel, returns the
+	    number of rewritten images; the shards whose images were relabeled
+	    already are skipped, the others are marked as relabeled afterwards */
+	public int relabelImages(final int threads)
+	throws IOException, InterruptedException
+	{
+		final ExecutorService workers = Executors.newFixedThreadPool( Math.max(threads,1) );
+		final List<Callable<Boolean>> jobs = new ArrayList<>();
+		final List<ShardState> relabeledShards = new ArrayList<>();
+		for (int k = 0; k < shards.size(); ++k)
+		{
+			final ShardState shard = shards.get(k);
+			if (shard.isRelabeled)
+			{
+				logService.warn("Shard "+shard.timeFrom+"-"+shard.timeTill+" has been relabeled already, its labels were not rewritten again.");
+				continue;
+			}
+
+			//map: shard's label to the merged one, only those that change
+			final Map<Integer,Integer> labels = new HashMap<>();
+			int maxLabel = 0;
+			for (final int ID : shardTrackIDs.get(k))
+			{
+				final int merged = findTrack(offsets[k] + ID);
+				if (merged != ID) labels.put(ID, merged);
+				maxLabel = Math.max(maxLabel, merged);
+			}
+			if (labels.isEmpty()) continue;
+
+			if (shard.imgFilenameFormat == null)
+			{
+				logService.warn("Shard "+shard.timeFrom+"-"+shard.timeTill+" has no individual TIFF images, its labels were not rewritten.");
+				continue;
+			}
+			relabeledShards.add(shard);
+
+			final int maxUsedLabel = maxLabel;
+			for (int time = shard.timeFrom; time <= shard.timeTill; ++time)
+			{
+				final String path = String.format(shard.imgFilenameFormat, time - shard.timeShift);
+				jobs.add( () -> relabelImage(path, labels, maxUsedLabel) );
+
+				//the downsampled levels of the image, if any were exported
+				for (int level = 1; new File(LabelPyramid.levelFilename(path, level)).exists(); ++level)
+				{
+					final String levelPath = LabelPyramid.levelFilename(path, level);
+					jobs.add( () -> relabelImage(levelPath, labels, maxUsedLabel) );
+				}
+			}
+		}
+
+		int rewritten = 0;
+		try
+		{
+			for (final Future<Boolean> job : workers.invokeAll(jobs))
+				if (job.get()) ++rewritten;
+		}
+		catch (ExecutionException e) {
+			throw new IOException(e.getCause().getMessage(), e.getCause());
+		}
+		finally
+		{
+			workers.shutdownNow();
+		}
+
+		//NB: only after all images of the shards are relabeled
+		for (final ShardState shard : relabeledShards)
+		{
+			shard.isRelabeled = true;
+			if (shard.stateFile != null) shard.save(shard.stateFile);
+		}
+		return rewritten;
+	}
+
+	/** the image property that marks the relabeled images */
+	public static final String RELABELED_PROPERTY = "CTC-merged-labels";
+
+	/** rewrites the labels in the image, returns false if the image is not found
+	    or if it has been relabeled already */
+	private boolean relabelImage(final String path, final Map<Integer,Integer> labels, final int maxLabel)
+	throws IOException
+	{
+		final ImagePlus imp = IJ.openImage(path);
+		if (imp == null)
+		{
+			logService.warn("Cannot open image "+path+", its labels were not rewritten.");
+			return false;
+		}
+		if (imp.getProp(RELABELED_PROPERTY) != null)
+		{
+			logService.info("Already relabeled image: "+path);
+			return false;
+		}
+
+		final int bitDepth = imp.getBitDepth();
+		if ((bitDepth == 8 && maxLabel > 255) || (bitDepth == 16 && maxLabel > 65535) || (bitDepth == 32 && maxLabel > (1 << 24)))
+			throw new IOException("Merged labels (up to "+maxLabel+") do not fit into "+bitDepth+"-bit image "+path);
+
+		final ImageStack stack = imp.getStack();
+		for (int z = 1; z <= stack.getSize(); ++z)
+		{
+			final ImageProcessor ip = stack.getProcessor(z);
+			final int size = ip.getPixelCount();
+			for (int i = 0; i < size; ++i)
+			{
+				final int label = (int)ip.getf(i);
+				if (label == 0) continue;
+				final Integer merged = labels.get(label);
+				if (merged != null) ip.setf(i, merged);
+			}
+		}
+
+		//NB: written aside first, so that an interruption cannot leave behind a partly written image
+		imp.setProp(RELABELED_PROPERTY, "true");
+		final File file = new File(path);
+		final File tmpFile = new File(file.getParentFile(), ".relabeling_"+file.getName());
+		IJ.save(imp, tmpFile.getPath());
+		if (!tmpFile.exists())
+			throw new IOException("Cannot write relabeled image "+tmpFile);
+		ImgCache.shared().invalidate(path);
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logService.info("Relabeled image: "+path);
+		return true;
+	}
+}
@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPoint;
+
+import org.mastodon.collection.RefIntMap;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.ctc.auxPlugins.TRAMarkersProvider;
+
+/**
+ * Snapshot of the spot's data that is needed for its rendering into a markers
+ * image (see {@link MarkersRenderer}); being detached from the Mastodon's
+ * graph, it is usable from any thread.
+ *
+ * @author Vladimir Ulman
+ */
+public class SpotRecord
+{
+	public SpotRecord(final Spot spot, final int label, final TRAMarkersProvider.intersectionDecidable markerShape)
+	{
+		this(spot.getLabel(), label, spot, Math.sqrt(spot.getBoundingSphereRadiusSquared()),
+		     covarianceOf(spot), markerShape);
+	}
+
+	public SpotRecord(final String spotLabel, final int label, final RealLocalizable position, final double radius,
+	                  final double[][] covariance, final TRAMarkersProvider.intersectionDecidable markerShape)
+	{
+		this.spotLabel = spotLabel;
+		this.label = label;
+		this.position = new RealPoint(position);
+		this.radius = radius;
+		this.shape = markerShape.forSpot(covariance);
+
+		long h = ExportManifest.mix(ExportManifest.HASH_SEED, label);
+		h = ExportManifest.mix(h, radius);
+		for (int d = 0; d < 3; ++d)
+		{
+			h = ExportManifest.mix(h, this.position.getDoublePosition(Math.min(d,this.position.numDimensions()-1)));
+			for (int e = 0; e < 3; ++e) h = ExportManifest.mix(h, covariance[d][e]);
+		}
+		this.contentHash = h;
+	}
+
+	public final String spotLabel;
+	public final int label;          //CTC's trackID
+	public final RealPoint position; //spot's centre in world coords
+	public final double radius;
+	public final TRAMarkersProvider.intersectionDecidable shape; //marker's shape specific to this spot
+	public final long contentHash;   //of all the above, for the incremental export
+
+	static
+	double[][] covarianceOf(final Spot spot)
+	{
+		final double[][] cov = new double[3][3];
+		spot.getCovariance(cov);
+		return cov;
+	}
+
+	/** hash of everything that is drawn into the markers image of the given time point */
+	public static
+	long hashTimePoint(final int time, final List<SpotRecord> spotsToRender)
+	{
+		long h = ExportManifest.mix(ExportManifest.HASH_SEED, time);
+		for (final SpotRecord spot : spotsToRender)
+			h = ExportManifest.mix(h, spot.contentHash);
+		return h;
+	}
+
+	/** lists all given spots (of one time point) together with their (possibly remapped) labels
+	    (in the order of the spatial index), and forgets the labels as they are not needed anymore */
+	public static
+	List<SpotRecord> collect(final Iterable< Spot > spots,
+	                         final RefIntMap< Spot > spotLabels,
+	                         final RemappableTrackRecords tracks,
+	                         final TRAMarkersProvider.intersectionDecidable markerShape)
+	{
+		final ArrayList<SpotRecord> records = new ArrayList<>(500);
+		for ( final Spot spot : spots )
+		{
+			records.add( new SpotRecord(spot, tracks.getOutputID(spotLabels.get(spot)), markerShape) );
+			spotLabels.remove(spot);
+		}
+		return records;
+	}
+}
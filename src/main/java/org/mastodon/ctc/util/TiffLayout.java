@@ -0,0 +1,177 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The bits of the (little-endian) TIFF and BigTIFF formats that are shared by
+ * the TIFF writers of this package: the header, the IFD (directory) entries,
+ * the ImageJ's description, and the conversion of the pixel arrays into bytes.
+ *
+ * @author Vladimir Ulman
+ */
+class TiffLayout
+{
+	TiffLayout(final boolean isBig)
+	{
+		this.isBig = isBig;
+	}
+
+	/** if BigTIFF, or the classic TIFF */
+	final boolean isBig;
+
+	static final int TYPE_ASCII = 2;
+	static final int TYPE_SHORT = 3;
+	static final int TYPE_LONG  = 4;
+	static final int TYPE_LONG8 = 16;
+
+	/** the largest file that the classic TIFF can hold */
+	static final long CLASSIC_TIFF_LIMIT = 0xffffffffL;
+
+	int headerSize()
+	{
+		return isBig ? 16 : 8;
+	}
+
+	/** size of one IFD of the given number of 'entries', including the offset of the next one */
+	int ifdSize(final int entries)
+	{
+		return isBig ? 8 + entries*20 + 8 : 2 + entries*12 + 4;
+	}
+
+	/** the type for offsets (and byte counts) of the strips */
+	int offsetType()
+	{
+		return isBig ? TYPE_LONG8 : TYPE_LONG;
+	}
+
+	/** size of one value of the offsetType() */
+	int offsetSize()
+	{
+		return isBig ? 8 : 4;
+	}
+
+	static long align(final long offset)
+	{
+		return (offset + 15) & ~15L;
+	}
+
+	/** returns the header that points at the first IFD at the 'firstIfdOffset' */
+	ByteBuffer header(final long firstIfdOffset)
+	{
+		final ByteBuffer header = ByteBuffer.allocate(headerSize()).order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte)'I').put((byte)'I');
+		if (isBig)
+			header.putShort((short)43).putShort((short)8).putShort((short)0).putLong(firstIfdOffset);
+		else
+			header.putShort((short)42).putInt((int)firstIfdOffset);
+		header.flip();
+		return header;
+	}
+
+	/** returns the (zero-terminated) ImageJ's description of an image of
+	    'planesPerImage' z-slices and 'imagesCount' time points */
+	static byte[] imagejDescription(final int planesPerImage, final int imagesCount)
+	{
+		final String frames = imagesCount > 1 ? "\nframes="+imagesCount+"\nhyperstack=true" : "";
+		return ("ImageJ=1.54f\nimages="+((long)planesPerImage*imagesCount)
+			+"\nslices="+planesPerImage+frames
+			+"\nmode=grayscale\nloop=false\n\0").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/** puts one IFD entry whose (single) value is stored directly in the entry,
+	    or, for the ASCII type or for more values, the 'value' is the offset of them */
+	void putEntry(final ByteBuffer b, final int tag, final int type, final long count, final long value)
+	{
+		b.putShort((short)tag).putShort((short)type);
+		final boolean isInline = count == 1 && type != TYPE_ASCII;
+		if (isBig)
+		{
+			b.putLong(count);
+			if (type == TYPE_SHORT && isInline) b.putShort((short)value).putShort((short)0).putInt(0);
+			else b.putLong(value);
+		}
+		else
+		{
+			b.putInt((int)count);
+			if (type == TYPE_SHORT && isInline) b.putShort((short)value).putShort((short)0);
+			else b.putInt((int)value);
+		}
+	}
+
+	/** puts the 'value' as one value of the offsetType() */
+	void putOffset(final ByteBuffer b, final long value)
+	{
+		if (isBig) b.putLong(value); else b.putInt((int)value);
+	}
+
+	static
+	void writeFully(final FileChannel channel, final ByteBuffer b, long position)
+	throws IOException
+	{
+		while (b.hasRemaining())
+			position += channel.write(b, position);
+	}
+
+	/** bits of one voxel of the 'pixels' array (byte[], short[] or float[]), or 0 if not supported */
+	static int bitDepthOf(final Object pixels)
+	{
+		if (pixels instanceof byte[]) return 8;
+		if (pixels instanceof short[]) return 16;
+		if (pixels instanceof float[]) return 32;
+		return 0;
+	}
+
+	/** puts (in bulk, not voxel by voxel) the 'length' voxels of the 'pixels' array
+	    starting from its 'offset' into the (little-endian) 'buf' at its position */
+	static
+	void putPixels(final ByteBuffer buf, final Object pixels, final int offset, final int length)
+	throws IOException
+	{
+		if (pixels instanceof byte[])
+			buf.put((byte[])pixels, offset, length);
+		else if (pixels instanceof short[])
+		{
+			buf.asShortBuffer().put((short[])pixels, offset, length);
+			buf.position(buf.position() + 2*length);
+		}
+		else if (pixels instanceof float[])
+		{
+			buf.asFloatBuffer().put((float[])pixels, offset, length);
+			buf.position(buf.position() + 4*length);
+		}
+		else
+			throw new IOException("Unsupported pixels: "+pixels.getClass().getSimpleName());
+	}
+}
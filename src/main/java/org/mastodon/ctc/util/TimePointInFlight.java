@@ -0,0 +1,98 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import ij.ImagePlus;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+
+/**
+ * The images of one exported time point that are possibly still being
+ * rendered (or read), and that are waiting to be handed over for saving
+ * (see {@link ExportOutput}).
+ *
+ * @author Vladimir Ulman
+ */
+public class TimePointInFlight<T>
+{
+	public TimePointInFlight(final int time, final String outImgFilename)
+	{
+		this.time = time;
+		this.outImgFilename = outImgFilename;
+	}
+
+	public final int time;
+	public final String outImgFilename;
+
+	/** the raw images to be saved, one per exported channel */
+	public final ArrayList<RawImg> rawImgs = new ArrayList<>(4);
+
+	/** the rendered markers image, or null if markers are not to be exported */
+	public Future<Img<T>> outImg = null;
+
+	/** the markers image that renders itself while being saved, used instead of the 'outImg' */
+	public ImagePlus outPlanes = null;
+
+	/** the (pooled) buffer in which the 'outImg' is rendered */
+	public MarkersRenderer.MarkersBuffer<T> outBuffer = null;
+
+	/** the coarser levels of the 'outImg', valid only after the 'outImg' is rendered */
+	public List<Img<T>> outLevels = null;
+
+	/** hash of what the images depend on besides the export settings, see {@link ExportCheckpoint} */
+	public long contentHash = 0;
+
+	/** one raw image (of one channel) of the time point in flight */
+	public static class RawImg
+	{
+		public RawImg(final ImgProviders.ImgProvider source, final String filename)
+		{
+			this.source = source;
+			this.filename = filename;
+		}
+
+		public final ImgProviders.ImgProvider source;
+		public final String filename;
+
+		/** the raw image copied into the memory, or null if it is saved directly from its source */
+		public Future<RandomAccessibleInterval<?>> copy = null;
+	}
+
+	/** how many images are to be saved for this time point, if the
+	    markers image comes with the 'levelsCount' downsampled levels */
+	public int imagesCount(final int levelsCount)
+	{
+		return rawImgs.size() + (outPlanes != null ? 1 : 0) + (outImg != null ? 1 + levelsCount : 0);
+	}
+}
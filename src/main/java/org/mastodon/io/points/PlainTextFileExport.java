@@ -69,6 +69,11 @@ public class PlainTextFileExport implements Command
 	@Parameter(label = "Include optional column with spot radii:")
 	boolean doRadiusColumn = false;
 
+	@Parameter(label = "Write every tree of tracks as soon as it is complete:",
+	           description = "Only the trees that are still growing are kept in the memory. The trees are then "
+	                       + "listed in the order of their completion rather than of their start.")
+	boolean doStreamTrees = false;
+
 	@Parameter(persist = false)
 	ProjectModel projectModel;
 
@@ -111,9 +116,22 @@ public class PlainTextFileExport implements Command
 		final Spot sRef = modelGraph.vertices().createRef(); //spot reference
 		final Spot fRef = modelGraph.vertices().createRef(); //some spot's future buddy
 
+		//aux storage of coords
+		final double[] coords = new double[3];
+
 		try
 		{
 
+		final BufferedWriter f
+			= new BufferedWriter( new FileWriter(selectedFile.getAbsolutePath()) );
+
+		f.write("# from project "+projectModel.getProject().getProjectRoot().getAbsolutePath());
+		f.newLine();
+		f.write("# TIME"+delim+"X"+delim+"Y"+delim+"Z"+delim+"TRACK_ID"+delim+"PARENT_TRACK_ID"+delim+"SPOT LABEL");
+		if (doRadiusColumn) f.write(delim+"SPOT RADIUS");
+		f.newLine();
+		f.newLine();
+
 		//over all time points
 		for (int time = timeFrom; time <= timeTill; ++time)
 		{
@@ -192,6 +210,7 @@ public class PlainTextFileExport implements Command
 					else
 					{
 						logger.trace(spot.getLabel()+": will just leave the track ID "+knownTracks.get(spot));
+						if (doStreamTrees) closeTrack(knownTracks.get(spot), tracks, f, transform, coords, delim);
 					}
 				}
 
@@ -255,6 +274,14 @@ public class PlainTextFileExport implements Command
 					}
 				}
 
+				//is the track of this spot not continuing with its follower?
+				if (doStreamTrees)
+				{
+					final boolean isPassedOn = countForwardLinks == 1 && fRef.getTimepoint() == time+1
+					                        && knownTracks.get(fRef) == knownTracks.get(spot);
+					if (!isPassedOn) closeTrack(knownTracks.get(spot), tracks, f, transform, coords, delim);
+				}
+
 				//forget the currently closed track
 				knownTracks.remove( spot );
 
@@ -266,51 +293,9 @@ public class PlainTextFileExport implements Command
 			}
 		}
 
-		//aux storage of coords
-		final double[] coords = new double[3];
-
-		final BufferedWriter f
-			= new BufferedWriter( new FileWriter(selectedFile.getAbsolutePath()) );
-
-		f.write("# from project "+projectModel.getProject().getProjectRoot().getAbsolutePath());
-		f.newLine();
-		f.write("# TIME"+delim+"X"+delim+"Y"+delim+"Z"+delim+"TRACK_ID"+delim+"PARENT_TRACK_ID"+delim+"SPOT LABEL");
-		if (doRadiusColumn) f.write(delim+"SPOT RADIUS");
-		f.newLine();
-		f.newLine();
-
+		//the remaining (or, if not streaming, all) trees
 		for (Set<Integer> tree : tracks.forestOfTrackTrees)
-		{
-			//first, report the complete tree
-			f.write("# one tree of tracks:"); f.newLine();
-			f.write("#"+delim);
-			for (Integer ID : tree) f.write(ID+delim);
-			f.newLine();
-
-			//second, report every track of this tree separately
-			for (Integer ID : tree)
-			{
-				final int parentID = tracks.getParentOfTrack(ID);
-				for (Spot s : tracks.spotsLists.get(ID))
-				{
-					//convert spot's coordinate into underlying image coordinate system
-					s.localize(coords);
-					transform.apply(coords,coords);
-
-					f.write(s.getTimepoint()+delim
-					       +coords[0]+delim
-					       +coords[1]+delim
-					       +coords[2]+delim
-					       +ID+delim
-					       +parentID+delim
-					       +s.getLabel());
-					if (doRadiusColumn) f.write(delim+Math.sqrt(s.getBoundingSphereRadiusSquared()));
-					f.newLine();
-				}
-				f.newLine();
-				f.newLine();
-			}
-		}
+			writeTree(tree, tracks, f, transform, coords, delim);
 
 		f.close();
 
@@ -326,6 +311,60 @@ public class PlainTextFileExport implements Command
 	}
 
 
+	/** marks the track 'ID' as closed, and if its whole tree is closed,
+	    writes the tree right away and forgets it */
+	private
+	void closeTrack(final int ID, final RichTrackRecords tracks,
+	                final BufferedWriter f, final AffineTransform3D transform,
+	                final double[] coords, final String delim)
+	throws IOException
+	{
+		final Set<Integer> tree = tracks.closeTrack(ID);
+		if (tree == null) return;
+
+		writeTree(tree, tracks, f, transform, coords, delim);
+		tracks.forgetTree(tree);
+	}
+
+	/** writes the tree of tracks: the list of its tracks, and then the spots of every track */
+	private
+	void writeTree(final Set<Integer> tree, final RichTrackRecords tracks,
+	               final BufferedWriter f, final AffineTransform3D transform,
+	               final double[] coords, final String delim)
+	throws IOException
+	{
+		//first, report the complete tree
+		f.write("# one tree of tracks:"); f.newLine();
+		f.write("#"+delim);
+		for (Integer ID : tree) f.write(ID+delim);
+		f.newLine();
+
+		//second, report every track of this tree separately
+		for (Integer ID : tree)
+		{
+			final int parentID = tracks.getParentOfTrack(ID);
+			for (Spot s : tracks.spotsLists.get(ID))
+			{
+				//convert spot's coordinate into underlying image coordinate system
+				s.localize(coords);
+				transform.apply(coords,coords);
+
+				f.write(s.getTimepoint()+delim
+				       +coords[0]+delim
+				       +coords[1]+delim
+				       +coords[2]+delim
+				       +ID+delim
+				       +parentID+delim
+				       +s.getLabel());
+				if (doRadiusColumn) f.write(delim+Math.sqrt(s.getBoundingSphereRadiusSquared()));
+				f.newLine();
+			}
+			f.newLine();
+			f.newLine();
+		}
+	}
+
+
 	class RichTrackRecords extends net.celltrackingchallenge.measures.TrackRecords
 	{
 		//reference on the pool of vertices that we need for the RefLists below
@@ -395,6 +434,39 @@ public class PlainTextFileExport implements Command
 			return ID;
 		}
 
+		//tracks that are closed but whose trees are not yet complete
+		private final Set<Integer> closedTracks = new HashSet<>();
+
+		/** marks the track 'ID' as closed, returns its tree if all tracks
+		    of the tree are closed, or null if the tree is still growing */
+		Set<Integer> closeTrack(final int ID)
+		{
+			closedTracks.add(ID);
+			for (Set<Integer> tree : forestOfTrackTrees)
+			if (tree.contains(ID))
+				return closedTracks.containsAll(tree) ? tree : null;
+			return null;
+		}
+
+		/** forgets the (closed) tree and all its tracks */
+		void forgetTree(final Set<Integer> tree)
+		{
+			for (int i = 0; i < forestOfTrackTrees.size(); ++i)
+			if (forestOfTrackTrees.get(i) == tree)
+			{
+				forestOfTrackTrees.remove(i);
+				break;
+			}
+
+			for (Integer ID : tree)
+			{
+				spotsLists.get(ID).clear();
+				spotsLists.remove(ID);
+				super.removeTrack(ID);
+				closedTracks.remove(ID);
+			}
+		}
+
 		public void updateTrack(final Spot spotRef, final int ID, final int curTime)
 		{
 			//the old behaviour
@@ -74,7 +74,9 @@ import java.util.concurrent.Future;
 import java.util.concurrent.ExecutionException;
 
 import org.mastodon.ctc.util.ButtonHandler;
+import org.mastodon.ctc.util.ImgCache;
 import org.mastodon.ctc.util.ImgProviders;
+import org.mastodon.ctc.util.ResourcePlanner;
 import org.mastodon.ctc.auxPlugins.FileTemplateProvider;
 
 @Plugin( type = Command.class, name = "Instance segmentation importer @ Mastodon" )
@@ -216,6 +218,11 @@ extends DynamicCommand
 		//debug report
 		logService.info("Time points span is   : "+timeFrom+"-"+timeTill);
 
+		//the previous image is held too when it is searched for the overlapping labels,
+		//and the next images are being read ahead
+		new ResourcePlanner(logService).reportImport(imgSource, timeFrom,
+			(shouldLinkOverlappingLabels ? 2 : 1) + ImgProviders.READ_AHEAD_TIMEPOINTS);
+
 		//PROGRESS BAR stuff
 		final ButtonHandler pbtnHandler = new ButtonHandler();
 
@@ -271,6 +278,9 @@ extends DynamicCommand
 
 				//NB: don't hold (and block) the extra (prev) image if it is not necessary
 				if (shouldLinkOverlappingLabels) prevImg = currImg;
+
+				//let the next images be read while this one is processed
+				imgSource.prefetch(time, Math.min(1+ImgProviders.READ_AHEAD_TIMEPOINTS, timeTill-time+1));
 				currImg = imgSource.getImage(time);
 
 				imgSource.getSourceTransform(time, coordTransImg2World);
@@ -291,6 +301,7 @@ extends DynamicCommand
 		}
 
 		new AbstractModelImporter< Model >( model ){{ finishImport(); }};
+		logService.info("Image cache: "+ImgCache.shared().report());
 		logService.info("Done.");
 	}
 
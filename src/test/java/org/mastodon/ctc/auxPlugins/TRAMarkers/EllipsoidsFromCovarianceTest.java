@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.auxPlugins.TRAMarkers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mastodon.ctc.auxPlugins.TRAMarkersProvider;
+
+public class EllipsoidsFromCovarianceTest
+{
+	/** a general (rotated) ellipsoid, positive definite */
+	private static final double[][] COV_3D = { {6,2,1}, {2,5,1.5}, {1,1.5,3} };
+
+	/** flat in z, the xy-ellipse has the inverse 1/7 * {{2,-1},{-1,4}} */
+	private static final double[][] COV_FLAT = { {4,1,0}, {1,2,0}, {0,0,0} };
+
+	private static final double[][] COV_ZERO = new double[3][3];
+
+	private static final double EPS = 1e-9;
+
+	@Test
+	public void rowSpansAgreeWithIsInside()
+	{
+		final TRAMarkersProvider.intersectionDecidable marker = new EllipsoidsFromCovariance().forSpot(COV_3D);
+		assertTrue(marker.providesRowSpans());
+		assertRowSpansAgreeWithIsInside(marker, 1.0, 4.0, 3.0, 2.0);
+	}
+
+	@Test
+	public void boundingBoxIsTight()
+	{
+		final TRAMarkersProvider.intersectionDecidable marker = new EllipsoidsFromCovariance().forSpot(COV_3D);
+		final double[] halfBBox = new double[3];
+		marker.setHalfBBoxInterval(halfBBox, 1.0);
+		assertArrayEquals(new double[] {Math.sqrt(6),Math.sqrt(5),Math.sqrt(3)}, halfBBox, EPS);
+
+		//no row sticks out of the box, and the widest one touches it
+		final double[] xSpan = new double[2];
+		double widest = 0;
+		for (double y = -halfBBox[1]; y <= halfBBox[1]; y += 0.01)
+		for (double z = -halfBBox[2]; z <= halfBBox[2]; z += 0.01)
+		if (marker.getRowSpan(new double[] {0,y,z}, 1.0, xSpan))
+		{
+			assertTrue(xSpan[0] >= -halfBBox[0]-EPS && xSpan[1] <= halfBBox[0]+EPS);
+			widest = Math.max(widest, xSpan[1]);
+		}
+		assertEquals(halfBBox[0], widest, 0.01);
+	}
+
+	@Test
+	public void flatCovarianceFallsBackToEllipse()
+	{
+		final TRAMarkersProvider.intersectionDecidable marker = new EllipsoidsFromCovariance().forSpot(COV_FLAT);
+
+		//x^T * inv(Cov) * x: (1.8,0) gives 0.926 and (2,0) gives 1.143, (0,1.3) gives 0.966
+		assertTrue(  marker.isInside(new double[] {1.8,0,0}, 1.0) );
+		assertFalse( marker.isInside(new double[] {2.0,0,0}, 1.0) );
+		assertTrue(  marker.isInside(new double[] {0,1.3,0}, 1.0) );
+		assertFalse( marker.isInside(new double[] {0,1.5,0}, 1.0) );
+
+		final double[] halfBBox = new double[3];
+		marker.setHalfBBoxInterval(halfBBox, 1.0);
+		assertArrayEquals(new double[] {2,Math.sqrt(2),0}, halfBBox, EPS);
+
+		assertRowSpansAgreeWithIsInside(marker, 1.0, 3.0, 2.0, 0.0);
+	}
+
+	@Test
+	public void degeneratedCovarianceFallsBackToSphere()
+	{
+		for (final TRAMarkersProvider.intersectionDecidable marker : new TRAMarkersProvider.intersectionDecidable[] {
+				new EllipsoidsFromCovariance().forSpot(COV_ZERO), new EllipsoidsFromCovariance() })
+		{
+			assertTrue(  marker.isInside(new double[] {2.9,0,0}, 3.0) );
+			assertFalse( marker.isInside(new double[] {0,3.1,0}, 3.0) );
+
+			final double[] halfBBox = new double[3];
+			marker.setHalfBBoxInterval(halfBBox, 3.0);
+			assertArrayEquals(new double[] {3,3,3}, halfBBox, EPS);
+
+			final double[] xSpan = new double[2];
+			assertTrue( marker.getRowSpan(new double[] {0,0,0}, 3.0, xSpan) );
+			assertArrayEquals(new double[] {-3,3}, xSpan, EPS);
+			assertFalse( marker.getRowSpan(new double[] {0,2,2.5}, 3.0, xSpan) );
+
+			assertRowSpansAgreeWithIsInside(marker, 3.0, 4.0, 4.0, 4.0);
+		}
+	}
+
+
+	/** tests the rows of the y- and z-distances up to 'maxY' and 'maxZ':
+	    a voxel of the row is inside the marker iff it is within the row's span,
+	    except for the voxels very close to the span's ends */
+	private static
+	void assertRowSpansAgreeWithIsInside(final TRAMarkersProvider.intersectionDecidable marker, final double radius,
+	                                     final double maxX, final double maxY, final double maxZ)
+	{
+		final double[] distVec = new double[3];
+		final double[] xSpan = new double[2];
+		for (double y = -maxY; y <= maxY; y += 0.25)
+		for (double z = -maxZ; z <= maxZ; z += 0.25)
+		{
+			distVec[1] = y;
+			distVec[2] = z;
+			final boolean hasSpan = marker.getRowSpan(distVec, radius, xSpan);
+			for (double x = -maxX; x <= maxX; x += 0.01)
+			{
+				distVec[0] = x;
+				final boolean inside = marker.isInside(distVec, radius);
+				if (!hasSpan)
+					assertFalse("Inside but no span at "+x+","+y+","+z, inside);
+				else if (x < xSpan[0]-EPS || x > xSpan[1]+EPS)
+					assertFalse("Inside but outside the span at "+x+","+y+","+z, inside);
+				else if (x > xSpan[0]+EPS && x < xSpan[1]-EPS)
+					assertTrue("Within the span but not inside at "+x+","+y+","+z, inside);
+			}
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkedImgWriterTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** 100x70x10 image of zeros except for two voxels, one in the first
+	    block and one in the last (partial) block of the 32x32x10 blocks */
+	static
+	ArrayImg<UnsignedShortType,ShortArray> twoMarkers()
+	{
+		final ArrayImg<UnsignedShortType,ShortArray> img = ArrayImgs.unsignedShorts(100,70,10);
+		final RandomAccess<UnsignedShortType> ra = img.randomAccess();
+		ra.setPosition(new long[] {5,5,1});
+		ra.get().set(7);
+		ra.setPosition(new long[] {99,69,9});
+		ra.get().set(65000);
+		return img;
+	}
+
+	@Test
+	public void writesOnlyNonEmptyBlocks()
+	throws Exception
+	{
+		final String container = folder.getRoot()+File.separator+"images.n5";
+		final ChunkedImgWriter writer = new ChunkedImgWriter(container, false, 3, 2);
+		writer.blockSize = 32;
+		final String datasetPath = writer.getDatasetPath("man_track000.tif");
+		assertEquals(container+File.separator+"man_track000", datasetPath);
+
+		final ArrayImg<UnsignedShortType,ShortArray> img = twoMarkers();
+		writer.addImgSaveRequestOrBlock(img, datasetPath, null).get();
+		writer.closeAllWorkers_FinishFirstAllUnsavedImages();
+
+		final N5Reader n5 = new N5FSReader(container);
+		final DatasetAttributes attributes = n5.getDatasetAttributes("man_track000");
+		assertArrayEquals(new long[] {100,70,10}, attributes.getDimensions());
+		assertArrayEquals(new int[] {32,32,10}, attributes.getBlockSize());
+
+		//the grid is 4x3x1 blocks, only the first and the last ones are written
+		for (long y = 0; y < 3; ++y)
+			for (long x = 0; x < 4; ++x)
+			{
+				final boolean isWritten = (x == 0 && y == 0) || (x == 3 && y == 2);
+				if (isWritten) assertNotNull(n5.readBlock("man_track000", attributes, x,y,0));
+				else assertNull("block "+x+","+y, n5.readBlock("man_track000", attributes, x,y,0));
+			}
+
+		//the image reads back the same, including the partial blocks
+		final RandomAccessibleInterval<UnsignedShortType> readImg = N5Utils.open(n5, "man_track000");
+		final RandomAccess<UnsignedShortType> ra = readImg.randomAccess();
+		final Cursor<UnsignedShortType> c = img.localizingCursor();
+		while (c.hasNext())
+		{
+			c.fwd();
+			ra.setPosition(c);
+			assertEquals(c.get().get(), ra.get().get());
+		}
+		n5.close();
+	}
+
+	@Test
+	public void scalesResolutionOfDownsampledImage()
+	throws Exception
+	{
+		final String container = folder.getRoot()+File.separator+"images.n5";
+		final ChunkedImgWriter writer = new ChunkedImgWriter(container, false, 1, 1);
+		writer.resolution = new double[] {0.5,0.5,2.0};
+
+		writer.addImgSaveRequestOrBlock(twoMarkers(), writer.getDatasetPath("t000.tif"), null).get();
+		writer.addImgSaveRequestOrBlock(twoMarkers(), writer.getDatasetPath("t000_s1.tif"), new long[] {2,2,1}, null).get();
+		writer.closeAllWorkers_FinishFirstAllUnsavedImages();
+
+		final N5Reader n5 = new N5FSReader(container);
+		assertArrayEquals(new double[] {0.5,0.5,2.0}, n5.getAttribute("t000", "resolution", double[].class), 0.0);
+		assertArrayEquals(new double[] {1.0,1.0,2.0}, n5.getAttribute("t000_s1", "resolution", double[].class), 0.0);
+		assertArrayEquals(new long[] {2,2,1}, n5.getAttribute("t000_s1", "downsamplingFactors", long[].class));
+		n5.close();
+	}
+}
@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.RealType;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DirectTiffWriterTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** fills the 'img' with a pattern that differs in every plane and row */
+	static <T extends RealType<T>>
+	Img<T> fillPattern(final Img<T> img, final int modulo)
+	{
+		final Cursor<T> c = img.localizingCursor();
+		while (c.hasNext())
+		{
+			c.fwd();
+			long v = 0;
+			for (int d = c.numDimensions()-1; d >= 0; --d) v = v*7 + c.getLongPosition(d);
+			c.get().setReal(v % modulo);
+		}
+		return img;
+	}
+
+	/** writes the 'img' with the DirectTiffWriter and with ImageJ, reads both
+	    files back with ImageJ and checks they hold the same image */
+	<T extends RealType<T>>
+	void assertRoundTrip(final RandomAccessibleInterval<T> img, final int compressionThreads)
+	throws IOException
+	{
+		final String directPath = folder.getRoot()+"/direct.tif";
+		final String ijPath = folder.getRoot()+"/ij.tif";
+
+		final DirectTiffWriter writer = new DirectTiffWriter(compressionThreads);
+		try
+		{
+			assertTrue(writer.isSupported(img));
+			writer.write(img, directPath);
+		}
+		finally { writer.close(); }
+		ParallelImgSaver.writeFile(ImageJFunctions.wrap(img, "ij"), ijPath);
+
+		final ImagePlus direct = IJ.openImage(directPath);
+		final ImagePlus ij = IJ.openImage(ijPath);
+		assertNotNull(direct);
+		assertNotNull(ij);
+
+		//the hyperstack description
+		assertEquals(ij.getBitDepth(), direct.getBitDepth());
+		assertEquals(ij.getWidth(), direct.getWidth());
+		assertEquals(ij.getHeight(), direct.getHeight());
+		assertEquals(ij.getNChannels(), direct.getNChannels());
+		assertEquals(ij.getNSlices(), direct.getNSlices());
+		assertEquals(ij.getNFrames(), direct.getNFrames());
+		assertEquals(ij.isHyperStack(), direct.isHyperStack());
+		final long planesCount = img.numDimensions() > 2 ? img.dimension(2) : 1;
+		assertEquals(planesCount, direct.getNSlices());
+		assertEquals(1, direct.getNFrames());
+		assertFalse(direct.isHyperStack());
+
+		//the calibration
+		final Calibration dc = direct.getCalibration();
+		final Calibration ic = ij.getCalibration();
+		assertEquals(ic.pixelWidth, dc.pixelWidth, 0.0);
+		assertEquals(ic.pixelHeight, dc.pixelHeight, 0.0);
+		assertEquals(ic.pixelDepth, dc.pixelDepth, 0.0);
+		assertEquals(ic.getUnit(), dc.getUnit());
+		assertEquals(ic.scaled(), dc.scaled());
+
+		//the pixels
+		for (int z = 1; z <= direct.getStackSize(); ++z)
+			for (int y = 0; y < direct.getHeight(); ++y)
+				for (int x = 0; x < direct.getWidth(); ++x)
+					assertEquals("pixel at "+x+","+y+","+z,
+						ij.getStack().getProcessor(z).getf(x,y),
+						direct.getStack().getProcessor(z).getf(x,y), 0.0f);
+	}
+
+	@Test
+	public void uncompressedShortsReadBackAsWrittenByImageJ()
+	throws IOException
+	{
+		assertRoundTrip( fillPattern(PlanarImgs.unsignedShorts(37,21,5), 65536), 0 );
+	}
+
+	@Test
+	public void compressedShortsReadBackAsWrittenByImageJ()
+	throws IOException
+	{
+		assertRoundTrip( fillPattern(PlanarImgs.unsignedShorts(37,21,5), 65536), 2 );
+	}
+
+	@Test
+	public void uncompressedBytesOfArrayImgReadBackAsWrittenByImageJ()
+	throws IOException
+	{
+		assertRoundTrip( fillPattern(ArrayImgs.unsignedBytes(40,30,3), 256), 0 );
+	}
+
+	@Test
+	public void singlePlaneOfFloatsReadsBackAsWrittenByImageJ()
+	throws IOException
+	{
+		assertRoundTrip( fillPattern(ArrayImgs.floats(33,17), 1000), 0 );
+		assertRoundTrip( fillPattern(ArrayImgs.floats(33,17), 1000), 1 );
+	}
+}
@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExportCheckpointTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** exports the time points 10-14, each with one image of the content hash 100+time,
+	    but only the images till the time point 12 get written */
+	private
+	File exportInterruptedAfter12()
+	throws IOException
+	{
+		final File file = new File(folder.getRoot(), "man_track.txt.checkpoint");
+		final ExportCheckpoint checkpoint = new ExportCheckpoint(file, 42);
+		checkpoint.imagesQueued(9, 0);
+		for (int time = 10; time <= 14; ++time)
+			checkpoint.imagesQueued(time, 1, 100+time);
+		for (int time = 10; time <= 12; ++time)
+			checkpoint.imageWritten(time);
+
+		assertEquals(12, checkpoint.getWrittenTill());
+		checkpoint.save(checkpoint.getWrittenTill());
+		return file;
+	}
+
+	@Test
+	public void resumesWithUnchangedContent()
+	throws IOException
+	{
+		final ExportCheckpoint checkpoint = new ExportCheckpoint(exportInterruptedAfter12(), 42);
+		assertEquals(12, checkpoint.getPreviouslyWrittenTill());
+		assertTrue(checkpoint.resume(10, time -> 100+time));
+		assertEquals(12, checkpoint.getWrittenTill());
+	}
+
+	@Test
+	public void refusesChangedContent()
+	throws IOException
+	{
+		final ExportCheckpoint checkpoint = new ExportCheckpoint(exportInterruptedAfter12(), 42);
+		assertFalse(checkpoint.resume(10, time -> time == 11 ? 0 : 100+time));
+	}
+
+	@Test
+	public void refusesChangedSettings()
+	throws IOException
+	{
+		final ExportCheckpoint checkpoint = new ExportCheckpoint(exportInterruptedAfter12(), 43);
+		assertEquals(ExportCheckpoint.NONE, checkpoint.getPreviouslyWrittenTill());
+		assertFalse(checkpoint.resume(10, time -> 100+time));
+	}
+
+	@Test
+	public void resumedCheckpointCoversAllWrittenContent()
+	throws IOException
+	{
+		final File file = exportInterruptedAfter12();
+		final ExportCheckpoint resumed = new ExportCheckpoint(file, 42);
+		assertTrue(resumed.resume(10, time -> 100+time));
+		resumed.imagesQueued(13, 1, 113);
+		resumed.imageWritten(13);
+		resumed.save(resumed.getWrittenTill());
+
+		//NB: the content of the time points from both exports is verified
+		assertTrue(new ExportCheckpoint(file, 42).resume(10, time -> 100+time));
+		assertFalse(new ExportCheckpoint(file, 42).resume(10, time -> time == 13 ? 0 : 100+time));
+	}
+}
@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ImgBufferPoolTest
+{
+	@Test
+	public void reusesReleasedBuffer()
+	throws InterruptedException
+	{
+		final ImgBufferPool<int[]> pool = new ImgBufferPool<>(3, () -> new int[100]);
+
+		final int[] first = pool.acquire();
+		pool.release(first);
+		assertSame(first, pool.acquire());
+		assertEquals(1, pool.createdBuffersCount());
+
+		//NB: a new buffer is created only when none is free
+		final int[] second = pool.acquire();
+		assertNotSame(first, second);
+		assertEquals(2, pool.createdBuffersCount());
+	}
+
+	@Test
+	public void blocksWhenAllBuffersAreTaken()
+	throws InterruptedException
+	{
+		final ImgBufferPool<int[]> pool = new ImgBufferPool<>(2, () -> new int[100]);
+		final int[] first = pool.acquire();
+		pool.acquire();
+
+		final AtomicReference<int[]> third = new AtomicReference<>();
+		final Thread waiter = new Thread( () -> {
+			try { third.set(pool.acquire()); }
+			catch (InterruptedException e) { /* leaves 'third' empty */ }
+		} );
+		waiter.start();
+
+		//the waiter must not get anything until some buffer is released
+		waiter.join(200);
+		assertTrue(waiter.isAlive());
+		assertNull(third.get());
+
+		pool.release(first);
+		waiter.join(5000);
+		assertSame(first, third.get());
+		assertEquals(2, pool.createdBuffersCount());
+	}
+
+	@Test
+	public void hasAtLeastOneBuffer()
+	{
+		assertEquals(1, new ImgBufferPool<>(0, () -> new int[1]).getCapacity());
+	}
+}
@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LabelOverlapsTest
+{
+	/** draws the marker 1 over the voxels 0-5 and then the marker 2 over
+	    the voxels 3-9 of one row, and returns the resulting labels */
+	private static
+	int[] drawTwoMarkers(final int policy)
+	{
+		final LabelOverlaps overlaps = new LabelOverlaps(policy, new double[] {1,1,1});
+		overlaps.registerMarker(1, "A", new double[] {2,0,0});
+		overlaps.registerMarker(2, "B", new double[] {7,0,0});
+
+		final int[] row = new int[10];
+		draw(row, 1, 0,5, overlaps);
+		draw(row, 2, 3,9, overlaps);
+		overlaps.forEachContestedVoxel(-1, (x,y,z) -> row[(int)x] = 0);
+
+		assertTrue(overlaps.hasConflicts());
+		assertTrue(overlaps.printSummary("").startsWith("3 voxels in 1 overlaps"));
+		return row;
+	}
+
+	private static
+	void draw(final int[] row, final int label, final int from, final int till, final LabelOverlaps overlaps)
+	{
+		for (int x = from; x <= till; ++x)
+			if (row[x] == 0 || overlaps.resolve(label, row[x], x,0,0)) row[x] = label;
+	}
+
+	@Test
+	public void laterWins()
+	{
+		assertArrayEquals(new int[] {1,1,1,2,2,2,2,2,2,2}, drawTwoMarkers(LabelOverlaps.POLICY_LATER_WINS));
+	}
+
+	@Test
+	public void keepFirst()
+	{
+		assertArrayEquals(new int[] {1,1,1,1,1,1,2,2,2,2}, drawTwoMarkers(LabelOverlaps.POLICY_KEEP_FIRST));
+	}
+
+	@Test
+	public void nearestCentreWins()
+	{
+		assertArrayEquals(new int[] {1,1,1,1,1,2,2,2,2,2}, drawTwoMarkers(LabelOverlaps.POLICY_NEAREST_CENTRE_WINS));
+	}
+
+	@Test
+	public void nearestCentreMeasuresInPhysicalUnits()
+	{
+		//the voxel (1,1) is nearer to (0,0) in pixels, but nearer to (3,1) with 4x longer y-pixels
+		final LabelOverlaps isotropic = new LabelOverlaps(LabelOverlaps.POLICY_NEAREST_CENTRE_WINS, new double[] {1,1});
+		final LabelOverlaps anisotropic = new LabelOverlaps(LabelOverlaps.POLICY_NEAREST_CENTRE_WINS, new double[] {1,4});
+		for (final LabelOverlaps o : new LabelOverlaps[] {isotropic, anisotropic})
+		{
+			o.registerMarker(1, "A", new double[] {0,0});
+			o.registerMarker(2, "B", new double[] {3,1});
+		}
+		assertFalse( isotropic.resolve(2, 1, 1,1,0) );
+		assertTrue( anisotropic.resolve(2, 1, 1,1,0) );
+	}
+
+	@Test
+	public void leaveUnlabelled()
+	{
+		assertArrayEquals(new int[] {1,1,1,0,0,0,2,2,2,2}, drawTwoMarkers(LabelOverlaps.POLICY_LEAVE_UNLABELLED));
+	}
+
+	@Test
+	public void contestedVoxelsOfOnePlane()
+	{
+		final LabelOverlaps overlaps = new LabelOverlaps(LabelOverlaps.POLICY_LEAVE_UNLABELLED, new double[] {1,1,1});
+		overlaps.resolve(2, 1, 4,5,0);
+		overlaps.resolve(2, 1, 6,7,1);
+
+		final List<long[]> zeroed = new ArrayList<>();
+		overlaps.forEachContestedVoxel(1, (x,y,z) -> zeroed.add(new long[] {x,y,z}));
+		assertEquals(1, zeroed.size());
+		assertArrayEquals(new long[] {6,7,1}, zeroed.get(0));
+	}
+
+	@Test
+	public void decodesPolicyNames()
+	{
+		for (int p = 0; p < LabelOverlaps.availableChoices.length; ++p)
+			assertEquals(p, LabelOverlaps.decodePolicy(LabelOverlaps.availableChoices[p]));
+		assertEquals(LabelOverlaps.POLICY_LATER_WINS, LabelOverlaps.decodePolicy("unknown"));
+		assertEquals(LabelOverlaps.POLICY_LATER_WINS, LabelOverlaps.decodePolicy(null));
+	}
+}
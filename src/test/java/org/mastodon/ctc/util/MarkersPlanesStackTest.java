@@ -0,0 +1,152 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ij.ImagePlus;
+
+import net.imglib2.RealPoint;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import org.junit.Test;
+import org.scijava.log.StderrLogService;
+
+import org.mastodon.ctc.auxPlugins.TRAMarkersProvider;
+
+public class MarkersPlanesStackTest
+{
+	private static final double[][] UNIT_COV = { {1,0,0}, {0,1,0}, {0,0,1} };
+	private static final TRAMarkersProvider.intersectionDecidable SPHERES = TRAMarkersProvider.TRAMarkerFactory(null,null,null);
+
+	/** counts the reported overlaps */
+	static class CountingLogService extends StderrLogService
+	{
+		int warnings = 0;
+
+		@Override
+		public void warn(final Object msg)
+		{ ++warnings; }
+
+		@Override
+		public void info(final Object msg)
+		{ }
+	}
+
+	/** two overlapping spheres, both intersecting the plane z=0 */
+	private static
+	List<SpotRecord> overlappingSpots()
+	{
+		return Arrays.asList(
+			new SpotRecord("A", 1, new RealPoint(8,10,1), 4, UNIT_COV, SPHERES),
+			new SpotRecord("B", 2, new RealPoint(12,10,1), 4, UNIT_COV, SPHERES) );
+	}
+
+	/** asks for all planes of the 'stack', in the order of the saving */
+	private static
+	short[][] savePlanes(final MarkersPlanesStack stack)
+	{
+		final short[][] planes = new short[stack.getSize()][];
+		for (int n = 1; n <= stack.getSize(); ++n)
+			planes[n-1] = (short[])stack.getProcessor(n).getPixels();
+		return planes;
+	}
+
+	@Test
+	public void countsOverlapsOnceAfterImagePlusIsCreated()
+	{
+		final long[] size = {20,20,5};
+		final CountingLogService log = new CountingLogService();
+		final MarkersRenderer renderer = new MarkersRenderer(new double[] {1,1,1}, false, LabelOverlaps.POLICY_LATER_WINS, log);
+
+		//reference: the planes asked for only once
+		final MarkersPlanesStack once = new MarkersPlanesStack(renderer, 16, 0, size, new AffineTransform3D(), overlappingSpots());
+		final short[][] expected = savePlanes(once);
+		final long expectedVoxels = once.overlaps.conflictingVoxels;
+		assertTrue(expectedVoxels > 0);
+		assertEquals(1, log.warnings);
+
+		//NB: the ImagePlus renders the first plane already when created
+		final MarkersPlanesStack stack = new MarkersPlanesStack(renderer, 16, 0, size, new AffineTransform3D(), overlappingSpots());
+		new ImagePlus("markers", stack);
+		final short[][] saved = savePlanes(stack);
+
+		assertEquals(expectedVoxels, stack.overlaps.conflictingVoxels);
+		assertEquals(2, log.warnings);
+		for (int z = 0; z < expected.length; ++z)
+			assertArrayEquals(expected[z], saved[z]);
+	}
+
+	@Test
+	public void reportsOverlapsOnceWithSinglePlane()
+	{
+		final long[] size = {20,20,1};
+		final CountingLogService log = new CountingLogService();
+		final MarkersRenderer renderer = new MarkersRenderer(new double[] {1,1,1}, false, LabelOverlaps.POLICY_LATER_WINS, log);
+
+		//NB: the only plane is also the last one, and it is asked for twice
+		final MarkersPlanesStack stack = new MarkersPlanesStack(renderer, 16, 0, size, new AffineTransform3D(), overlappingSpots());
+		new ImagePlus("markers", stack);
+		final long voxelsAfterCreation = stack.overlaps.conflictingVoxels;
+		savePlanes(stack);
+
+		assertTrue(voxelsAfterCreation > 0);
+		assertEquals(voxelsAfterCreation, stack.overlaps.conflictingVoxels);
+		assertEquals(1, log.warnings);
+	}
+
+	@Test
+	public void agreesWithWholeImageRendering()
+	{
+		final long[] size = {20,20,5};
+		final MarkersRenderer renderer = new MarkersRenderer(new double[] {1,1,1}, false,
+			LabelOverlaps.POLICY_NEAREST_CENTRE_WINS, new CountingLogService());
+
+		final ArrayImg<UnsignedShortType,ShortArray> img = ArrayImgs.unsignedShorts(size);
+		renderer.render(0, new MarkersRenderer.MarkersBuffer<>(img), new AffineTransform3D(), overlappingSpots());
+
+		final MarkersPlanesStack stack = new MarkersPlanesStack(renderer, 16, 0, size, new AffineTransform3D(), overlappingSpots());
+		new ImagePlus("markers", stack);
+		final short[][] planes = savePlanes(stack);
+
+		final short[] rendered = img.update(null).getCurrentStorageArray();
+		final int planeSize = (int)(size[0]*size[1]);
+		for (int z = 0; z < size[2]; ++z)
+			assertArrayEquals(Arrays.copyOfRange(rendered, z*planeSize, (z+1)*planeSize), planes[z]);
+	}
+}
@@ -0,0 +1,207 @@
+/*-
+ * #%L
+ * mastodon-ctc
+ * %%
+ * Copyright (C) 2019 - 2024 Vladimir Ulman
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.ctc.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.scijava.log.LogService;
+import org.scijava.log.StderrLogService;
+
+public class ShardsMergerTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final LogService log = new StderrLogService();
+
+	/** shard A: time points 0-4, track 1 continues one-to-one into
+	    the shard B, track 2 divides over the boundary, track 3 ends early */
+	private ShardState shardA()
+	throws IOException
+	{
+		final ShardState s = shard(0, 4, 0,
+			"1 0 4 0",
+			"2 0 4 0",
+			"3 0 2 0");
+		s.lastSpots.add( new ShardState.LastSpot(101, 1, 1) );
+		s.lastSpots.add( new ShardState.LastSpot(102, 2, 2) );
+		return s;
+	}
+
+	/** shard B: time points 5-9 renumbered from 0, track 1 continues A's
+	    track 1, tracks 2 and 3 are daughters of A's track 2, track 4 is a
+	    daughter of track 1 within this shard, track 1 continues into the shard C */
+	private ShardState shardB()
+	throws IOException
+	{
+		final ShardState s = shard(5, 9, 5,
+			"1 0 4 0",
+			"2 0 3 0",
+			"3 0 4 0",
+			"4 2 4 1");
+		s.firstSpots.add( new ShardState.FirstSpot(201, 1, 1, 101) );
+		s.firstSpots.add( new ShardState.FirstSpot(202, 2, 1, 102) );
+		s.firstSpots.add( new ShardState.FirstSpot(203, 3, 1, 102) );
+		s.lastSpots.add( new ShardState.LastSpot(211, 1, 1) );
+		return s;
+	}
+
+	/** shard C: time points 10-14, track 1 continues B's track 1,
+	    track 2 starts anew (no link to the previous time point) */
+	private ShardState shardC()
+	throws IOException
+	{
+		final ShardState s = shard(10, 14, 0,
+			"1 10 14 0",
+			"2 10 14 0");
+		s.firstSpots.add( new ShardState.FirstSpot(301, 1, 1, 211) );
+		s.firstSpots.add( new ShardState.FirstSpot(302, 2, 0, -1) );
+		return s;
+	}
+
+	@Test
+	public void joinsAndParentsTracksAcrossOneBoundary()
+	throws IOException
+	{
+		final Map<Integer,int[]> merged = merge(shardB(), shardA());
+
+		//B's IDs are offset by 3, B1 (4) is joined into A1, B2 and B3 (5,6) are parented by A2,
+		//and B4 (7) gets the merged ID of its parent B1
+		assertEquals(6, merged.size());
+		assertArrayEquals(new int[] {0,9,0}, merged.get(1));
+		assertArrayEquals(new int[] {0,4,0}, merged.get(2));
+		assertArrayEquals(new int[] {0,2,0}, merged.get(3));
+		assertArrayEquals(new int[] {5,8,2}, merged.get(5));
+		assertArrayEquals(new int[] {5,9,2}, merged.get(6));
+		assertArrayEquals(new int[] {7,9,1}, merged.get(7));
+	}
+
+	@Test
+	public void followsChainsOfJoinedTracks()
+	throws IOException
+	{
+		final Map<Integer,int[]> merged = merge(shardA(), shardB(), shardC());
+
+		//C's IDs are offset by 3+4, C1 (8) is joined into B1 which is joined into A1,
+		//C2 (9) has no predecessor and stays on its own
+		assertEquals(7, merged.size());
+		assertArrayEquals(new int[] {0,14,0}, merged.get(1));
+		assertArrayEquals(new int[] {7,9,1}, merged.get(7));
+		assertArrayEquals(new int[] {10,14,0}, merged.get(9));
+	}
+
+	@Test
+	public void startsNewTrackAfterMergeOverBoundary()
+	throws IOException
+	{
+		//shard A': tracks 1 and 2 merge into one spot, which is the first spot of the shard B'
+		final ShardState a = shard(0, 4, 0,
+			"1 0 4 0",
+			"2 0 4 0");
+		a.lastSpots.add( new ShardState.LastSpot(101, 1, 1) );
+		a.lastSpots.add( new ShardState.LastSpot(102, 2, 1) );
+
+		final ShardState b = shard(5, 9, 0,
+			"1 5 9 0");
+		b.firstSpots.add( new ShardState.FirstSpot(201, 1, 2, 102) );
+
+		//the same as within one export: the merging tracks end, and
+		//the B'1 (3) starts anew with no parent, it is neither joined
+		final Map<Integer,int[]> merged = merge(a, b);
+		assertEquals(3, merged.size());
+		assertArrayEquals(new int[] {0,4,0}, merged.get(1));
+		assertArrayEquals(new int[] {0,4,0}, merged.get(2));
+		assertArrayEquals(new int[] {5,9,0}, merged.get(3));
+	}
+
+	@Test(expected = IOException.class)
+	public void refusesNotAdjacentShards()
+	throws IOException
+	{
+		new ShardsMerger(Arrays.asList(shardA(), shardC()), log);
+	}
+
+
+	/** merges the shards, and reads back the merged lineage as
+	    the map: track ID to its {begin, end, parent} */
+	private Map<Integer,int[]> merge(final ShardState... shards)
+	throws IOException
+	{
+		final File mergedFile = folder.newFile();
+		new ShardsMerger(Arrays.asList(shards), log).exportToFile(mergedFile.getPath());
+
+		final Map<Integer,int[]> tracks = new TreeMap<>();
+		try (final BufferedReader f = new BufferedReader( new FileReader(mergedFile) ))
+		{
+			String line;
+			while ((line = f.readLine()) != null)
+			{
+				final String[] v = line.trim().split("\\s+");
+				tracks.put(Integer.parseInt(v[0]), new int[] {
+					Integer.parseInt(v[1]), Integer.parseInt(v[2]), Integer.parseInt(v[3]) });
+			}
+		}
+		return tracks;
+	}
+
+	private ShardState shard(final int timeFrom, final int timeTill, final int timeShift, final String... lineage)
+	throws IOException
+	{
+		final ShardState s = new ShardState();
+		s.timeFrom = timeFrom;
+		s.timeTill = timeTill;
+		s.timeShift = timeShift;
+
+		final File lineageFile = folder.newFile();
+		try (final BufferedWriter f = new BufferedWriter( new FileWriter(lineageFile) ))
+		{
+			for (final String track : lineage)
+			{
+				f.write(track);
+				f.newLine();
+			}
+		}
+		s.lineageFile = lineageFile.getPath();
+		return s;
+	}
+}